@@ -393,7 +393,7 @@ public class svcctl {
         public byte[] service;
         public int bytes_needed;
         public int services_returned;
-        public int resume_handle;
+        public NdrLong resume_handle;
 
         public EnumServicesStatus(rpc.policy_handle handle,
                     int type,
@@ -402,7 +402,7 @@ public class svcctl {
                     byte[] service,
                     int bytes_needed,
                     int services_returned,
-                    int resume_handle) {
+                    NdrLong resume_handle) {
             this.handle = handle;
             this.type = type;
             this.state = state;
@@ -419,14 +419,18 @@ public class svcctl {
             _dst.enc_ndr_long(type);
             _dst.enc_ndr_long(state);
             _dst.enc_ndr_long(buf_size);
-            _dst.enc_ndr_long(resume_handle);
+            _dst.enc_ndr_referent(resume_handle, 1);
+            if (resume_handle != null) {
+                resume_handle.encode(_dst);
+
+            }
         }
         public void decode_out(NdrBuffer _src) throws NdrException {
             int _services = _src.dec_ndr_long();
             int _servicei = _src.index;
             _src.advance(1 * _services);
-            if (service == null) {
-                if (_services < 0 || _services > 0xFFFF) throw new NdrException( NdrException.INVALID_CONFORMANCE );
+            if (service == null || service.length < _services) {
+                if (_services < 0 || _services > 0x40000) throw new NdrException( NdrException.INVALID_CONFORMANCE );
                 service = new byte[_services];
             }
             _src = _src.derive(_servicei);
@@ -435,7 +439,14 @@ public class svcctl {
             }
             bytes_needed = (int)_src.dec_ndr_long();
             services_returned = (int)_src.dec_ndr_long();
-            resume_handle = (int)_src.dec_ndr_long();
+            int _resume_handlep = _src.dec_ndr_long();
+            if (_resume_handlep != 0) {
+                if (resume_handle == null) {
+                    resume_handle = new NdrLong(0);
+                }
+                resume_handle.decode(_src);
+
+            }
             retval = (int)_src.dec_ndr_long();
         }
     }
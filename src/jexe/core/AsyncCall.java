@@ -0,0 +1,222 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * A blocking JEXE operation running asynchronously on the executor returned by
+ * {@link JEXECore#getAsyncExecutor()}. If the call is cancelled or its deadline passes while the
+ * operation is still running, every command pipe the operation has borrowed is aborted and its
+ * thread is interrupted, so that a pending pipe read fails rather than holding the thread.
+ */
+class AsyncCall<T> extends CompletableFuture<T> implements Runnable {
+    
+    private static final ThreadLocal<AsyncCall<?>> current = new ThreadLocal<AsyncCall<?>>();
+    
+    private static final ScheduledThreadPoolExecutor deadlines;
+    
+    private final Operation<T> operation;
+    private final List<CommandSession> sessions = new ArrayList<CommandSession>(2);
+    
+    private Thread thread;
+    private boolean settled;
+    private volatile ScheduledFuture<?> deadline;
+    
+    private AsyncCall(Operation<T> operation) {
+        this.operation = operation;
+    }
+    
+    /**
+     * 
+     * Submits the given operation to the asynchronous executor.
+     * 
+     * @param operation
+     *            The operation to run
+     * @param timeout
+     *            The time, in milliseconds, after which the operation is aborted and the returned
+     *            future fails with a {@link TimeoutException}; zero or less for no deadline
+     * @return A future for the result of the operation
+     * 
+     */
+    static <T> CompletableFuture<T> submit(Operation<T> operation, long timeout) {
+        AsyncCall<T> call = new AsyncCall<T>(operation);
+        
+        if (timeout > 0) {
+            call.deadline = deadlines.schedule(() -> call.completeExceptionally(
+                    new TimeoutException("Operation exceeded deadline of " + timeout + " ms")),
+                    timeout, TimeUnit.MILLISECONDS);
+        }
+        
+        call.whenComplete((result, failure) -> call.finish());
+        
+        try {
+            JEXECore.getAsyncExecutor().execute(call);
+        } catch (RejectedExecutionException e) {
+            call.completeExceptionally(e);
+        }
+        
+        return call;
+    }
+    
+    /**
+     * 
+     * Runs the given task on the asynchronous executor after the given delay. The timer thread
+     * only hands the task over, so any number of delayed tasks share it.
+     * 
+     * @param task
+     *            The task to run
+     * @param delay
+     *            The delay in milliseconds
+     * @param owner
+     *            The future to fail if the executor rejects the task
+     * 
+     */
+    static void schedule(Runnable task, long delay, CompletableFuture<?> owner) {
+        deadlines.schedule(() -> {
+            try {
+                JEXECore.getAsyncExecutor().execute(task);
+            } catch (RejectedExecutionException e) {
+                owner.completeExceptionally(e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 
+     * Runs the given task on the timer thread itself after the given delay, for short tasks such
+     * as aborting a pipe that has not answered in time.
+     * 
+     * @param task
+     *            The task to run
+     * @param delay
+     *            The delay in milliseconds
+     * @return The scheduled task, to be cancelled if it is no longer needed
+     * 
+     */
+    static ScheduledFuture<?> watch(Runnable task, long delay) {
+        return deadlines.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Associates a command pipe with the call running on this thread, if any, so that the pipe is
+     * aborted along with the call.
+     */
+    static void attach(CommandSession session) {
+        AsyncCall<?> call = current.get();
+        
+        if (call != null) {
+            boolean abort;
+            
+            synchronized (call) {
+                call.sessions.add(session);
+                abort = call.isDone() && !call.settled;
+            }
+            
+            if (abort) {
+                session.abort();
+            }
+        }
+    }
+    
+    /**
+     * Dissociates a command pipe from the call running on this thread, if any.
+     */
+    static void detach(CommandSession session) {
+        AsyncCall<?> call = current.get();
+        
+        if (call != null) {
+            synchronized (call) {
+                call.sessions.remove(session);
+            }
+        }
+    }
+    
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (this.isDone()) {
+                return;
+            }
+            
+            this.thread = Thread.currentThread();
+        }
+        
+        current.set(this);
+        
+        try {
+            T result = this.operation.run();
+            this.settle();
+            this.complete(result);
+        } catch (Throwable t) {
+            this.settle();
+            this.completeExceptionally(t);
+        } finally {
+            current.remove();
+            
+            synchronized (this) {
+                this.thread = null;
+            }
+            
+            // An abort may have landed after the operation returned; don't leak it to the next task
+            Thread.interrupted();
+        }
+    }
+    
+    private synchronized void settle() {
+        this.settled = true;
+    }
+    
+    private void finish() {
+        ScheduledFuture<?> deadline = this.deadline;
+        
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        
+        List<CommandSession> aborted;
+        
+        synchronized (this) {
+            if (this.settled) {
+                return;
+            }
+            
+            aborted = new ArrayList<CommandSession>(this.sessions);
+            
+            if (this.thread != null) {
+                this.thread.interrupt();
+            }
+        }
+        
+        for (CommandSession session : aborted) {
+            session.abort();
+        }
+    }
+    
+    /**
+     * A blocking JEXE operation.
+     */
+    interface Operation<T> {
+        
+        T run() throws IOException, JEXEException;
+        
+    }
+    
+    static {
+        deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "jexe-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+    
+}
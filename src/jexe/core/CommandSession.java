@@ -0,0 +1,603 @@
+package jexe.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import jexe.core.JEXECore.CommandException;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXECore.RecordHandler;
+import jexe.core.JEXECore.ResponseHandler;
+
+/**
+ * An open, authenticated command pipe to a JEXESVC instance. A session may carry any number of
+ * sequential command transactions; {@link JEXESessionPool} keeps idle sessions around so that
+ * repeated transactions to the same machine do not pay for a new pipe each time.
+ * 
+ * While {@link JEXECore#getMetrics()} is set, a session times each pipe open and each transaction
+ * it carries, and counts the bytes it writes and reads. While
+ * {@link JEXECore#getCircuitBreaker()} is set, a session reports to it whether its machine opened
+ * the pipe and answered, or failed to.
+ */
+class CommandSession implements Closeable {
+    
+    final String key;
+    final String address;
+    JEXESessionPool pool;
+    int generation;
+    
+    private final InputStream in;
+    private final CountingOutputStream out;
+    private final PrintWriter writer;
+    private final LineReader reader;
+    
+    private final long created;
+    private long lastUsed;
+    private int transactions;
+    
+    private volatile boolean broken;
+    private volatile boolean aborted;
+    private volatile boolean timedOut;
+    private boolean closed;
+    
+    private ScheduledFuture<?> watchdog;
+    private int armings;
+    private long timeout;
+    private long deadline;
+    private volatile long lastRead;
+    private volatile String expiry;
+    
+    /*
+     * The commands sent but not yet answered, and the times and byte counts at which the current
+     * transaction was sent and began to be answered; kept only while metrics are recorded.
+     */
+    private final ArrayDeque<String> pending = new ArrayDeque<String>();
+    private long sent;
+    private long answered;
+    private long bytesIn;
+    
+    CommandSession(String key, String address, InputStream in, OutputStream out) {
+        this.key = key;
+        this.address = address;
+        this.in = in;
+        this.out = new CountingOutputStream(out);
+        this.writer = new PrintWriter(new OutputStreamWriter(this.out, JEXECore.charset));
+        this.reader = new LineReader(in);
+        this.created = System.currentTimeMillis();
+        this.lastUsed = this.created;
+    }
+    
+    /**
+     * 
+     * Opens a new command pipe to the JEXESVC instance on the machine specified by the given
+     * {@link ConnectionInfo} object.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param connectTimeout
+     *            The longest time to wait for the pipe to open in milliseconds; zero or less to
+     *            leave it to the transport
+     * @return The new session
+     * @throws JEXEException
+     * 
+     */
+    static CommandSession open(ConnectionInfo connectionInfo, long connectTimeout)
+            throws JEXEException {
+        JEXEMetrics metrics = JEXECore.getMetrics();
+        HostCircuitBreaker breaker = JEXECore.getCircuitBreaker();
+        long start = System.nanoTime();
+        
+        try {
+            JEXETransport.Pipe pipe = JEXECore.openPipe(connectionInfo, JEXECore.pipeUrlCommand,
+                    JEXETransport.READ | JEXETransport.WRITE, connectTimeout);
+            
+            if (metrics != null) {
+                metrics.pipeOpened(connectionInfo.address, System.nanoTime() - start, null);
+            }
+            
+            if (breaker != null) {
+                breaker.connected(connectionInfo.address);
+            }
+            
+            return new CommandSession(connectionInfo.key(), connectionInfo.address, pipe.in,
+                    pipe.out);
+        } catch (IOException e) {
+            if (metrics != null) {
+                metrics.pipeOpened(connectionInfo.address, System.nanoTime() - start, e);
+            }
+            
+            if (breaker != null) {
+                breaker.connectFailed(connectionInfo.address);
+            }
+            
+            throw new JEXEException("Unable to connect to JEXESVC on target machine", e);
+        }
+    }
+    
+    /**
+     * 
+     * Aborts this session if JEXESVC sends nothing on it for the given time while it is in use,
+     * or if the given deadline passes, so that a transaction waiting on a JEXESVC that has stopped
+     * answering fails with a {@link SocketTimeoutException} rather than waiting forever. Each line
+     * read starts the time afresh, so a long result that keeps arriving is never cut off. The
+     * session must be disarmed before it is reused.
+     * 
+     * Lines only stamp the time they arrive; the watchdog checks the stamp when it fires, and
+     * waits again for the rest of the time if a line has arrived since.
+     * 
+     * @param timeout
+     *            The idle time in milliseconds; zero or less for none
+     * @param hold
+     *            The time in milliseconds by which the first line may be later still, for commands
+     *            that JEXESVC holds before answering
+     * @param deadline
+     *            The time by which the session must be done, by {@link System#nanoTime()}, or zero
+     *            for none
+     * 
+     */
+    synchronized void arm(long timeout, long hold, long deadline) {
+        if (timeout <= 0 && deadline == 0) {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        
+        this.timeout = Math.max(timeout, 0);
+        this.deadline = deadline;
+        this.lastRead = now + hold * 1000000;
+        this.schedule(++this.armings, now);
+    }
+    
+    /**
+     * Cancels the timeout set by {@link #arm(long, long, long)}, if any.
+     */
+    synchronized void disarm() {
+        if (this.watchdog != null) {
+            this.watchdog.cancel(false);
+            this.watchdog = null;
+        }
+    }
+    
+    private void schedule(int arming, long now) {
+        long delay = Long.MAX_VALUE;
+        
+        if (this.timeout > 0) {
+            delay = this.timeout - (now - this.lastRead) / 1000000;
+        }
+        
+        if (this.deadline != 0) {
+            delay = Math.min(delay, (this.deadline - now) / 1000000);
+        }
+        
+        this.watchdog = AsyncCall.watch(() -> this.check(arming), Math.max(delay, 1));
+    }
+    
+    /**
+     * Aborts the session if it has been idle for too long or its deadline has passed, and
+     * otherwise waits again. A check left over from an earlier arming does nothing.
+     */
+    private void check(int arming) {
+        synchronized (this) {
+            if (arming != this.armings || this.watchdog == null) {
+                return;
+            }
+            
+            long now = System.nanoTime();
+            
+            if (this.deadline != 0 && now - this.deadline >= 0) {
+                this.expiry = "Operation exceeded its deadline of "
+                        + JEXECore.getOperationTimeout() + " ms";
+            } else if (this.timeout > 0 && now - this.lastRead >= this.timeout * 1000000) {
+                this.expiry = "JEXESVC sent nothing for " + this.timeout + " ms";
+            } else {
+                this.schedule(arming, now);
+                return;
+            }
+            
+            this.watchdog = null;
+            this.timedOut = true;
+        }
+        
+        this.abort();
+    }
+    
+    /**
+     * 
+     * Writes the given commands to the pipe back to back, without waiting for their results.
+     * 
+     * @param commands
+     *            The commands to send
+     * @throws IOException
+     * 
+     */
+    void send(List<String> commands) throws IOException {
+        long start = System.nanoTime();
+        long bytesOut = this.out.count;
+        
+        for (String command : commands) {
+            this.writer.print("COMMAND " + command + "\n");
+        }
+        
+        this.writer.flush();
+        
+        if (this.writer.checkError()) {
+            this.broken = true;
+            throw new IOException("Unable to write command to JEXESVC");
+        }
+        
+        JEXEMetrics metrics = JEXECore.getMetrics();
+        
+        if (metrics != null) {
+            this.sent = System.nanoTime();
+            this.pending.addAll(commands);
+            metrics.commandsSent(this.address, commands.size(), this.out.count - bytesOut,
+                    this.sent - start);
+        }
+    }
+    
+    /**
+     * 
+     * Reads the result of the oldest command sent on this session that has not yet been
+     * answered.
+     * 
+     * @return The result of the command
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    String receive() throws IOException, JEXEException {
+        StringBuilder responseBuilder = new StringBuilder();
+        
+        try {
+            int numLines = this.receiveHeader();
+            
+            for (int i = 0; i < numLines; i++) {
+                String line = this.readLine();
+                
+                if (!line.isEmpty()) {
+                    responseBuilder.append(line);
+                    
+                    if (i < numLines - 1) {
+                        responseBuilder.append("\n");
+                    }
+                }
+            }
+        } catch (IOException | JEXEException | RuntimeException e) {
+            this.completed(e);
+            throw e;
+        }
+        
+        this.completed(null);
+        return responseBuilder.toString();
+    }
+    
+    /**
+     * 
+     * Reads the result of the oldest command sent on this session that has not yet been
+     * answered, passing each non-empty line to the given handler as it arrives. If the handler
+     * stops early, the rest of the result is read and discarded so that the session stays in step
+     * with JEXESVC.
+     * 
+     * @param handler
+     *            The handler to which to pass the lines of the result
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    void receive(ResponseHandler handler) throws IOException, JEXEException {
+        try {
+            int remaining = this.receiveHeader();
+            boolean more = true;
+            
+            while (remaining > 0) {
+                String line = this.readLine();
+                remaining--;
+                
+                if (more && !line.isEmpty()) {
+                    try {
+                        more = handler.handleLine(line);
+                    } catch (JEXEException | RuntimeException e) {
+                        this.skip(remaining);
+                        throw e;
+                    }
+                }
+            }
+        } catch (IOException | JEXEException | RuntimeException e) {
+            this.completed(e);
+            throw e;
+        }
+        
+        this.completed(null);
+    }
+    
+    /**
+     * 
+     * Reads the result of the oldest command sent on this session that has not yet been
+     * answered, parsing each non-empty line into a single reused {@link JEXERecord} and passing it
+     * to the given handler. If the handler stops early, the rest of the result is read and
+     * discarded so that the session stays in step with JEXESVC.
+     * 
+     * @param handler
+     *            The handler to which to pass the records of the result
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    void receiveRecords(RecordHandler handler) throws IOException, JEXEException {
+        try {
+            int remaining = this.receiveHeader();
+            boolean more = true;
+            JEXERecord record = new JEXERecord();
+            
+            while (remaining > 0) {
+                this.nextLine();
+                remaining--;
+                
+                if (more && !this.reader.isLineEmpty()) {
+                    record.parse(this.reader.buffer(), this.reader.lineStart(),
+                            this.reader.lineEnd() - this.reader.lineStart());
+                    
+                    try {
+                        more = handler.handleRecord(record);
+                    } catch (JEXEException | RuntimeException e) {
+                        this.skip(remaining);
+                        throw e;
+                    }
+                }
+            }
+        } catch (IOException | JEXEException | RuntimeException e) {
+            this.completed(e);
+            throw e;
+        }
+        
+        this.completed(null);
+    }
+    
+    /**
+     * Reads the first line of a result, and returns the number of lines that follow it.
+     */
+    private int receiveHeader() throws IOException, JEXEException {
+        long bytesIn = this.reader.bytesRead();
+        String response = this.readLine();
+        HostCircuitBreaker breaker = JEXECore.getCircuitBreaker();
+        
+        // Any answer at all, even an error, shows the machine to be alive
+        if (breaker != null) {
+            breaker.answered(this.address);
+        }
+        
+        if (!this.pending.isEmpty()) {
+            this.answered = System.nanoTime();
+            this.bytesIn = bytesIn;
+        }
+        
+        this.lastUsed = System.currentTimeMillis();
+        this.transactions++;
+        
+        if (response.startsWith("RESPONSE ")) {
+            if (response.length() > 9) {
+                try {
+                    return Integer.parseInt(response.substring(9));
+                } catch (NumberFormatException e) {
+                    this.broken = true;
+                    throw new CommandException("Protocol: invalid response line count", e);
+                }
+            } else {
+                this.broken = true;
+                throw new CommandException("Protocol: response line count not specified");
+            }
+        } else if (response.startsWith("ERROR ")) {
+            if (response.length() > 6) {
+                int errorCode;
+                
+                try {
+                    errorCode = Integer.parseInt(response.substring(6).trim());
+                } catch (NumberFormatException e) {
+                    errorCode = -1;
+                }
+                
+                throw new CommandException("Response: " + response.substring(6), errorCode);
+            } else {
+                throw new CommandException("Protocol: error code not specified");
+            }
+        } else {
+            this.broken = true;
+            throw new CommandException("Protocol: unrecognized response");
+        }
+    }
+    
+    /**
+     * Records the transaction at the head of the pipeline as complete. The next command's wait is
+     * timed from here, since JEXESVC only starts on it once this one is answered.
+     */
+    private void completed(Throwable failure) {
+        String command = this.pending.pollFirst();
+        JEXEMetrics metrics = JEXECore.getMetrics();
+        
+        if (command == null || metrics == null) {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        
+        // A transaction that failed before its first line is all wait
+        if (this.answered - this.sent < 0) {
+            this.answered = now;
+        }
+        
+        metrics.transactionCompleted(this.address, command, this.answered - this.sent,
+                now - this.answered, this.reader.bytesRead() - this.bytesIn, failure);
+        
+        this.sent = now;
+        this.bytesIn = this.reader.bytesRead();
+    }
+    
+    private void skip(int lines) throws IOException {
+        for (int i = 0; i < lines; i++) {
+            this.nextLine();
+        }
+    }
+    
+    private String readLine() throws IOException {
+        this.nextLine();
+        return this.reader.lineString(JEXECore.charset);
+    }
+    
+    private void nextLine() throws IOException {
+        boolean more;
+        try {
+            more = this.reader.nextLine();
+        } catch (IOException e) {
+            this.broken = true;
+            throw this.failed(e);
+        }
+        
+        if (!more) {
+            this.broken = true;
+            throw this.failed(new EOFException("Protocol: JEXESVC closed the command pipe"));
+        }
+        
+        this.lastRead = System.nanoTime();
+    }
+    
+    /**
+     * Reports a failed read to the circuit breaker, and returns the exception to throw for it.
+     */
+    private IOException failed(IOException e) {
+        if (this.timedOut) {
+            SocketTimeoutException timeout = new SocketTimeoutException(this.expiry);
+            timeout.initCause(e);
+            e = timeout;
+        }
+        
+        HostCircuitBreaker breaker = JEXECore.getCircuitBreaker();
+        
+        // A pipe aborted along with a cancelled call says nothing about the machine
+        if (breaker != null && (!this.aborted || this.timedOut)) {
+            breaker.readFailed(this.address);
+        }
+        
+        return e;
+    }
+    
+    /**
+     * 
+     * Checks whether this session can still carry transactions. A healthy session has not seen a
+     * transport or protocol error, and its pipe holds no unread data; stray data would mean the
+     * session has fallen out of step with JEXESVC.
+     * 
+     * @return Whether or not the session is healthy
+     * 
+     */
+    boolean checkHealth() {
+        if (this.broken || this.closed) {
+            return false;
+        }
+        
+        try {
+            if (this.reader.hasBuffered() || this.in.available() > 0) {
+                this.broken = true;
+            }
+        } catch (IOException e) {
+            this.broken = true;
+        }
+        
+        return !this.broken;
+    }
+    
+    boolean isBroken() {
+        return this.broken;
+    }
+    
+    /**
+     * Returns whether this session has completed at least one transaction, meaning that JEXESVC
+     * may have dropped the pipe since it was last used.
+     */
+    boolean isReused() {
+        return this.transactions > 0;
+    }
+    
+    long getCreated() {
+        return this.created;
+    }
+    
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+    
+    /**
+     * Marks this session as broken and closes its pipe without waiting for any thread reading from
+     * it, which is then left to fail.
+     */
+    void abort() {
+        this.aborted = true;
+        this.broken = true;
+        
+        try {
+            this.in.close();
+        } catch (IOException e) {
+        }
+        
+        try {
+            this.out.close();
+        } catch (IOException e) {
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        
+        this.closed = true;
+        
+        // Commands left unanswered will never be, as with a broken pipeline
+        while (!this.pending.isEmpty()) {
+            this.completed(new CommandException("Protocol: pipeline interrupted before response"));
+        }
+        
+        this.writer.close();
+        
+        try {
+            this.in.close();
+        } catch (IOException e) {
+        }
+    }
+    
+    /**
+     * Counts the bytes written to the pipe. Only the session's own thread writes.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        
+        long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+        
+    }
+    
+}
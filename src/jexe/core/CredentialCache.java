@@ -0,0 +1,147 @@
+package jexe.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jexe.core.JEXECore.Authentication;
+import jexe.core.JEXECore.ConnectionInfo;
+
+/**
+ * Hands out one JCIFS {@link NtlmPasswordAuthentication} for each machine and user, so that the
+ * pipes and shares opened to a machine with the same credentials, whether a command pipe, a
+ * process stream or <code>ADMIN$</code>, do not each build their own. JCIFS already lets every
+ * pipe with equal credentials ride on a single SMB session; handing out the same instance makes
+ * its identity check succeed before it compares domains, users and passwords.
+ * 
+ * The cache does not decide when sessions are set up or torn down: JCIFS authenticates once per
+ * transport, and a changed password starts a new session. Credentials are kept for the least
+ * recently used machines and users up to {@link #getMaxCredentials()}, and are forgotten when a
+ * machine is invalidated.
+ */
+public class CredentialCache {
+    
+    private final LinkedHashMap<String, Credential> credentials =
+            new LinkedHashMap<String, Credential>(16, 0.75f, true) {
+                
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Credential> eldest) {
+                    return this.size() > CredentialCache.this.maxCredentials;
+                }
+                
+            };
+    
+    private volatile int maxCredentials = 1024;
+    
+    /**
+     * Returns the maximum number of credentials held at once.
+     */
+    public int getMaxCredentials() {
+        return this.maxCredentials;
+    }
+    
+    /**
+     * 
+     * Sets the maximum number of credentials held at once, one for each machine and user.
+     * 
+     * @param maxCredentials
+     *            The maximum number of credentials
+     * 
+     */
+    public void setMaxCredentials(int maxCredentials) {
+        if (maxCredentials < 1) {
+            throw new IllegalArgumentException("maxCredentials must be at least 1");
+        }
+        
+        this.maxCredentials = maxCredentials;
+    }
+    
+    /**
+     * 
+     * Forgets the credentials held for the given machine, under any user. Sessions already set up
+     * are left to JCIFS.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the machine
+     * 
+     */
+    public void invalidate(ConnectionInfo connectionInfo) {
+        String prefix = connectionInfo.address + "|";
+        
+        synchronized (this.credentials) {
+            Iterator<String> iterator = this.credentials.keySet().iterator();
+            
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Forgets all credentials.
+     */
+    public void clear() {
+        synchronized (this.credentials) {
+            this.credentials.clear();
+        }
+    }
+    
+    /**
+     * 
+     * Returns the shared credentials for the machine and user specified by the given
+     * {@link ConnectionInfo} object, replacing any held for an old password.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @return The credentials
+     * 
+     */
+    NtlmPasswordAuthentication get(ConnectionInfo connectionInfo) {
+        Authentication auth = connectionInfo.authentication;
+        
+        // NTLM compares domains and users without regard to case, but passwords exactly
+        String key = connectionInfo.address + "|" + CredentialCache.fold(auth.domain) + "|"
+                + CredentialCache.fold(auth.username);
+        
+        String passwordDigest = auth.passwordDigest();
+        
+        synchronized (this.credentials) {
+            Credential credential = this.credentials.get(key);
+            
+            if (credential == null || !(credential.passwordDigest == null ? passwordDigest == null
+                    : credential.passwordDigest.equals(passwordDigest))) {
+                credential = new Credential(passwordDigest, auth.toNtlmPasswordAuthentication());
+                this.credentials.put(key, credential);
+            }
+            
+            return credential.authentication;
+        }
+    }
+    
+    private static String fold(String string) {
+        return string == null ? null : string.toUpperCase(Locale.ROOT);
+    }
+    
+    private static class Credential {
+        
+        /**
+         * The digest of the password the credentials were built with, as given by
+         * {@link Authentication#passwordDigest()}, so that a changed password is noticed.
+         */
+        final String passwordDigest;
+        final NtlmPasswordAuthentication authentication;
+        
+        Credential(String passwordDigest, NtlmPasswordAuthentication authentication) {
+            this.passwordDigest = passwordDigest;
+            this.authentication = authentication;
+        }
+        
+    }
+    
+}
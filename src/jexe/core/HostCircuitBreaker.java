@@ -0,0 +1,279 @@
+package jexe.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * Stops JEXE from waiting on machines that keep failing. When set with
+ * {@link JEXECore#setCircuitBreaker(HostCircuitBreaker)}, a machine whose command pipes fail to
+ * open, or to answer, {@link #getFailureThreshold()} times in a row is cut off: transactions and
+ * install checks to it fail at once with a {@link CircuitOpenException} rather than each paying
+ * for the connect or read timeout. After {@link #getOpenTime()}, a single caller is let through to
+ * probe the machine, and the rest keep failing fast until the probe succeeds, which restores the
+ * machine, or fails, which cuts it off again.
+ * 
+ * Errors reported by JEXESVC itself, such as a process that cannot be killed, are not failures;
+ * they show that the machine is answering. A machine that opens pipes but never answers on them
+ * is restored only by an answer, not by opening another pipe. Only machines with recent failures
+ * are tracked.
+ */
+public class HostCircuitBreaker {
+    
+    /**
+     * The state of the circuit to a machine.
+     */
+    public enum State {
+        
+        /**
+         * The machine is in use as normal.
+         */
+        CLOSED,
+        
+        /**
+         * The machine is cut off, and calls to it fail at once.
+         */
+        OPEN,
+        
+        /**
+         * A single call is probing the machine, and the rest fail at once.
+         */
+        HALF_OPEN
+        
+    }
+    
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    
+    private volatile int failureThreshold = 5;
+    private volatile long openTime = 10000;
+    
+    /**
+     * Returns the number of failures in a row after which a machine is cut off.
+     */
+    public int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+    
+    /**
+     * 
+     * Sets the number of failures in a row after which a machine is cut off.
+     * 
+     * @param failureThreshold
+     *            The number of failures
+     * 
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        
+        this.failureThreshold = failureThreshold;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, for which a machine is cut off before it is probed.
+     */
+    public long getOpenTime() {
+        return this.openTime;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, for which a machine is cut off before it is probed. A probe
+     * that has not finished within this time is given up on, and another caller probes instead.
+     * 
+     * @param openTime
+     *            The time in milliseconds
+     * 
+     */
+    public void setOpenTime(long openTime) {
+        if (openTime < 1) {
+            throw new IllegalArgumentException("openTime must be at least 1");
+        }
+        
+        this.openTime = openTime;
+    }
+    
+    /**
+     * 
+     * Returns the state of the circuit to the given machine.
+     * 
+     * @param address
+     *            The address of the machine
+     * @return The state
+     * 
+     */
+    public State getState(String address) {
+        Host host = this.hosts.get(address);
+        
+        if (host == null) {
+            return State.CLOSED;
+        }
+        
+        synchronized (host) {
+            return host.state;
+        }
+    }
+    
+    /**
+     * 
+     * Restores the given machine, forgetting its failures.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the machine
+     * 
+     */
+    public void reset(ConnectionInfo connectionInfo) {
+        this.hosts.remove(connectionInfo.address);
+    }
+    
+    /**
+     * Restores all machines.
+     */
+    public void clear() {
+        this.hosts.clear();
+    }
+    
+    /**
+     * 
+     * Checks that a call may be made to the given machine. If the machine has been cut off for
+     * long enough, the caller becomes its probe.
+     * 
+     * @param address
+     *            The address of the machine
+     * @throws CircuitOpenException
+     *             If the machine is cut off
+     * 
+     */
+    void acquire(String address) throws CircuitOpenException {
+        Host host = this.hosts.get(address);
+        
+        if (host == null) {
+            return;
+        }
+        
+        synchronized (host) {
+            long now = System.nanoTime();
+            
+            switch (host.state) {
+            case CLOSED:
+                return;
+            case OPEN:
+                if (now - host.retryAt >= 0) {
+                    host.state = State.HALF_OPEN;
+                    host.retryAt = now + this.openTime * 1000000;
+                    return;
+                }
+                break;
+            case HALF_OPEN:
+                // A probe that never reported back is given up on
+                if (now - host.retryAt >= 0) {
+                    host.retryAt = now + this.openTime * 1000000;
+                    return;
+                }
+                break;
+            }
+            
+            throw new CircuitOpenException("Circuit: JEXESVC on " + address + " is failing; "
+                    + "next attempt in " + Math.max(1, (host.retryAt - now) / 1000000) + " ms");
+        }
+    }
+    
+    /**
+     * Records that a pipe to the given machine was opened. The machine is restored, unless it has
+     * also failed to answer on a pipe that opened.
+     */
+    void connected(String address) {
+        if (this.hosts.isEmpty()) {
+            return;
+        }
+        
+        Host host = this.hosts.get(address);
+        
+        if (host != null && !host.unanswered) {
+            this.hosts.remove(address, host);
+        }
+    }
+    
+    /**
+     * Records that JEXESVC on the given machine answered a command; the machine is restored.
+     */
+    void answered(String address) {
+        if (this.hosts.isEmpty()) {
+            return;
+        }
+        
+        this.hosts.remove(address);
+    }
+    
+    /**
+     * Records that a pipe to the given machine could not be opened.
+     */
+    void connectFailed(String address) {
+        this.failure(address, false);
+    }
+    
+    /**
+     * Records that JEXESVC on the given machine stopped answering on an open pipe.
+     */
+    void readFailed(String address) {
+        this.failure(address, true);
+    }
+    
+    private void failure(String address, boolean unanswered) {
+        Host host = this.hosts.get(address);
+        
+        if (host == null) {
+            host = new Host();
+            Host existing = this.hosts.putIfAbsent(address, host);
+            
+            if (existing != null) {
+                host = existing;
+            }
+        }
+        
+        synchronized (host) {
+            host.failures++;
+            host.unanswered |= unanswered;
+            
+            if (host.state == State.HALF_OPEN || host.failures >= this.failureThreshold) {
+                host.state = State.OPEN;
+                host.retryAt = System.nanoTime() + this.openTime * 1000000;
+            }
+        }
+    }
+    
+    private static class Host {
+        
+        State state = State.CLOSED;
+        int failures;
+        
+        /**
+         * Whether any of the failures was of a pipe that opened but did not answer.
+         */
+        volatile boolean unanswered;
+        
+        /**
+         * The time at which an open circuit may next be probed, or at which a probe is given up
+         * on, by {@link System#nanoTime()}.
+         */
+        long retryAt;
+        
+    }
+    
+    /**
+     * Thrown in place of a call to a machine that has been cut off.
+     */
+    public static class CircuitOpenException extends JEXEException {
+        
+        private static final long serialVersionUID = 3144217046671398506L;
+        
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,194 @@
+package jexe.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jexe.core.JEXECore.ConnectionInfo;
+
+/**
+ * Remembers whether JEXESVC was recently found on each machine, so that code which checks before
+ * every operation does not open a command pipe each time. When set with
+ * {@link JEXECore#setInstallStatusCache(InstallStatusCache)}, a machine found to have JEXESVC is
+ * not probed again for {@link #getPositiveTtl()}, and one found without it for
+ * {@link #getNegativeTtl()}; the latter is kept short so that a fresh install is noticed soon.
+ * 
+ * A machine's status is dropped when a command pipe to it cannot be opened or written, and when
+ * JEXESVC is installed or uninstalled through {@link JEXECore}. Statuses are kept per
+ * {@link ConnectionInfo}, since credentials that cannot reach the pipe see no JEXESVC, and the
+ * least recently used are dropped beyond {@link #getMaxEntries()}.
+ */
+public class InstallStatusCache {
+    
+    private final LinkedHashMap<String, Status> statuses =
+            new LinkedHashMap<String, Status>(16, 0.75f, true) {
+                
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Status> eldest) {
+                    return this.size() > InstallStatusCache.this.maxEntries;
+                }
+                
+            };
+    
+    private volatile long positiveTtl = 30000;
+    private volatile long negativeTtl = 5000;
+    private volatile int maxEntries = 4096;
+    
+    /**
+     * Returns the time, in milliseconds, for which a machine found to have JEXESVC is taken to
+     * still have it.
+     */
+    public long getPositiveTtl() {
+        return this.positiveTtl;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, for which a machine found to have JEXESVC is taken to still
+     * have it. Statuses already held keep the TTL they were recorded with.
+     * 
+     * @param positiveTtl
+     *            The TTL in milliseconds
+     * 
+     */
+    public void setPositiveTtl(long positiveTtl) {
+        this.positiveTtl = positiveTtl;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, for which a machine found without JEXESVC is taken to
+     * still be without it.
+     */
+    public long getNegativeTtl() {
+        return this.negativeTtl;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, for which a machine found without JEXESVC is taken to still
+     * be without it. Statuses already held keep the TTL they were recorded with.
+     * 
+     * @param negativeTtl
+     *            The TTL in milliseconds; zero or less to never cache a negative result
+     * 
+     */
+    public void setNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+    }
+    
+    /**
+     * Returns the maximum number of statuses held at once.
+     */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+    
+    /**
+     * 
+     * Sets the maximum number of statuses held at once.
+     * 
+     * @param maxEntries
+     *            The maximum number of statuses
+     * 
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        
+        this.maxEntries = maxEntries;
+    }
+    
+    /**
+     * 
+     * Drops the status of the given machine, under any credentials.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the machine
+     * 
+     */
+    public synchronized void invalidate(ConnectionInfo connectionInfo) {
+        Iterator<Status> iterator = this.statuses.values().iterator();
+        
+        while (iterator.hasNext()) {
+            if (iterator.next().address.equals(connectionInfo.address)) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Drops all statuses.
+     */
+    public synchronized void clear() {
+        this.statuses.clear();
+    }
+    
+    /**
+     * 
+     * Returns the recorded status of the given machine, or null if there is none or it has
+     * expired.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @return Whether or not JEXESVC was found, or null if unknown
+     * 
+     */
+    synchronized Boolean get(ConnectionInfo connectionInfo) {
+        String key = connectionInfo.key();
+        Status status = this.statuses.get(key);
+        
+        if (status == null) {
+            return null;
+        }
+        
+        if (System.nanoTime() - status.expires >= 0) {
+            this.statuses.remove(key);
+            return null;
+        }
+        
+        return status.installed;
+    }
+    
+    /**
+     * 
+     * Records the status of the given machine.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param installed
+     *            Whether or not JEXESVC was found
+     * 
+     */
+    void put(ConnectionInfo connectionInfo, boolean installed) {
+        long ttl = installed ? this.positiveTtl : this.negativeTtl;
+        
+        if (ttl <= 0) {
+            return;
+        }
+        
+        Status status = new Status(connectionInfo.address, installed,
+                System.nanoTime() + ttl * 1000000);
+        
+        synchronized (this) {
+            this.statuses.put(connectionInfo.key(), status);
+        }
+    }
+    
+    private static class Status {
+        
+        final String address;
+        final boolean installed;
+        final long expires;
+        
+        Status(String address, boolean installed, long expires) {
+            this.address = address;
+            this.installed = installed;
+            this.expires = expires;
+        }
+        
+    }
+    
+}
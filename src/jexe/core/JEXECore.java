@@ -1,16 +1,36 @@
 package jexe.core;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import jcifs.dcerpc.DcerpcBinding;
+import jcifs.dcerpc.rpc;
 import jcifs.dcerpc.msrpc.svcctl;
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbNamedPipe;
+import jexe.core.HostCircuitBreaker.CircuitOpenException;
 
 /**
  * The core of JEXE; JEXECore is responsible for installing and uninstalling JEXESVC instances, and
@@ -25,149 +45,1116 @@ public class JEXECore {
     static final String pipeUrlProcessStdout = pipeUrlBase + "/stdout";
     static final String pipeUrlProcessStderr = pipeUrlBase + "/stderr";
     
+    static final int pipelineDepth = 64;
+    
+    /**
+     * The JEXESVC error code for a command, or an argument to one, that it does not recognize.
+     */
+    static final int ERROR_UNRECOGNIZED_COMMAND = 1;
+    
+    static final String serviceName = "JEXESVC";
+    static final String serviceDisplayName = "JEXE Service";
+    
+    /**
+     * The time, in milliseconds, allowed for JEXESVC to stop before it is replaced or removed.
+     */
+    static final long serviceTimeout = 30000;
+    
+    /**
+     * The character set in which commands and results are exchanged with JEXESVC.
+     */
+    static final Charset charset = Charset.defaultCharset();
+    
+    private static volatile JEXESessionPool sessionPool = new JEXESessionPool();
+    private static volatile InstallStatusCache installStatusCache = new InstallStatusCache();
+    private static volatile CredentialCache credentialCache = new CredentialCache();
+    private static volatile JEXEMetrics metrics = new JEXEMetrics();
+    private static volatile JEXETransport transport = new SmbPipeTransport();
+    private static volatile HostCircuitBreaker circuitBreaker = new HostCircuitBreaker();
+    private static volatile long connectTimeout = 0;
+    private static volatile long readTimeout = 60000;
+    private static volatile long operationTimeout = 0;
+    private static volatile Executor asyncExecutor;
+    private static volatile ServiceBinary serviceBinary;
+    
     private JEXECore() {
     }
     
     /**
      * 
-     * Installs and starts JEXESVC, a relatively small Win32 service that acts on the commands sent
-     * by JEXE operations, to the machine specified by the given {@link ConnectionInfo} object. The
-     * machine must have admin shares and file sharing enabled. JEXESVC must be installed on a given
-     * machine before commands may be transacted, and by extension, before processes may be
-     * manipulated.
+     * Installs and starts JEXESVC, a relatively small Win32 service that acts on the commands sent
+     * by JEXE operations, to the machine specified by the given {@link ConnectionInfo} object. The
+     * machine must have admin shares and file sharing enabled. JEXESVC must be installed on a given
+     * machine before commands may be transacted, and by extension, before processes may be
+     * manipulated.
+     * 
+     * The binary is only uploaded if the machine does not already have an identical copy, judged
+     * by its size and the SHA-256 hash recorded beside it at upload; a running JEXESVC is stopped
+     * only when its binary must be replaced. Installing to a machine that is already current thus
+     * costs a few small reads and an SCM round-trip or two.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static void install(ConnectionInfo connectionInfo) throws IOException, JEXEException {
+        try (ServiceManager manager = ServiceManager.open(connectionInfo)) {
+            JEXECore.await(JEXECore.installAsync(connectionInfo, manager, null));
+        }
+    }
+    
+    /**
+     * Installs and starts JEXESVC through the given service manager, reporting each step taken to
+     * the given listener, if any. No thread is held while the service stops or starts; the steps
+     * after each wait run on the thread that ends it. Cancelling the returned future stops the
+     * install at the next step. The manager is left open.
+     */
+    static CompletableFuture<Void> installAsync(ConnectionInfo connectionInfo,
+            ServiceManager manager, Consumer<JEXERollout.Step> steps) {
+        CompletableFuture<Void> install = new CompletableFuture<Void>();
+        rpc.policy_handle[] service = new rpc.policy_handle[1];
+        boolean[] upload = new boolean[1];
+        
+        JEXECore.step(install, () -> {
+            service[0] = manager.openService(serviceName);
+            
+            // An unchanged binary is never uploaded again; only a changed one stops the service
+            if (JEXECore.getServiceBinary().isCurrent(connectionInfo)) {
+                JEXECore.report(steps, JEXERollout.Step.UPLOAD_SKIPPED);
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            upload[0] = true;
+            
+            if (service[0] == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            manager.stopService(service[0]);
+            return manager.waitForState(service[0], svcctl.SC_STATE_SERVICE_STOPPED,
+                    serviceTimeout);
+        }).thenCompose(stopped -> JEXECore.step(install, () -> {
+            if (stopped != null) {
+                JEXECore.invalidateSessions(connectionInfo);
+                JEXECore.report(steps, JEXERollout.Step.SERVICE_STOPPED);
+            }
+            
+            if (upload[0]) {
+                JEXECore.getServiceBinary().upload(connectionInfo);
+                JEXECore.report(steps, JEXERollout.Step.UPLOADED);
+            }
+            
+            if (service[0] == null) {
+                service[0] = manager.createService(serviceName, serviceDisplayName,
+                        ServiceBinary.remotePath);
+                
+                // Someone else registered it since it was looked up
+                if (service[0] == null) {
+                    service[0] = manager.openService(serviceName);
+                } else {
+                    JEXECore.report(steps, JEXERollout.Step.SERVICE_REGISTERED);
+                }
+                
+                if (service[0] == null) {
+                    throw new JEXEException("Service " + serviceName
+                            + " vanished while it was being registered on "
+                            + connectionInfo.address);
+                }
+            }
+            
+            manager.startService(service[0]);
+            return manager.waitForState(service[0], svcctl.SC_STATE_SERVICE_RUNNING,
+                    serviceTimeout);
+        })).whenComplete((status, failure) -> {
+            manager.closeServiceHandle(service[0]);
+            
+            if (failure == null) {
+                JEXECore.invalidateInstallStatus(connectionInfo);
+                JEXEProcess.invalidateCapabilities(connectionInfo);
+                JEXECore.report(steps, JEXERollout.Step.SERVICE_STARTED);
+                install.complete(null);
+            } else {
+                install.completeExceptionally(failure instanceof CompletionException ? failure
+                        .getCause() : failure);
+            }
+        });
+        
+        return install;
+    }
+    
+    /**
+     * 
+     * Stops and uninstalls JEXESVC from the machine specified by the given {@link ConnectionInfo}
+     * object. JEXESVC must be installed for remote interactions to occur. Once interactions are
+     * complete, however, it may be appropriate to remove JEXESVC from the target machine, depending
+     * on the circumstances. The advantage to uninstalling JEXESVC is that the system is left in the
+     * condition in which it existed before the remote operations took place. The disadvantage is
+     * that JEXESVC must be reinstalled for future operations, which may take some time.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static void uninstall(ConnectionInfo connectionInfo) throws IOException, JEXEException {
+        try (ServiceManager manager = ServiceManager.open(connectionInfo)) {
+            JEXECore.await(JEXECore.uninstallAsync(connectionInfo, manager, null));
+        }
+    }
+    
+    /**
+     * Stops and uninstalls JEXESVC through the given service manager, reporting each step taken to
+     * the given listener, if any. No thread is held while the service stops; the steps after the
+     * wait run on the thread that ends it. Cancelling the returned future stops the uninstall at
+     * the next step. The manager is left open.
+     */
+    static CompletableFuture<Void> uninstallAsync(ConnectionInfo connectionInfo,
+            ServiceManager manager, Consumer<JEXERollout.Step> steps) {
+        CompletableFuture<Void> uninstall = new CompletableFuture<Void>();
+        rpc.policy_handle[] service = new rpc.policy_handle[1];
+        
+        JEXECore.step(uninstall, () -> {
+            service[0] = manager.openService(serviceName);
+            
+            if (service[0] == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            manager.stopService(service[0]);
+            return manager.waitForState(service[0], svcctl.SC_STATE_SERVICE_STOPPED,
+                    serviceTimeout);
+        }).thenCompose(stopped -> JEXECore.step(uninstall, () -> {
+            if (stopped != null) {
+                JEXECore.report(steps, JEXERollout.Step.SERVICE_STOPPED);
+                
+                manager.deleteService(service[0]);
+                JEXECore.report(steps, JEXERollout.Step.SERVICE_DELETED);
+                
+                manager.closeServiceHandle(service[0]);
+                service[0] = null;
+            }
+            
+            JEXECore.invalidateSessions(connectionInfo);
+            ServiceBinary.delete(connectionInfo);
+            JEXECore.report(steps, JEXERollout.Step.FILES_DELETED);
+            return CompletableFuture.completedFuture(null);
+        })).whenComplete((result, failure) -> {
+            manager.closeServiceHandle(service[0]);
+            
+            if (failure == null) {
+                uninstall.complete(null);
+            } else {
+                uninstall.completeExceptionally(failure instanceof CompletionException ? failure
+                        .getCause() : failure);
+            }
+        });
+        
+        return uninstall;
+    }
+    
+    /**
+     * Runs one step of an install or uninstall, unless the whole has already been cancelled or
+     * has failed, and returns the future for the wait the step started. A step that throws yields
+     * a failed future, and a wait still pending when the whole is cancelled is cancelled with it.
+     */
+    private static <T> CompletableFuture<T> step(CompletableFuture<Void> whole,
+            AsyncCall.Operation<CompletableFuture<T>> step) {
+        CompletableFuture<T> future;
+        
+        try {
+            if (whole.isDone()) {
+                throw new CancellationException("Service change cancelled");
+            }
+            
+            future = step.run();
+        } catch (IOException | JEXEException | RuntimeException e) {
+            future = new CompletableFuture<T>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        
+        CompletableFuture<T> wait = future;
+        whole.whenComplete((result, failure) -> wait.cancel(false));
+        return wait;
+    }
+    
+    /**
+     * Waits for the given install or uninstall, rethrowing its failure as it was raised.
+     */
+    private static void await(CompletableFuture<Void> future) throws IOException, JEXEException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for service state");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof JEXEException) {
+                throw (JEXEException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            
+            throw (Error) cause;
+        }
+    }
+    
+    private static void report(Consumer<JEXERollout.Step> steps, JEXERollout.Step step) {
+        if (steps != null) {
+            steps.accept(step);
+        }
+    }
+    
+    /**
+     * 
+     * Sets the JEXESVC binary that {@link #install(ConnectionInfo)} uploads. By default, the
+     * binary is loaded from the resource <code>jexesvc.exe</code> alongside this class.
+     * 
+     * @param file
+     *            The JEXESVC executable
+     * @throws IOException
+     * 
+     */
+    public static void setServiceBinary(File file) throws IOException {
+        JEXECore.serviceBinary = ServiceBinary.load(new FileInputStream(file));
+    }
+    
+    private static ServiceBinary getServiceBinary() throws JEXEException {
+        ServiceBinary binary = JEXECore.serviceBinary;
+        
+        if (binary == null) {
+            binary = ServiceBinary.bundled();
+            JEXECore.serviceBinary = binary;
+        }
+        
+        return binary;
+    }
+    
+    /**
+     * Closes any pooled command pipes to the given machine, which no longer lead anywhere once its
+     * service has stopped, and forgets whether JEXESVC was found there and what it supports.
+     */
+    private static void invalidateSessions(ConnectionInfo connectionInfo) {
+        JEXESessionPool pool = JEXECore.sessionPool;
+        
+        if (pool != null) {
+            pool.invalidate(connectionInfo);
+        }
+        
+        JEXECore.invalidateInstallStatus(connectionInfo);
+        JEXEProcess.invalidateCapabilities(connectionInfo);
+    }
+    
+    private static void invalidateInstallStatus(ConnectionInfo connectionInfo) {
+        InstallStatusCache cache = JEXECore.installStatusCache;
+        
+        if (cache != null) {
+            cache.invalidate(connectionInfo);
+        }
+    }
+    
+    /**
+     * 
+     * Checks for the presence of JEXESVC on the machine specified by the given
+     * {@link ConnectionInfo} object. If this method returns false, remote operations should fail.
+     * 
+     * The check opens a command pipe, borrowing it from the session pool if there is one so that
+     * the pipe is kept for the commands that usually follow. If an install status cache is set, a
+     * recent result is returned without touching the network at all, and if the machine has been
+     * cut off by the circuit breaker, false is returned the same way.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @return Whether or not JEXESVC was detected on the target machine
+     * 
+     */
+    public static boolean checkInstall(ConnectionInfo connectionInfo) {
+        InstallStatusCache cache = JEXECore.installStatusCache;
+        
+        if (cache != null) {
+            Boolean installed = cache.get(connectionInfo);
+            
+            if (installed != null) {
+                return installed;
+            }
+        }
+        
+        HostCircuitBreaker breaker = JEXECore.circuitBreaker;
+        
+        // A machine that is cut off is not probed, and its unknown status is not cached
+        if (breaker != null) {
+            try {
+                breaker.acquire(connectionInfo.address);
+            } catch (CircuitOpenException e) {
+                return false;
+            }
+        }
+        
+        boolean installed = JEXECore.probe(connectionInfo);
+        
+        if (cache != null) {
+            cache.put(connectionInfo, installed);
+        }
+        
+        return installed;
+    }
+    
+    /**
+     * 
+     * Checks for the presence of JEXESVC on each of the given machines, in parallel under the
+     * given fleet's bounds; see {@link #checkInstall(ConnectionInfo)}. This method returns
+     * immediately, and each machine's result may be taken from the returned {@link JEXEFleet.Run}
+     * as soon as it is known; those answered from the install status cache arrive first.
+     * 
+     * @param hosts
+     *            Information specifying connections to the target machines
+     * @param fleet
+     *            The fleet through which to probe the machines
+     * @return The probe in progress
+     * 
+     */
+    public static JEXEFleet.Run<Boolean> checkInstall(Collection<ConnectionInfo> hosts,
+            JEXEFleet fleet) {
+        return fleet.run(hosts, JEXECore::checkInstall);
+    }
+    
+    /**
+     * Opens a command pipe to the given machine and puts it straight back, returning whether it
+     * could be opened.
+     */
+    private static boolean probe(ConnectionInfo connectionInfo) {
+        JEXESessionPool pool = JEXECore.sessionPool;
+        
+        try {
+            if (pool != null) {
+                pool.release(pool.borrow(connectionInfo, JEXECore.connectTimeout));
+            } else {
+                CommandSession.open(connectionInfo, JEXECore.connectTimeout).close();
+            }
+        } catch (JEXEException e) {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * 
+     * Performs a command transaction; that is, sends the given command to the JEXESVC instance on
+     * the machine specified by the given {@link ConnectionInfo} object, and returns the result
+     * received.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param command
+     *            The command to send to the target JEXESVC instance
+     * @return The result of the command
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static String transactCommand(ConnectionInfo connectionInfo, String command)
+            throws IOException, JEXEException {
+        CommandSession session = JEXECore.sendCommands(connectionInfo,
+                Collections.singletonList(command), JEXECore.deadline(), 0);
+        
+        try {
+            return session.receive();
+        } finally {
+            JEXECore.releaseSession(session);
+        }
+    }
+    
+    /**
+     * 
+     * Performs a command transaction, passing each line of the result to the given
+     * {@link ResponseHandler} as it comes off the pipe rather than collecting the result first. The
+     * handler may stop early; the rest of the result is then discarded.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param command
+     *            The command to send to the target JEXESVC instance
+     * @param handler
+     *            The handler to which to pass the lines of the result
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static void transactCommand(ConnectionInfo connectionInfo, String command,
+            ResponseHandler handler) throws IOException, JEXEException {
+        CommandSession session = JEXECore.sendCommands(connectionInfo,
+                Collections.singletonList(command), JEXECore.deadline(), 0);
+        
+        try {
+            session.receive(handler);
+        } finally {
+            JEXECore.releaseSession(session);
+        }
+    }
+    
+    /**
+     * 
+     * Performs a command transaction whose result is a series of JEXESVC maps, one per line,
+     * passing each map to the given {@link RecordHandler} as it comes off the pipe. The maps are
+     * parsed in place into a single reused {@link JEXERecord}, so lines that the handler only
+     * inspects are never decoded into Strings.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param command
+     *            The command to send to the target JEXESVC instance
+     * @param handler
+     *            The handler to which to pass the records of the result
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static void transactRecords(ConnectionInfo connectionInfo, String command,
+            RecordHandler handler) throws IOException, JEXEException {
+        JEXECore.transactRecords(connectionInfo, command, handler, 0);
+    }
+    
+    /**
+     * 
+     * Performs a command transaction whose result is a series of JEXESVC maps, for a command that
+     * JEXESVC may hold for up to the given time before answering, such as <code>wait</code>; the
+     * read timeout is extended by that time. See
+     * {@link #transactRecords(ConnectionInfo, String, RecordHandler)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param command
+     *            The command to send to the target JEXESVC instance
+     * @param handler
+     *            The handler to which to pass the records of the result
+     * @param hold
+     *            The time in milliseconds for which JEXESVC may hold the command
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    static void transactRecords(ConnectionInfo connectionInfo, String command,
+            RecordHandler handler, long hold) throws IOException, JEXEException {
+        CommandSession session = JEXECore.sendCommands(connectionInfo,
+                Collections.singletonList(command), JEXECore.deadline(), hold);
+        
+        try {
+            session.receiveRecords(handler);
+        } finally {
+            JEXECore.releaseSession(session);
+        }
+    }
+    
+    /**
+     * 
+     * Performs a pipelined series of command transactions on a single command pipe; that is,
+     * writes the given commands to the JEXESVC instance on the machine specified by the given
+     * {@link ConnectionInfo} object back to back, and then reads their results in order. JEXESVC
+     * still executes the commands one at a time, in the order given, but the series costs roughly
+     * one round-trip rather than one per command.
+     * 
+     * A command that fails does not affect those after it; its {@link CommandResult} carries the
+     * {@link CommandException} instead of a response.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param commands
+     *            The commands to send to the target JEXESVC instance
+     * @return The result of each command, in the order given
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static List<CommandResult> transactCommands(ConnectionInfo connectionInfo,
+            List<String> commands) throws IOException, JEXEException {
+        List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+        long deadline = JEXECore.deadline();
+        
+        // Commands are sent in windows so that neither end blocks on a full pipe buffer
+        for (int start = 0; start < commands.size(); start += pipelineDepth) {
+            List<String> window = commands.subList(start,
+                    Math.min(commands.size(), start + pipelineDepth));
+            CommandSession session = JEXECore.sendCommands(connectionInfo, window, deadline,
+                    0);
+            
+            try {
+                for (String command : window) {
+                    CommandResult result = new CommandResult();
+                    result.command = command;
+                    
+                    if (session.isBroken()) {
+                        result.exception = new CommandException(
+                                "Protocol: pipeline interrupted before response");
+                    } else {
+                        try {
+                            result.response = session.receive();
+                        } catch (CommandException e) {
+                            result.exception = e;
+                        } catch (IOException e) {
+                            result.exception = new CommandException("Transport: "
+                                    + e.getMessage(), e);
+                        }
+                    }
+                    
+                    results.add(result);
+                }
+            } finally {
+                JEXECore.releaseSession(session);
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * 
+     * Writes the given commands to a command pipe to the given machine, borrowing the pipe from
+     * the session pool if there is one. A reused pipe that fails on write is assumed to have been
+     * dropped by JEXESVC while idle; since the commands never left, they are retried on another.
+     * 
+     * The pipe is opened within the connect timeout, cut short by the given deadline from
+     * {@link #deadline()}, and armed to be aborted if JEXESVC sends nothing for the read timeout,
+     * the first line being allowed the time for which JEXESVC may hold the commands on top, or if
+     * the deadline passes.
+     * 
+     */
+    private static CommandSession sendCommands(ConnectionInfo connectionInfo,
+            List<String> commands, long deadline, long hold) throws IOException, JEXEException {
+        HostCircuitBreaker breaker = JEXECore.circuitBreaker;
+        
+        if (breaker != null) {
+            breaker.acquire(connectionInfo.address);
+        }
+        
+        while (true) {
+            JEXESessionPool pool = JEXECore.sessionPool;
+            CommandSession session;
+            
+            try {
+                long connectTimeout = JEXECore.bound(JEXECore.connectTimeout, deadline);
+                
+                if (pool != null) {
+                    session = pool.borrow(connectionInfo, connectTimeout);
+                } else {
+                    session = CommandSession.open(connectionInfo, connectTimeout);
+                }
+            } catch (JEXEException e) {
+                JEXECore.invalidateInstallStatus(connectionInfo);
+                throw e;
+            }
+            
+            AsyncCall.attach(session);
+            
+            try {
+                // Fails at once if the deadline has already passed
+                JEXECore.bound(0, deadline);
+            } catch (SocketTimeoutException e) {
+                JEXECore.releaseSession(session);
+                throw e;
+            }
+            
+            session.arm(JEXECore.readTimeout, hold, deadline);
+            
+            try {
+                session.send(commands);
+                return session;
+            } catch (IOException e) {
+                JEXECore.releaseSession(session);
+                
+                if (!session.isReused()) {
+                    JEXECore.invalidateInstallStatus(connectionInfo);
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private static void releaseSession(CommandSession session) {
+        AsyncCall.detach(session);
+        session.disarm();
+        
+        if (session.pool != null) {
+            session.pool.release(session);
+        } else {
+            session.close();
+        }
+    }
+    
+    /**
+     * 
+     * Performs a command transaction asynchronously; see
+     * {@link #transactCommand(ConnectionInfo, String)}. If the returned future is cancelled, or the
+     * timeout passes, before the result arrives, the command pipe is aborted.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param command
+     *            The command to send to the target JEXESVC instance
+     * @param timeout
+     *            The deadline for the transaction in milliseconds; zero or less for none
+     * @return A future for the result of the command
+     * 
+     */
+    public static CompletableFuture<String> transactCommandAsync(ConnectionInfo connectionInfo,
+            String command, long timeout) {
+        return AsyncCall.submit(() -> JEXECore.transactCommand(connectionInfo, command), timeout);
+    }
+    
+    /**
+     * 
+     * Checks for the presence of JEXESVC asynchronously; see {@link #checkInstall(ConnectionInfo)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param timeout
+     *            The deadline for the check in milliseconds; zero or less for none
+     * @return A future for whether or not JEXESVC was detected on the target machine
+     * 
+     */
+    public static CompletableFuture<Boolean> checkInstallAsync(ConnectionInfo connectionInfo,
+            long timeout) {
+        return AsyncCall.submit(() -> JEXECore.checkInstall(connectionInfo), timeout);
+    }
+    
+    /**
+     * 
+     * Returns the {@link Executor} on which asynchronous operations run. Unless one has been set,
+     * this is an executor that runs each operation on its own virtual thread where the Java
+     * runtime supports them, or on a cached pool of daemon threads where it does not.
+     * 
+     * @return The executor for asynchronous operations
+     * 
+     */
+    public static Executor getAsyncExecutor() {
+        Executor executor = JEXECore.asyncExecutor;
+        
+        if (executor == null) {
+            synchronized (JEXECore.class) {
+                if (JEXECore.asyncExecutor == null) {
+                    JEXECore.asyncExecutor = JEXECore.createDefaultExecutor();
+                }
+                
+                executor = JEXECore.asyncExecutor;
+            }
+        }
+        
+        return executor;
+    }
+    
+    /**
+     * 
+     * Sets the {@link Executor} on which asynchronous operations run. Operations block while they
+     * wait on the network, so a bounded executor bounds the number of operations in flight.
+     * 
+     * @param asyncExecutor
+     *            The executor to use, or null to restore the default
+     * 
+     */
+    public static void setAsyncExecutor(Executor asyncExecutor) {
+        JEXECore.asyncExecutor = asyncExecutor;
+    }
+    
+    private static Executor createDefaultExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(
+                    null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "jexe-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    /**
+     * 
+     * Returns the {@link JEXESessionPool} from which command transactions borrow their pipes.
+     * 
+     * @return The session pool, or null if pooling is disabled
+     * 
+     */
+    public static JEXESessionPool getSessionPool() {
+        return JEXECore.sessionPool;
+    }
+    
+    /**
+     * 
+     * Sets the {@link JEXESessionPool} from which command transactions borrow their pipes. If set
+     * to null, each transaction opens and closes its own pipe. The previous pool is not closed.
+     * 
+     * @param sessionPool
+     *            The session pool to use, or null to disable pooling
+     * 
+     */
+    public static void setSessionPool(JEXESessionPool sessionPool) {
+        JEXECore.sessionPool = sessionPool;
+    }
+    
+    /**
+     * 
+     * Returns the {@link InstallStatusCache} consulted by
+     * {@link #checkInstall(ConnectionInfo)}.
+     * 
+     * @return The install status cache, or null if caching is disabled
+     * 
+     */
+    public static InstallStatusCache getInstallStatusCache() {
+        return JEXECore.installStatusCache;
+    }
+    
+    /**
+     * 
+     * Sets the {@link InstallStatusCache} consulted by {@link #checkInstall(ConnectionInfo)}. If
+     * set to null, every check opens a command pipe.
+     * 
+     * @param installStatusCache
+     *            The install status cache to use, or null to disable caching
+     * 
+     */
+    public static void setInstallStatusCache(InstallStatusCache installStatusCache) {
+        JEXECore.installStatusCache = installStatusCache;
+    }
+    
+    /**
+     * 
+     * Returns the {@link CredentialCache} through which pipes and shares to the same machine and
+     * user share an SMB session.
+     * 
+     * @return The credential cache, or null if every pipe authenticates on its own
+     * 
+     */
+    public static CredentialCache getCredentialCache() {
+        return JEXECore.credentialCache;
+    }
+    
+    /**
+     * 
+     * Sets the {@link CredentialCache} through which pipes and shares to the same machine and user
+     * share an SMB session. If set to null, each pipe is given its own credentials.
+     * 
+     * @param credentialCache
+     *            The credential cache to use, or null to disable sharing
+     * 
+     */
+    public static void setCredentialCache(CredentialCache credentialCache) {
+        JEXECore.credentialCache = credentialCache;
+    }
+    
+    /**
+     * 
+     * Returns the {@link JEXEMetrics} to which command transactions are reported.
      * 
-     * @param connectionInfo
-     *            Information specifying a connection to the target machine
-     * @throws IOException
-     * @throws JEXEException
+     * @return The metrics, or null if none are recorded
      * 
      */
-    public static void install(ConnectionInfo connectionInfo) throws IOException, JEXEException {
-        
-        // TODO: Copy the executable, connect to the SVCCTL pipe, and register the service on the target machine
-        
+    public static JEXEMetrics getMetrics() {
+        return JEXECore.metrics;
     }
     
     /**
      * 
-     * Stops and uninstalls JEXESVC from the machine specified by the given {@link ConnectionInfo}
-     * object. JEXESVC must be installed for remote interactions to occur. Once interactions are
-     * complete, however, it may be appropriate to remove JEXESVC from the target machine, depending
-     * on the circumstances. The advantage to uninstalling JEXESVC is that the system is left in the
-     * condition in which it existed before the remote operations took place. The disadvantage is
-     * that JEXESVC must be reinstalled for future operations, which may take some time.
+     * Sets the {@link JEXEMetrics} to which command transactions are reported. If set to null,
+     * transactions are not timed at all.
      * 
-     * @param connectionInfo
-     *            Information specifying a connection to the target machine
-     * @throws IOException
-     * @throws JEXEException
+     * @param metrics
+     *            The metrics to use, or null to record none
      * 
      */
-    public static void uninstall(ConnectionInfo connectionInfo) throws IOException, JEXEException {
+    public static void setMetrics(JEXEMetrics metrics) {
+        JEXECore.metrics = metrics;
+    }
+    
+    /**
+     * 
+     * Returns the {@link JEXETransport} over which JEXESVC's pipes are opened.
+     * 
+     * @return The transport
+     * 
+     */
+    public static JEXETransport getTransport() {
+        return JEXECore.transport;
+    }
+    
+    /**
+     * 
+     * Sets the {@link JEXETransport} over which JEXESVC's pipes are opened. Pooled sessions opened
+     * over the previous transport are kept until they expire or are invalidated.
+     * 
+     * @param transport
+     *            The transport to use, or null to restore the default of SMB named pipes
+     * 
+     */
+    public static void setTransport(JEXETransport transport) {
+        JEXECore.transport = transport != null ? transport : new SmbPipeTransport();
+    }
+    
+    /**
+     * 
+     * Returns the {@link HostCircuitBreaker} through which machines that keep failing are cut
+     * off.
+     * 
+     * @return The circuit breaker, or null if machines are never cut off
+     * 
+     */
+    public static HostCircuitBreaker getCircuitBreaker() {
+        return JEXECore.circuitBreaker;
+    }
+    
+    /**
+     * 
+     * Sets the {@link HostCircuitBreaker} through which machines that keep failing are cut off.
+     * If set to null, every call to a machine waits out its own timeouts.
+     * 
+     * @param circuitBreaker
+     *            The circuit breaker to use, or null to never cut machines off
+     * 
+     */
+    public static void setCircuitBreaker(HostCircuitBreaker circuitBreaker) {
+        JEXECore.circuitBreaker = circuitBreaker;
+    }
+    
+    /**
+     * Returns the longest time, in milliseconds, to wait for a pipe to JEXESVC to open, or zero if
+     * the wait is left to the transport.
+     */
+    public static long getConnectTimeout() {
+        return JEXECore.connectTimeout;
+    }
+    
+    /**
+     * 
+     * Sets the longest time, in milliseconds, to wait for a pipe to JEXESVC to open, whether a
+     * command pipe or a process stream. The SMB transport otherwise waits as long as JCIFS does,
+     * which is set for the whole JVM by <code>jcifs.smb.client.connTimeout</code>. A pipe that
+     * opens after the wait is given up on is closed.
+     * 
+     * @param connectTimeout
+     *            The timeout in milliseconds, or zero to leave it to the transport
+     * 
+     */
+    public static void setConnectTimeout(long connectTimeout) {
+        if (connectTimeout < 0) {
+            throw new IllegalArgumentException("connectTimeout must not be negative");
+        }
         
-        // TODO: Connect to the SVCCTL pipe, unregister the service, and delete the executable on the target machine
+        JEXECore.connectTimeout = connectTimeout;
+    }
+    
+    /**
+     * Returns the longest time, in milliseconds, that JEXESVC may send nothing while a command
+     * transaction waits on it, or zero if there is no limit.
+     */
+    public static long getReadTimeout() {
+        return JEXECore.readTimeout;
+    }
+    
+    /**
+     * 
+     * Sets the longest time, in milliseconds, that JEXESVC may send nothing while a command
+     * transaction waits on it, counted from when its commands are written and again from each line
+     * of the results. A transaction whose results stall fails with a
+     * {@link SocketTimeoutException}, and its pipe is closed; a long result that keeps arriving is
+     * never cut off, and the total time is bounded by {@link #setOperationTimeout(long)} instead.
+     * Process streams are not limited, since a process may be silent for as long as it likes.
+     * 
+     * @param readTimeout
+     *            The timeout in milliseconds, or zero for no limit
+     * 
+     */
+    public static void setReadTimeout(long readTimeout) {
+        if (readTimeout < 0) {
+            throw new IllegalArgumentException("readTimeout must not be negative");
+        }
         
+        JEXECore.readTimeout = readTimeout;
+    }
+    
+    /**
+     * Returns the longest time, in milliseconds, that a command transaction may take from start
+     * to finish, or zero if there is no limit.
+     */
+    public static long getOperationTimeout() {
+        return JEXECore.operationTimeout;
     }
     
     /**
      * 
-     * Checks for the presence of JEXESVC on the machine specified by the given
-     * {@link ConnectionInfo} object. If this method returns false, remote operations should fail.
+     * Sets the longest time, in milliseconds, that a command transaction may take from start to
+     * finish, including opening its pipe and reading its results; a pipelined transaction through
+     * {@link #transactCommands(ConnectionInfo, List)} counts as one. The connect and read timeouts
+     * are cut short as needed to meet it. Asynchronous operations take a deadline of their own,
+     * which covers every transaction they make.
      * 
-     * @param connectionInfo
-     *            Information specifying a connection to the target machine
-     * @return Whether or not JEXESVC was detected on the target machine
-     * @throws IOException
+     * @param operationTimeout
+     *            The timeout in milliseconds, or zero for no limit
      * 
      */
-    public static boolean checkInstall(ConnectionInfo connectionInfo) {
-        try {
-            new SmbNamedPipe("smb://" + connectionInfo.address + "/ipc$/pipe" + pipeUrlCommand,
-                    SmbNamedPipe.PIPE_TYPE_RDWR,
-                    connectionInfo.authentication.toNtlmPasswordAuthentication());
-        } catch (IOException e) {
-            return false;
+    public static void setOperationTimeout(long operationTimeout) {
+        if (operationTimeout < 0) {
+            throw new IllegalArgumentException("operationTimeout must not be negative");
         }
         
-        return true;
+        JEXECore.operationTimeout = operationTimeout;
+    }
+    
+    /**
+     * Returns the deadline of a transaction starting now, by {@link System#nanoTime()}, or zero if
+     * there is none.
+     */
+    private static long deadline() {
+        long operationTimeout = JEXECore.operationTimeout;
+        
+        if (operationTimeout <= 0) {
+            return 0;
+        }
+        
+        return (System.nanoTime() + operationTimeout * 1000000) | 1;
+    }
+    
+    /**
+     * Returns the given timeout cut short to meet the given deadline, if any, or throws if the
+     * deadline has already passed.
+     */
+    private static long bound(long timeout, long deadline) throws SocketTimeoutException {
+        if (deadline == 0) {
+            return timeout;
+        }
+        
+        long remaining = (deadline - System.nanoTime()) / 1000000;
+        
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Operation exceeded its deadline of "
+                    + JEXECore.operationTimeout + " ms");
+        }
+        
+        return timeout > 0 ? Math.min(timeout, remaining) : remaining;
     }
     
     /**
      * 
-     * Performs a command transaction; that is, sends the given command to the JEXESVC instance on
-     * the machine specified by the given {@link ConnectionInfo} object, and returns the result
-     * received.
+     * Opens a JEXESVC pipe through the current transport, waiting at most the given time. Where a
+     * timeout is given, the pipe is opened on the asynchronous executor while the caller waits,
+     * since the SMB transport cannot be told a timeout of its own; a pipe that opens too late is
+     * closed as soon as it does.
      * 
      * @param connectionInfo
      *            Information specifying a connection to the target machine
-     * @param command
-     *            The command to send to the target JEXESVC instance
-     * @return The result of the command
+     * @param pipeUrl
+     *            The JEXESVC pipe
+     * @param access
+     *            {@link JEXETransport#READ}, {@link JEXETransport#WRITE}, or both
+     * @param timeout
+     *            The longest time to wait in milliseconds; zero or less to leave it to the
+     *            transport
+     * @return The open pipe
      * @throws IOException
-     * @throws JEXEException
      * 
      */
-    public static String transactCommand(ConnectionInfo connectionInfo, String command)
-            throws IOException, JEXEException {
-        SmbNamedPipe commandPipe;
-        try {
-            commandPipe = new SmbNamedPipe("smb://" + connectionInfo.address + "/ipc$/pipe"
-                    + pipeUrlCommand, SmbNamedPipe.PIPE_TYPE_RDWR,
-                    connectionInfo.authentication.toNtlmPasswordAuthentication());
-        } catch (IOException e) {
-            throw new JEXEException("Unable to connect to JEXESVC on target machine", e);
-        }
-        
-        PrintWriter writer = new PrintWriter(commandPipe.getNamedPipeOutputStream());
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-                commandPipe.getNamedPipeInputStream()));
+    static JEXETransport.Pipe openPipe(ConnectionInfo connectionInfo, String pipeUrl, int access,
+            long timeout) throws IOException {
+        JEXETransport transport = JEXECore.transport;
         
-        writer.print("COMMAND " + command + "\n");
-        writer.flush();
+        if (timeout <= 0) {
+            return transport.open(connectionInfo, pipeUrl, access);
+        }
         
-        String response = reader.readLine();
+        CompletableFuture<JEXETransport.Pipe> opening = new CompletableFuture<JEXETransport.Pipe>();
         
-        if (response.startsWith("RESPONSE ")) {
-            if (response.length() > 9) {
-                int numLines;
-                try {
-                    numLines = Integer.parseInt(response.substring(9));
-                } catch (NumberFormatException e) {
-                    throw new CommandException("Protocol: invalid response line count", e);
-                }
+        JEXECore.getAsyncExecutor().execute(() -> {
+            try {
+                JEXETransport.Pipe pipe = transport.open(connectionInfo, pipeUrl, access);
                 
-                StringBuilder responseBuilder = new StringBuilder();
-                
-                for (int i = 0; i < numLines; i++) {
-                    String line = reader.readLine();
-                    
-                    if (!line.isEmpty()) {
-                        responseBuilder.append(line);
-                        
-                        if (i < numLines - 1) {
-                            responseBuilder.append("\n");
-                        }
-                    }
+                if (!opening.complete(pipe)) {
+                    JEXECore.closePipe(pipe);
                 }
-                
-                response = responseBuilder.toString();
-            } else {
-                throw new CommandException("Protocol: response line count not specified");
+            } catch (IOException | RuntimeException e) {
+                opening.completeExceptionally(e);
             }
-        } else if (response.startsWith("ERROR ")) {
-            if (response.length() > 6) {
-                throw new CommandException("Response: " + response.substring(6));
-            } else {
-                throw new CommandException("Protocol: error code not specified");
+        });
+        
+        try {
+            return opening.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (opening.completeExceptionally(e)) {
+                throw new SocketTimeoutException("Pipe to " + connectionInfo.address
+                        + " did not open within " + timeout + " ms");
             }
-        } else {
-            throw new CommandException("Protocol: unrecognized response");
+            
+            // The pipe opened just as the wait ran out
+            return opening.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            
+            if (!opening.completeExceptionally(e)) {
+                JEXECore.closePipe(opening.join());
+            }
+            
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            
+            throw (RuntimeException) e.getCause();
+        }
+    }
+    
+    private static void closePipe(JEXETransport.Pipe pipe) {
+        try {
+            if (pipe.in != null) {
+                pipe.in.close();
+            }
+            
+            if (pipe.out != null) {
+                pipe.out.close();
+            }
+        } catch (IOException e) {
         }
+    }
+    
+    /**
+     * Returns the JCIFS credentials with which to reach the given machine, shared through the
+     * credential cache if there is one.
+     */
+    static NtlmPasswordAuthentication ntlmAuthentication(ConnectionInfo connectionInfo) {
+        CredentialCache cache = JEXECore.credentialCache;
         
-        writer.close();
-        reader.close();
+        if (cache != null) {
+            return cache.get(connectionInfo);
+        }
         
-        return response;
+        return connectionInfo.authentication.toNtlmPasswordAuthentication();
+    }
+    
+    /**
+     * 
+     * Returns a JCIFS {@link SmbNamedPipe} object for the given JEXESVC pipe on the machine
+     * specified by the given {@link ConnectionInfo} object. The pipe is not opened until one of
+     * its streams is requested.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param pipeUrl
+     *            The JEXESVC pipe, relative to the machine's pipe namespace
+     * @param pipeType
+     *            The SmbNamedPipe access type
+     * @return The named pipe
+     * @throws IOException
+     * 
+     */
+    static SmbNamedPipe namedPipe(ConnectionInfo connectionInfo, String pipeUrl, int pipeType)
+            throws IOException {
+        return new SmbNamedPipe("smb://" + connectionInfo.address + "/ipc$/pipe" + pipeUrl,
+                pipeType, JEXECore.ntlmAuthentication(connectionInfo));
     }
     
     /**
@@ -184,38 +1171,7 @@ public class JEXECore {
             return null;
         }
         
-        StringBuilder builder = new StringBuilder();
-        
-        builder.append("[");
-        
-        int count = 0;
-        for (String key : map.keySet()) {
-            String value = map.get(key);
-            
-            if (key.contains(" ") || key.contains(",") || key.contains("=")) {
-                builder.append("\"").append(key).append("\"");
-            } else {
-                builder.append(key);
-            }
-            
-            builder.append("=");
-            
-            if (value.contains(" ") || value.contains(",") || value.contains("=")) {
-                builder.append("\"").append(value).append("\"");
-            } else {
-                builder.append(value);
-            }
-            
-            if (count < map.size() - 1) {
-                builder.append(",");
-            }
-            
-            count++;
-        }
-        
-        builder.append("]");
-        
-        return builder.toString();
+        return JEXERecord.write(new StringBuilder(), map).toString();
     }
     
     /**
@@ -237,8 +1193,8 @@ public class JEXECore {
         boolean quote = false;
         boolean escape = false;
         
-        String workingKey = "";
-        String workingValue = "";
+        StringBuilder workingKey = new StringBuilder();
+        StringBuilder workingValue = new StringBuilder();
         
         for (int ci = 0; ci < string.length(); ci++) {
             char c = string.charAt(ci);
@@ -265,19 +1221,19 @@ public class JEXECore {
                         quote = !quote;
                     } else {
                         if (stage) {
-                            workingValue += c;
+                            workingValue.append(c);
                         } else {
-                            workingKey += c;
+                            workingKey.append(c);
                         }
                     }
                 }
             }
             
             if (put) {
-                map.put(workingKey, workingValue);
+                map.put(workingKey.toString(), workingValue.toString());
                 
-                workingKey = "";
-                workingValue = "";
+                workingKey.setLength(0);
+                workingValue.setLength(0);
                 
                 put = false;
             }
@@ -303,6 +1259,22 @@ public class JEXECore {
          */
         public Authentication authentication;
         
+        /**
+         * Returns a key identifying this connection's machine and credentials, under which pooled
+         * resources are shared. The password enters the key only as a salted digest, since the
+         * key is held by long-lived caches.
+         */
+        String key() {
+            Authentication auth = this.authentication;
+            
+            if (auth == null) {
+                return this.address;
+            }
+            
+            return this.address + "|" + auth.domain + "|" + auth.username + "|"
+                    + auth.passwordDigest();
+        }
+        
     }
     
     /**
@@ -325,6 +1297,43 @@ public class JEXECore {
          */
         public String password;
         
+        /**
+         * A salt drawn afresh in each JVM for {@link #passwordDigest()}, so that a digest found in
+         * a heap dump cannot be looked up in a precomputed table.
+         */
+        private static final byte[] digestSalt = new byte[16];
+        
+        private volatile PasswordDigest digest;
+        
+        /**
+         * Returns a salted SHA-256 digest of the password, or null if there is none. The digest
+         * is kept until the password is changed, so that building keys stays cheap.
+         */
+        String passwordDigest() {
+            String password = this.password;
+            
+            if (password == null) {
+                return null;
+            }
+            
+            PasswordDigest digest = this.digest;
+            
+            if (digest == null || digest.password != password) {
+                byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+                byte[] salted = Arrays.copyOf(digestSalt, digestSalt.length + bytes.length);
+                System.arraycopy(bytes, 0, salted, digestSalt.length, bytes.length);
+                
+                digest = new PasswordDigest(password, ServiceBinary.sha256(salted));
+                this.digest = digest;
+            }
+            
+            return digest.value;
+        }
+        
+        static {
+            new SecureRandom().nextBytes(digestSalt);
+        }
+        
         /**
          * 
          * Returns a JCIFS {@link NtlmPasswordAuthentication} object representing the same set of
@@ -342,6 +1351,92 @@ public class JEXECore {
             return this.domain + "\\" + this.username + ":" + this.password;
         }
         
+        /**
+         * A digest along with the password it was computed from, compared by identity.
+         */
+        private static class PasswordDigest {
+            
+            final String password;
+            final String value;
+            
+            PasswordDigest(String password, String value) {
+                this.password = password;
+                this.value = value;
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Receives the result of a command transaction line by line; see
+     * {@link JEXECore#transactCommand(ConnectionInfo, String, ResponseHandler)}.
+     */
+    public interface ResponseHandler {
+        
+        /**
+         * 
+         * Handles a single non-empty line of a command result.
+         * 
+         * @param line
+         *            The line
+         * @return Whether or not to continue with the following lines
+         * @throws JEXEException
+         * 
+         */
+        boolean handleLine(String line) throws JEXEException;
+        
+    }
+    
+    /**
+     * Receives the result of a command transaction record by record; see
+     * {@link JEXECore#transactRecords(ConnectionInfo, String, RecordHandler)}.
+     */
+    public interface RecordHandler {
+        
+        /**
+         * 
+         * Handles a single record of a command result. The record is reused for the next line once
+         * this method returns.
+         * 
+         * @param record
+         *            The record
+         * @return Whether or not to continue with the following records
+         * @throws JEXEException
+         * 
+         */
+        boolean handleRecord(JEXERecord record) throws JEXEException;
+        
+    }
+    
+    /**
+     * The result of a single command within a pipelined transaction; see
+     * {@link JEXECore#transactCommands(ConnectionInfo, List)}.
+     */
+    public static class CommandResult {
+        
+        /**
+         * The command that was sent.
+         */
+        public String command;
+        
+        /**
+         * The result of the command, or null if it failed.
+         */
+        public String response;
+        
+        /**
+         * The reason the command failed, or null if it succeeded.
+         */
+        public CommandException exception;
+        
+        /**
+         * Returns whether or not the command succeeded.
+         */
+        public boolean isSuccess() {
+            return this.exception == null;
+        }
+        
     }
     
     /**
@@ -368,12 +1463,29 @@ public class JEXECore {
         
         private static final long serialVersionUID = -5987625057248628173L;
         
+        private final int errorCode;
+        
         public CommandException(String message) {
             super(message);
+            this.errorCode = -1;
         }
         
         public CommandException(String message, Throwable cause) {
             super(message, cause);
+            this.errorCode = -1;
+        }
+        
+        public CommandException(String message, int errorCode) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+        
+        /**
+         * Returns the error code with which JEXESVC answered the command, or -1 if the command
+         * failed otherwise.
+         */
+        public int getErrorCode() {
+            return this.errorCode;
         }
         
     }
@@ -0,0 +1,636 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * Runs a JEXE operation against many machines at once. Operations run on the executor returned by
+ * {@link JEXECore#getAsyncExecutor()}, with bounds on the number in flight overall and against any
+ * one machine, and each machine's operation has its own deadline. Results are streamed back as
+ * each machine finishes, so that a few unreachable machines delay only their own results.
+ * 
+ * For example, to find a process across a set of machines:
+ * 
+ * <pre>
+ * JEXEFleet.Run&lt;QueryInfo[]&gt; run = fleet.run(hosts, connectionInfo -&gt; JEXEProcess.query(
+ *         connectionInfo, queryInfo));
+ * 
+ * for (JEXEFleet.HostResult&lt;QueryInfo[]&gt; result : run) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class JEXEFleet {
+    
+    private volatile int maxConcurrency = 256;
+    private volatile int maxPerHost = 1;
+    private volatile long hostTimeout = 60000;
+    
+    /**
+     * Returns the maximum number of operations in flight across all machines.
+     */
+    public int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+    
+    /**
+     * 
+     * Sets the maximum number of operations in flight across all machines.
+     * 
+     * @param maxConcurrency
+     *            The maximum number of operations in flight
+     * 
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        
+        this.maxConcurrency = maxConcurrency;
+    }
+    
+    /**
+     * Returns the maximum number of operations in flight against a single machine.
+     */
+    public int getMaxPerHost() {
+        return this.maxPerHost;
+    }
+    
+    /**
+     * 
+     * Sets the maximum number of operations in flight against a single machine. This only matters
+     * when a machine appears more than once in a run, for instance under different credentials.
+     * 
+     * @param maxPerHost
+     *            The maximum number of operations in flight per machine
+     * 
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be at least 1");
+        }
+        
+        this.maxPerHost = maxPerHost;
+    }
+    
+    /**
+     * Returns the deadline, in milliseconds, for the operation against each machine.
+     */
+    public long getHostTimeout() {
+        return this.hostTimeout;
+    }
+    
+    /**
+     * 
+     * Sets the deadline, in milliseconds, for the operation against each machine. The deadline
+     * runs from when the operation starts, not from when the run starts; an operation that passes
+     * it is aborted and reported as failed with a {@link java.util.concurrent.TimeoutException}.
+     * 
+     * @param hostTimeout
+     *            The deadline in milliseconds; zero or less for none
+     * 
+     */
+    public void setHostTimeout(long hostTimeout) {
+        this.hostTimeout = hostTimeout;
+    }
+    
+    /**
+     * 
+     * Starts running the given operation against each of the given machines. This method returns
+     * immediately; results are collected from the returned {@link Run}.
+     * 
+     * @param hosts
+     *            Information specifying connections to the target machines
+     * @param operation
+     *            The operation to run against each machine
+     * @return The run in progress
+     * 
+     */
+    public <T> Run<T> run(Collection<ConnectionInfo> hosts, HostOperation<T> operation) {
+        return this.run(hosts, operation, null);
+    }
+    
+    /**
+     * 
+     * Starts running the given operation against each of the given machines, passing each result
+     * to the given listener as soon as it is available. This method returns immediately; results
+     * may also be collected from the returned {@link Run}.
+     * 
+     * @param hosts
+     *            Information specifying connections to the target machines
+     * @param operation
+     *            The operation to run against each machine
+     * @param listener
+     *            The listener to which each result is passed, or null for none
+     * @return The run in progress
+     * 
+     */
+    public <T> Run<T> run(Collection<ConnectionInfo> hosts, HostOperation<T> operation,
+            ResultListener<T> listener) {
+        Run<T> run = new Run<T>(this, hosts, operation, null, listener);
+        run.dispatch();
+        return run;
+    }
+    
+    /**
+     * 
+     * Starts running the given asynchronous operation against each of the given machines, passing
+     * each result to the given listener as soon as it is available. An operation counts towards
+     * the concurrency bounds until the future it returns completes, but holds a thread of the
+     * executor only while it is starting. This method returns immediately; results may also be
+     * collected from the returned {@link Run}.
+     * 
+     * @param hosts
+     *            Information specifying connections to the target machines
+     * @param operation
+     *            The operation to start against each machine
+     * @param listener
+     *            The listener to which each result is passed, or null for none
+     * @return The run in progress
+     * 
+     */
+    public <T> Run<T> runAsync(Collection<ConnectionInfo> hosts,
+            AsyncHostOperation<T> operation, ResultListener<T> listener) {
+        Run<T> run = new Run<T>(this, hosts, null, operation, listener);
+        run.dispatch();
+        return run;
+    }
+    
+    /**
+     * An operation run against a single machine.
+     */
+    public interface HostOperation<T> {
+        
+        T run(ConnectionInfo connectionInfo) throws IOException, JEXEException;
+        
+    }
+    
+    /**
+     * An operation against a single machine that completes asynchronously, such as one that waits
+     * on a remote service without holding a thread.
+     */
+    public interface AsyncHostOperation<T> {
+        
+        CompletableFuture<T> start(ConnectionInfo connectionInfo) throws IOException,
+                JEXEException;
+        
+    }
+    
+    /**
+     * Receives the result of each machine in a run as it finishes. The listener is called from
+     * the thread that finished the machine, possibly many at once, and before the result is
+     * counted towards {@link Run#completion()}.
+     */
+    public interface ResultListener<T> {
+        
+        void result(HostResult<T> result);
+        
+    }
+    
+    /**
+     * The outcome of an operation against a single machine.
+     */
+    public static class HostResult<T> {
+        
+        /**
+         * Information specifying the connection to the machine.
+         */
+        public ConnectionInfo connectionInfo;
+        
+        /**
+         * The result of the operation, if it succeeded.
+         */
+        public T result;
+        
+        /**
+         * The reason the operation failed, or null if it succeeded.
+         */
+        public Throwable failure;
+        
+        /**
+         * The time at which the operation started, in milliseconds since the epoch, or zero if it
+         * never started.
+         */
+        public long startTime;
+        
+        /**
+         * The time the operation took, in nanoseconds.
+         */
+        public long elapsed;
+        
+        /**
+         * Returns whether or not the operation succeeded.
+         */
+        public boolean isSuccess() {
+            return this.failure == null;
+        }
+        
+    }
+    
+    /**
+     * A fleet run in progress. Results become available in the order in which machines finish,
+     * through {@link #take()} or by iteration.
+     */
+    public static class Run<T> implements Iterable<HostResult<T>> {
+        
+        /**
+         * The time, in milliseconds, after which a machine refused by a saturated executor is
+         * tried again when none of the run's own operations is in flight to trigger a retry.
+         */
+        private static final long rejectionRetryDelay = 10;
+        
+        private final HostOperation<T> operation;
+        private final AsyncHostOperation<T> asyncOperation;
+        private final ResultListener<T> listener;
+        private final int maxConcurrency;
+        private final int maxPerHost;
+        private final long hostTimeout;
+        
+        private final ArrayDeque<ConnectionInfo> pending;
+        private final Map<String, Integer> perHost = new HashMap<String, Integer>();
+        private final List<CompletableFuture<T>> inFlight = new ArrayList<CompletableFuture<T>>();
+        private final BlockingQueue<HostResult<T>> results =
+                new LinkedBlockingQueue<HostResult<T>>();
+        private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+        
+        private final int total;
+        private int taken;
+        private int finished;
+        private boolean cancelled;
+        private boolean dispatching;
+        
+        Run(JEXEFleet fleet, Collection<ConnectionInfo> hosts, HostOperation<T> operation,
+                AsyncHostOperation<T> asyncOperation, ResultListener<T> listener) {
+            this.operation = operation;
+            this.asyncOperation = asyncOperation;
+            this.listener = listener;
+            this.maxConcurrency = fleet.maxConcurrency;
+            this.maxPerHost = fleet.maxPerHost;
+            this.hostTimeout = fleet.hostTimeout;
+            this.pending = new ArrayDeque<ConnectionInfo>(hosts);
+            this.total = hosts.size();
+            
+            if (this.total == 0) {
+                this.completion.complete(null);
+            }
+        }
+        
+        /**
+         * Returns the number of machines in the run.
+         */
+        public int size() {
+            return this.total;
+        }
+        
+        /**
+         * 
+         * Waits for and returns the next result.
+         * 
+         * @return The next result, or null if all results have been taken
+         * @throws InterruptedException
+         * 
+         */
+        public HostResult<T> take() throws InterruptedException {
+            synchronized (this) {
+                if (this.taken >= this.total) {
+                    return null;
+                }
+                
+                this.taken++;
+            }
+            
+            return this.results.take();
+        }
+        
+        /**
+         * 
+         * Waits up to the given time for the next result.
+         * 
+         * @param timeout
+         *            The time to wait in milliseconds
+         * @return The next result, or null if none arrived in time or all results have been taken
+         * @throws InterruptedException
+         * 
+         */
+        public HostResult<T> poll(long timeout) throws InterruptedException {
+            HostResult<T> result = this.results.poll(timeout, TimeUnit.MILLISECONDS);
+            
+            if (result != null) {
+                synchronized (this) {
+                    this.taken++;
+                }
+            }
+            
+            return result;
+        }
+        
+        /**
+         * Returns a future that completes once every machine has a result.
+         */
+        public CompletableFuture<Void> completion() {
+            return this.completion;
+        }
+        
+        /**
+         * Stops the run. Operations in flight are aborted, and machines not yet started are
+         * reported as failed with a {@link CancellationException}.
+         */
+        public void cancel() {
+            List<CompletableFuture<T>> aborted;
+            List<ConnectionInfo> skipped;
+            
+            synchronized (this) {
+                this.cancelled = true;
+                
+                aborted = new ArrayList<CompletableFuture<T>>(this.inFlight);
+                skipped = new ArrayList<ConnectionInfo>(this.pending);
+                this.pending.clear();
+            }
+            
+            for (CompletableFuture<T> future : aborted) {
+                future.cancel(true);
+            }
+            
+            for (ConnectionInfo connectionInfo : skipped) {
+                HostResult<T> result = new HostResult<T>();
+                result.connectionInfo = connectionInfo;
+                result.failure = new CancellationException("Fleet run cancelled");
+                
+                this.publish(result);
+            }
+        }
+        
+        /**
+         * Returns an iterator that blocks for each result in turn. Interrupting the iterating
+         * thread cancels the run.
+         */
+        @Override
+        public Iterator<HostResult<T>> iterator() {
+            return new Iterator<HostResult<T>>() {
+                
+                private HostResult<T> next;
+                
+                @Override
+                public boolean hasNext() {
+                    if (this.next == null) {
+                        try {
+                            this.next = Run.this.take();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            Run.this.cancel();
+                        }
+                    }
+                    
+                    return this.next != null;
+                }
+                
+                @Override
+                public HostResult<T> next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    
+                    HostResult<T> result = this.next;
+                    this.next = null;
+                    return result;
+                }
+                
+            };
+        }
+        
+        /**
+         * Starts as many pending operations as the concurrency bounds allow. Only one thread
+         * dispatches at a time; a call made while another is dispatching returns at once, as
+         * the dispatching thread checks the bounds again before it stops. Operations that
+         * complete on the dispatching thread therefore do not recurse into this method.
+         * 
+         * A machine refused by the executor, as a bounded executor that is full refuses it, is
+         * put back at the head of the queue until an operation in flight completes.
+         */
+        void dispatch() {
+            synchronized (this) {
+                if (this.dispatching) {
+                    return;
+                }
+                
+                this.dispatching = true;
+            }
+            
+            while (true) {
+                ConnectionInfo connectionInfo = null;
+                
+                synchronized (this) {
+                    if (!this.cancelled && this.inFlight.size() < this.maxConcurrency) {
+                        Iterator<ConnectionInfo> iterator = this.pending.iterator();
+                        
+                        while (iterator.hasNext()) {
+                            ConnectionInfo candidate = iterator.next();
+                            Integer count = this.perHost.get(candidate.address);
+                            
+                            if (count == null || count < this.maxPerHost) {
+                                iterator.remove();
+                                this.perHost.put(candidate.address,
+                                        count == null ? 1 : count + 1);
+                                connectionInfo = candidate;
+                                break;
+                            }
+                        }
+                    }
+                    
+                    if (connectionInfo == null) {
+                        this.dispatching = false;
+                        return;
+                    }
+                }
+                
+                RejectedExecutionException rejection = this.start(connectionInfo);
+                
+                if (rejection != null) {
+                    this.rejected(connectionInfo, rejection);
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Puts back a machine that the executor refused, and stops dispatching until an operation
+         * in flight completes, or a short delay passes if there is none. If the executor has been
+         * shut down, the machine fails instead.
+         */
+        private void rejected(ConnectionInfo connectionInfo, RejectedExecutionException e) {
+            Executor executor = JEXECore.getAsyncExecutor();
+            boolean shutdown = executor instanceof ExecutorService
+                    && ((ExecutorService) executor).isShutdown();
+            boolean cancelled;
+            boolean idle;
+            
+            synchronized (this) {
+                this.release(connectionInfo);
+                this.dispatching = false;
+                cancelled = this.cancelled;
+                
+                if (!shutdown && !cancelled) {
+                    this.pending.addFirst(connectionInfo);
+                }
+                
+                idle = this.inFlight.isEmpty();
+            }
+            
+            if (shutdown || cancelled) {
+                HostResult<T> result = new HostResult<T>();
+                result.connectionInfo = connectionInfo;
+                result.failure = shutdown ? e : new CancellationException("Fleet run cancelled");
+                
+                this.publish(result);
+            } else if (idle) {
+                AsyncCall.watch(this::dispatch, rejectionRetryDelay);
+            }
+        }
+        
+        private void release(ConnectionInfo connectionInfo) {
+            Integer count = this.perHost.get(connectionInfo.address);
+            
+            if (count <= 1) {
+                this.perHost.remove(connectionInfo.address);
+            } else {
+                this.perHost.put(connectionInfo.address, count - 1);
+            }
+        }
+        
+        /**
+         * Submits the operation for the given machine, and returns the rejection if the executor
+         * refused it.
+         */
+        private RejectedExecutionException start(ConnectionInfo connectionInfo) {
+            HostResult<T> result = new HostResult<T>();
+            result.connectionInfo = connectionInfo;
+            result.startTime = System.currentTimeMillis();
+            
+            long started = System.nanoTime();
+            CompletableFuture<T> future = this.submit(connectionInfo);
+            
+            // A refusal completes the future before submit returns
+            if (future.isCompletedExceptionally()) {
+                try {
+                    future.getNow(null);
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RejectedExecutionException) {
+                        return (RejectedExecutionException) e.getCause();
+                    }
+                } catch (CancellationException e) {
+                }
+            }
+            
+            synchronized (this) {
+                this.inFlight.add(future);
+            }
+            
+            future.whenComplete((value, failure) -> {
+                result.elapsed = System.nanoTime() - started;
+                result.result = value;
+                result.failure = failure instanceof CompletionException ? failure.getCause()
+                        : failure;
+                
+                synchronized (this) {
+                    this.inFlight.remove(future);
+                    this.release(connectionInfo);
+                }
+                
+                this.publish(result);
+                this.dispatch();
+            });
+            
+            return null;
+        }
+        
+        /**
+         * Submits the operation for the given machine to the executor. An asynchronous operation
+         * is started there, and the deadline then runs on until the future it returned completes;
+         * completing the returned future early, as a deadline or cancellation does, aborts the
+         * start if it is still running and cancels the operation's own future.
+         */
+        private CompletableFuture<T> submit(ConnectionInfo connectionInfo) {
+            if (this.asyncOperation == null) {
+                return AsyncCall.submit(() -> this.operation.run(connectionInfo),
+                        this.hostTimeout);
+            }
+            
+            CompletableFuture<CompletableFuture<T>> starting = AsyncCall.submit(
+                    () -> this.asyncOperation.start(connectionInfo), this.hostTimeout);
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            
+            starting.whenComplete((operation, failure) -> {
+                if (failure != null) {
+                    future.completeExceptionally(failure);
+                    return;
+                }
+                
+                operation.whenComplete((value, operationFailure) -> {
+                    if (operationFailure != null) {
+                        future.completeExceptionally(operationFailure);
+                    } else {
+                        future.complete(value);
+                    }
+                });
+                
+                future.whenComplete((value, futureFailure) -> operation.cancel(false));
+            });
+            
+            if (this.hostTimeout > 0) {
+                long hostTimeout = this.hostTimeout;
+                ScheduledFuture<?> deadline = AsyncCall.watch(() -> future.completeExceptionally(
+                        new TimeoutException("Operation exceeded deadline of " + hostTimeout
+                                + " ms")), hostTimeout);
+                
+                future.whenComplete((value, failure) -> deadline.cancel(false));
+            }
+            
+            future.whenComplete((value, failure) -> starting.cancel(true));
+            return future;
+        }
+        
+        private void publish(HostResult<T> result) {
+            this.results.add(result);
+            
+            try {
+                if (this.listener != null) {
+                    this.listener.result(result);
+                }
+            } finally {
+                boolean complete;
+                
+                synchronized (this) {
+                    this.finished++;
+                    complete = this.finished == this.total;
+                }
+                
+                if (complete) {
+                    this.completion.complete(null);
+                }
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,730 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jexe.core.JEXECore.CommandException;
+
+/**
+ * Counts and times every command transaction, per host and across all hosts. A transaction is
+ * split into the phases in which its time goes: opening the pipe (including any authentication
+ * the SMB session needs), writing the command, waiting for JEXESVC's first response line, and
+ * reading the rest. Latencies are kept per type of command, such as <code>kill</code> or
+ * <code>query processes</code>, in log2 histograms; failures are counted by the reason that heads
+ * their {@link CommandException}, such as <code>Protocol</code> or <code>Response: 5</code>.
+ * 
+ * Recording takes no locks: counters are {@link LongAdder}s and histogram buckets are atomic, so
+ * hosts transacting in parallel do not contend. The metrics in use are set with
+ * {@link JEXECore#setMetrics(JEXEMetrics)}; they may be read directly, through JMX once
+ * {@link #register()}ed, or as they happen by a {@link Listener}.
+ */
+public class JEXEMetrics implements JEXEMetricsMXBean {
+    
+    /**
+     * The name under which {@link #register()} registers the metrics.
+     */
+    public static final String objectName = "jexe:type=Metrics";
+    
+    private final HostMetrics total = new HostMetrics(null);
+    private final ConcurrentMap<String, HostMetrics> hosts =
+            new ConcurrentHashMap<String, HostMetrics>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    
+    /**
+     * Returns the metrics aggregated across all hosts.
+     */
+    public HostMetrics getTotal() {
+        return this.total;
+    }
+    
+    /**
+     * 
+     * Returns the metrics of a single host.
+     * 
+     * @param address
+     *            The address of the host, as given in its {@link JEXECore.ConnectionInfo}
+     * @return The host's metrics, or null if it has seen no transactions
+     * 
+     */
+    public HostMetrics getHost(String address) {
+        return this.hosts.get(address);
+    }
+    
+    /**
+     * 
+     * Adds a listener to be told of each pipe opened and each transaction completed. Listeners
+     * are called on the thread that did the work, and should return quickly.
+     * 
+     * @param listener
+     *            The listener to add
+     * 
+     */
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+    
+    /**
+     * 
+     * Removes a listener added with {@link #addListener(Listener)}.
+     * 
+     * @param listener
+     *            The listener to remove
+     * 
+     */
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+    
+    /**
+     * 
+     * Registers these metrics with the platform MBean server under {@link #objectName}.
+     * 
+     * @throws JMException
+     * 
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(objectName));
+    }
+    
+    /**
+     * 
+     * Unregisters these metrics from the platform MBean server, if registered.
+     * 
+     * @throws JMException
+     * 
+     */
+    public void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+    
+    /**
+     * Drops every host's metrics and zeroes the totals. Transactions in flight are still counted
+     * when they complete.
+     */
+    @Override
+    public void reset() {
+        this.hosts.clear();
+        this.total.reset();
+    }
+    
+    /*
+     * Recording
+     */
+    
+    void pipeOpened(String address, long time, Throwable failure) {
+        this.total.pipeOpened(time, failure);
+        this.host(address).pipeOpened(time, failure);
+        
+        for (Listener listener : this.listeners) {
+            try {
+                listener.pipeOpened(address, time, failure);
+            } catch (RuntimeException e) {
+            }
+        }
+    }
+    
+    void commandsSent(String address, int commands, long bytes, long time) {
+        this.total.commandsSent(commands, bytes, time);
+        this.host(address).commandsSent(commands, bytes, time);
+    }
+    
+    void transactionCompleted(String address, String command, long waitTime, long readTime,
+            long bytesIn, Throwable failure) {
+        String commandType = JEXEMetrics.commandType(command);
+        String reason = failure == null ? null : JEXEMetrics.reason(failure);
+        
+        this.total.transactionCompleted(commandType, waitTime, readTime, bytesIn, reason);
+        this.host(address).transactionCompleted(commandType, waitTime, readTime, bytesIn,
+                reason);
+        
+        if (this.listeners.isEmpty()) {
+            return;
+        }
+        
+        TransactionEvent event = new TransactionEvent();
+        event.address = address;
+        event.commandType = commandType;
+        event.waitTime = waitTime;
+        event.readTime = readTime;
+        event.bytesIn = bytesIn;
+        event.failure = failure;
+        event.reason = reason;
+        
+        for (Listener listener : this.listeners) {
+            try {
+                listener.transactionCompleted(event);
+            } catch (RuntimeException e) {
+            }
+        }
+    }
+    
+    private HostMetrics host(String address) {
+        HostMetrics host = this.hosts.get(address);
+        
+        if (host == null) {
+            HostMetrics created = new HostMetrics(address);
+            host = this.hosts.putIfAbsent(address, created);
+            
+            if (host == null) {
+                host = created;
+            }
+        }
+        
+        return host;
+    }
+    
+    /**
+     * Returns the type of the given command: its first word, or first two for the
+     * <code>query</code> commands. The rest of a command is arguments, which may hold credentials
+     * and are never recorded.
+     */
+    static String commandType(String command) {
+        int end = command.indexOf(' ');
+        
+        if (end < 0) {
+            return command;
+        }
+        
+        if (command.startsWith("query ")) {
+            int second = command.indexOf(' ', end + 1);
+            return second < 0 ? command : command.substring(0, second);
+        }
+        
+        return command.substring(0, end);
+    }
+    
+    /**
+     * Returns the reason under which the given failure is counted: the error code of a
+     * <code>Response</code> failure, or the kind of any other.
+     */
+    static String reason(Throwable failure) {
+        if (failure instanceof CommandException && failure.getMessage() != null) {
+            String message = failure.getMessage();
+            
+            if (message.startsWith("Response: ")) {
+                return message;
+            }
+            
+            int colon = message.indexOf(':');
+            
+            if (colon > 0) {
+                return message.substring(0, colon);
+            }
+        }
+        
+        if (failure instanceof SocketTimeoutException) {
+            return "Timeout";
+        }
+        
+        if (failure instanceof IOException) {
+            return "Transport";
+        }
+        
+        return failure.getClass().getSimpleName();
+    }
+    
+    /*
+     * JEXEMetricsMXBean
+     */
+    
+    @Override
+    public long getTransactions() {
+        return this.total.latency.getCount();
+    }
+    
+    @Override
+    public long getFailures() {
+        return this.total.failures.sum();
+    }
+    
+    @Override
+    public long getInFlight() {
+        return this.total.inFlight.sum();
+    }
+    
+    @Override
+    public long getBytesIn() {
+        return this.total.bytesIn.sum();
+    }
+    
+    @Override
+    public long getBytesOut() {
+        return this.total.bytesOut.sum();
+    }
+    
+    @Override
+    public long getPipeOpens() {
+        return this.total.pipeOpen.getCount();
+    }
+    
+    @Override
+    public long getPipeOpenFailures() {
+        return this.total.pipeOpenFailures.sum();
+    }
+    
+    @Override
+    public double getMeanLatencyMillis() {
+        return this.total.latency.getMean() / 1e6;
+    }
+    
+    @Override
+    public double getP50LatencyMillis() {
+        return this.total.latency.getPercentile(0.5) / 1e6;
+    }
+    
+    @Override
+    public double getP99LatencyMillis() {
+        return this.total.latency.getPercentile(0.99) / 1e6;
+    }
+    
+    @Override
+    public double getMeanPipeOpenMillis() {
+        return this.total.pipeOpen.getMean() / 1e6;
+    }
+    
+    @Override
+    public double getMeanWaitMillis() {
+        return this.total.wait.getMean() / 1e6;
+    }
+    
+    @Override
+    public double getMeanReadMillis() {
+        return this.total.read.getMean() / 1e6;
+    }
+    
+    @Override
+    public String[] getHosts() {
+        return new TreeSet<String>(this.hosts.keySet()).toArray(new String[0]);
+    }
+    
+    @Override
+    public String[] getCommandTypes() {
+        return new TreeSet<String>(this.total.latencyByCommand.keySet()).toArray(new String[0]);
+    }
+    
+    @Override
+    public Map<String, Long> getFailuresByReason() {
+        Map<String, Long> failures = new TreeMap<String, Long>();
+        
+        for (Map.Entry<String, LongAdder> entry : this.total.failuresByReason.entrySet()) {
+            failures.put(entry.getKey(), entry.getValue().sum());
+        }
+        
+        return failures;
+    }
+    
+    @Override
+    public Map<String, Long> getInFlightByHost() {
+        Map<String, Long> inFlight = new TreeMap<String, Long>();
+        
+        for (HostMetrics host : this.hosts.values()) {
+            inFlight.put(host.address, host.inFlight.sum());
+        }
+        
+        return inFlight;
+    }
+    
+    @Override
+    public Map<String, Double> getP99LatencyMillisByHost() {
+        Map<String, Double> latencies = new TreeMap<String, Double>();
+        
+        for (HostMetrics host : this.hosts.values()) {
+            latencies.put(host.address, host.latency.getPercentile(0.99) / 1e6);
+        }
+        
+        return latencies;
+    }
+    
+    @Override
+    public double latencyMillis(String host, String commandType, double quantile) {
+        HostMetrics metrics = host == null ? this.total : this.hosts.get(host);
+        
+        if (metrics == null) {
+            return 0;
+        }
+        
+        Histogram histogram = commandType == null ? metrics.latency
+                : metrics.latencyByCommand.get(commandType);
+        
+        return histogram == null ? 0 : histogram.getPercentile(quantile) / 1e6;
+    }
+    
+    /**
+     * Receives pipe and transaction events as they happen.
+     */
+    public interface Listener {
+        
+        /**
+         * 
+         * Called after a command pipe has been opened, or has failed to open.
+         * 
+         * @param address
+         *            The address of the host
+         * @param time
+         *            The time taken, in nanoseconds
+         * @param failure
+         *            The reason the pipe failed to open, or null if it opened
+         * 
+         */
+        default void pipeOpened(String address, long time, Throwable failure) {
+        }
+        
+        /**
+         * 
+         * Called after the result of a command has been read, or has failed.
+         * 
+         * @param event
+         *            The transaction; not reused after this method returns
+         * 
+         */
+        default void transactionCompleted(TransactionEvent event) {
+        }
+        
+    }
+    
+    /**
+     * A single completed transaction.
+     */
+    public static class TransactionEvent {
+        
+        public String address;
+        
+        /**
+         * The type of command; see {@link JEXEMetrics#getCommandTypes()}.
+         */
+        public String commandType;
+        
+        /**
+         * The time, in nanoseconds, from the command being written to the first line of its
+         * result being read. For a pipelined command, this includes the commands before it.
+         */
+        public long waitTime;
+        
+        /**
+         * The time, in nanoseconds, taken to read the rest of the result.
+         */
+        public long readTime;
+        
+        /**
+         * The bytes read from the pipe while the result was read.
+         */
+        public long bytesIn;
+        
+        /**
+         * The reason the transaction failed, or null if it succeeded.
+         */
+        public Throwable failure;
+        
+        /**
+         * The reason under which the failure was counted, or null if the transaction succeeded.
+         */
+        public String reason;
+        
+    }
+    
+    /**
+     * The metrics of a single host, or of all hosts together.
+     */
+    public static class HostMetrics {
+        
+        final String address;
+        
+        final Histogram latency = new Histogram();
+        final Histogram write = new Histogram();
+        final Histogram wait = new Histogram();
+        final Histogram read = new Histogram();
+        final Histogram pipeOpen = new Histogram();
+        final ConcurrentMap<String, Histogram> latencyByCommand =
+                new ConcurrentHashMap<String, Histogram>();
+        
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder inFlight = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder pipeOpenFailures = new LongAdder();
+        final ConcurrentMap<String, LongAdder> failuresByReason =
+                new ConcurrentHashMap<String, LongAdder>();
+        
+        HostMetrics(String address) {
+            this.address = address;
+        }
+        
+        /**
+         * Returns the address of the host, or null for the totals.
+         */
+        public String getAddress() {
+            return this.address;
+        }
+        
+        /**
+         * Returns the latency of all transactions, from the command being written to the last
+         * line of its result being read.
+         */
+        public Histogram getLatency() {
+            return this.latency;
+        }
+        
+        /**
+         * 
+         * Returns the latency of one type of command.
+         * 
+         * @param commandType
+         *            The type of command, such as <code>kill</code>
+         * @return The latency histogram, or null if no such command has completed
+         * 
+         */
+        public Histogram getLatency(String commandType) {
+            return this.latencyByCommand.get(commandType);
+        }
+        
+        /**
+         * Returns the time taken to write each batch of commands to the pipe.
+         */
+        public Histogram getWrite() {
+            return this.write;
+        }
+        
+        /**
+         * Returns the time from a command being written to the first line of its result.
+         */
+        public Histogram getWait() {
+            return this.wait;
+        }
+        
+        /**
+         * Returns the time taken to read the rest of each result.
+         */
+        public Histogram getRead() {
+            return this.read;
+        }
+        
+        /**
+         * Returns the time taken to open each command pipe, including authentication.
+         */
+        public Histogram getPipeOpen() {
+            return this.pipeOpen;
+        }
+        
+        public long getBytesIn() {
+            return this.bytesIn.sum();
+        }
+        
+        public long getBytesOut() {
+            return this.bytesOut.sum();
+        }
+        
+        /**
+         * Returns the number of commands written but not yet answered.
+         */
+        public long getInFlight() {
+            return this.inFlight.sum();
+        }
+        
+        public long getFailures() {
+            return this.failures.sum();
+        }
+        
+        /**
+         * 
+         * Returns the number of failures counted under the given reason.
+         * 
+         * @param reason
+         *            The reason, such as <code>Protocol</code> or <code>Response: 5</code>
+         * @return The number of failures
+         * 
+         */
+        public long getFailures(String reason) {
+            LongAdder failures = this.failuresByReason.get(reason);
+            return failures == null ? 0 : failures.sum();
+        }
+        
+        public long getPipeOpenFailures() {
+            return this.pipeOpenFailures.sum();
+        }
+        
+        void pipeOpened(long time, Throwable failure) {
+            this.pipeOpen.record(time);
+            
+            if (failure != null) {
+                this.pipeOpenFailures.increment();
+            }
+        }
+        
+        void commandsSent(int commands, long bytes, long time) {
+            this.write.record(time);
+            this.bytesOut.add(bytes);
+            this.inFlight.add(commands);
+        }
+        
+        void transactionCompleted(String commandType, long waitTime, long readTime,
+                long bytesIn, String reason) {
+            this.inFlight.decrement();
+            this.bytesIn.add(bytesIn);
+            this.wait.record(waitTime);
+            this.read.record(readTime);
+            this.latency.record(waitTime + readTime);
+            HostMetrics.get(this.latencyByCommand, commandType, Histogram::new).record(
+                    waitTime + readTime);
+            
+            if (reason != null) {
+                this.failures.increment();
+                HostMetrics.get(this.failuresByReason, reason, LongAdder::new).increment();
+            }
+        }
+        
+        void reset() {
+            for (Histogram histogram : new Histogram[] { this.latency, this.write, this.wait,
+                    this.read, this.pipeOpen }) {
+                histogram.reset();
+            }
+            
+            this.latencyByCommand.clear();
+            this.bytesIn.reset();
+            this.bytesOut.reset();
+            this.failures.reset();
+            this.pipeOpenFailures.reset();
+            this.failuresByReason.clear();
+        }
+        
+        /**
+         * Returns the value under the given key, creating it if absent; unlike
+         * {@link ConcurrentHashMap#computeIfAbsent}, a present value is found without locking.
+         */
+        private static <T> T get(ConcurrentMap<String, T> map, String key,
+                Supplier<T> factory) {
+            T value = map.get(key);
+            
+            if (value == null) {
+                T created = factory.get();
+                value = map.putIfAbsent(key, created);
+                
+                if (value == null) {
+                    value = created;
+                }
+            }
+            
+            return value;
+        }
+        
+    }
+    
+    /**
+     * A histogram of times in nanoseconds, in power-of-two buckets: bucket <i>i</i> counts times
+     * below 2<sup><i>i</i></sup> ns and at or above half that.
+     */
+    public static class Histogram {
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        
+        void record(long time) {
+            if (time < 0) {
+                time = 0;
+            }
+            
+            this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(time));
+            this.count.increment();
+            this.sum.add(time);
+        }
+        
+        void reset() {
+            for (int i = 0; i < 64; i++) {
+                this.buckets.set(i, 0);
+            }
+            
+            this.count.reset();
+            this.sum.reset();
+        }
+        
+        public long getCount() {
+            return this.count.sum();
+        }
+        
+        /**
+         * Returns the total time recorded, in nanoseconds.
+         */
+        public long getSum() {
+            return this.sum.sum();
+        }
+        
+        /**
+         * Returns the mean time recorded, in nanoseconds.
+         */
+        public double getMean() {
+            long count = this.count.sum();
+            return count == 0 ? 0 : (double) this.sum.sum() / count;
+        }
+        
+        /**
+         * 
+         * Returns an upper bound on the given percentile, in nanoseconds: the top of the bucket in
+         * which it falls.
+         * 
+         * @param quantile
+         *            The quantile, between 0 and 1
+         * @return The upper bound, or zero if nothing has been recorded
+         * 
+         */
+        public long getPercentile(double quantile) {
+            long[] counts = this.getBuckets();
+            long total = 0;
+            
+            for (long count : counts) {
+                total += count;
+            }
+            
+            if (total == 0) {
+                return 0;
+            }
+            
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                
+                if (seen >= rank) {
+                    return i == 63 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            
+            return Long.MAX_VALUE;
+        }
+        
+        /**
+         * Returns a copy of the bucket counts; see {@link Histogram}.
+         */
+        public long[] getBuckets() {
+            long[] counts = new long[64];
+            
+            for (int i = 0; i < 64; i++) {
+                counts[i] = this.buckets.get(i);
+            }
+            
+            return counts;
+        }
+        
+    }
+    
+}
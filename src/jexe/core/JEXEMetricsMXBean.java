@@ -0,0 +1,65 @@
+package jexe.core;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link JEXEMetrics}, registered by {@link JEXEMetrics#register()}.
+ * Times are in milliseconds; latencies are taken from log2 histograms, so percentiles are upper
+ * bounds within a factor of two.
+ */
+public interface JEXEMetricsMXBean {
+    
+    long getTransactions();
+    
+    long getFailures();
+    
+    long getInFlight();
+    
+    long getBytesIn();
+    
+    long getBytesOut();
+    
+    long getPipeOpens();
+    
+    long getPipeOpenFailures();
+    
+    double getMeanLatencyMillis();
+    
+    double getP50LatencyMillis();
+    
+    double getP99LatencyMillis();
+    
+    double getMeanPipeOpenMillis();
+    
+    double getMeanWaitMillis();
+    
+    double getMeanReadMillis();
+    
+    String[] getHosts();
+    
+    String[] getCommandTypes();
+    
+    Map<String, Long> getFailuresByReason();
+    
+    Map<String, Long> getInFlightByHost();
+    
+    Map<String, Double> getP99LatencyMillisByHost();
+    
+    /**
+     * 
+     * Returns a latency percentile for one host and type of command.
+     * 
+     * @param host
+     *            The address of the host, or null for all hosts
+     * @param commandType
+     *            The type of command, such as <code>kill</code>, or null for all commands
+     * @param quantile
+     *            The quantile, between 0 and 1
+     * @return The latency in milliseconds
+     * 
+     */
+    double latencyMillis(String host, String commandType, double quantile);
+    
+    void reset();
+    
+}
@@ -1,18 +1,39 @@
 package jexe.core;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import jexe.core.JEXECore.Authentication;
+import jexe.core.JEXECore.CommandException;
+import jexe.core.JEXECore.CommandResult;
 import jexe.core.JEXECore.ConnectionInfo;
 import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXECore.RecordHandler;
 
 /**
  * Supplements JEXECore with process manipulation capabilities.
  */
 public class JEXEProcess {
     
+    /**
+     * The time, in milliseconds, after which a machine whose JEXESVC rejected a filtered query is
+     * asked to filter again, in case JEXESVC has been upgraded by other means than
+     * {@link JEXECore#install(ConnectionInfo)}.
+     */
+    static final long unfilteredRetryTime = 600000;
+    
+    /**
+     * Machines whose JEXESVC has rejected a filtered query, by {@link ConnectionInfo#key()}, with
+     * the time, by {@link System#nanoTime()}, after which filtering is tried again.
+     */
+    private static final Map<String, Long> unfilteredHosts = new ConcurrentHashMap<String, Long>();
+    
+    private static volatile ProcessSnapshotCache snapshotCache;
+    
     private JEXEProcess() {
     }
     
@@ -32,13 +53,50 @@ public class JEXEProcess {
      */
     public static String execute(ConnectionInfo connectionInfo,
             ProcessCreationInfo processCreationInfo) throws IOException, JEXEException {
-        String result = JEXECore.transactCommand(connectionInfo, "exec "
-                + processCreationInfo.authentication + " " + processCreationInfo.startingDirectory
-                + " " + JEXECore.mapToString(processCreationInfo.environmentVariables) + " "
-                + processCreationInfo.redirectFlags + " \"" + processCreationInfo.command + "\"");
+        JEXEProcess.invalidateSnapshots(connectionInfo);
+        
+        String result;
+        
+        try {
+            result = JEXECore.transactCommand(connectionInfo, "exec "
+                    + processCreationInfo.authentication + " "
+                    + processCreationInfo.startingDirectory + " "
+                    + JEXECore.mapToString(processCreationInfo.environmentVariables) + " "
+                    + processCreationInfo.redirectFlags + " \"" + processCreationInfo.command
+                    + "\"");
+        } finally {
+            JEXEProcess.invalidateSnapshots(connectionInfo);
+        }
+        
         return result.equals("FAIL") ? null : result;
     }
     
+    /**
+     * 
+     * Attempts to execute the process described by the given {@link ProcessCreationInfo} object on
+     * the machine specified by the given {@link ConnectionInfo} object, and returns a
+     * {@link RemoteProcess} through which its redirected streams may be used.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param processCreationInfo
+     *            Information describing the process to start on the target machine
+     * @return The new process
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static RemoteProcess start(ConnectionInfo connectionInfo,
+            ProcessCreationInfo processCreationInfo) throws IOException, JEXEException {
+        String handle = JEXEProcess.execute(connectionInfo, processCreationInfo);
+        
+        if (handle == null) {
+            throw new JEXEException("Unable to execute \"" + processCreationInfo.command + "\"");
+        }
+        
+        return new RemoteProcess(connectionInfo, handle, processCreationInfo.redirectFlags);
+    }
+    
     /**
      * 
      * Attempts to kill the process described by the given PID with the given exit code.
@@ -55,110 +113,599 @@ public class JEXEProcess {
      */
     public static void kill(ConnectionInfo connectionInfo, int pid, int exitCode)
             throws IOException, JEXEException {
-        if (JEXECore.transactCommand(connectionInfo, "kill " + exitCode + " " + pid).equals("FAIL")) {
+        JEXEProcess.invalidateSnapshots(connectionInfo);
+        
+        String result;
+        
+        try {
+            result = JEXECore.transactCommand(connectionInfo, "kill " + exitCode + " " + pid);
+        } finally {
+            JEXEProcess.invalidateSnapshots(connectionInfo);
+        }
+        
+        if (result.equals("FAIL")) {
             throw new JEXEException("Unable to terminate process with PID " + pid
                     + " with exit code " + exitCode);
         }
     }
     
+    /**
+     * 
+     * Attempts to execute a process asynchronously; see
+     * {@link #execute(ConnectionInfo, ProcessCreationInfo)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param processCreationInfo
+     *            Information describing the process to start on the target machine
+     * @param timeout
+     *            The deadline for the operation in milliseconds; zero or less for none
+     * @return A future for the JEXESVC process handle for the new process
+     * 
+     */
+    public static CompletableFuture<String> executeAsync(ConnectionInfo connectionInfo,
+            ProcessCreationInfo processCreationInfo, long timeout) {
+        return AsyncCall.submit(() -> JEXEProcess.execute(connectionInfo, processCreationInfo),
+                timeout);
+    }
+    
+    /**
+     * 
+     * Attempts to kill a process asynchronously; see {@link #kill(ConnectionInfo, int, int)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param pid
+     *            The PID of the process to kill
+     * @param exitCode
+     *            The exit code with which the process should exit
+     * @param timeout
+     *            The deadline for the operation in milliseconds; zero or less for none
+     * @return A future that completes once the process has been killed
+     * 
+     */
+    public static CompletableFuture<Void> killAsync(ConnectionInfo connectionInfo, int pid,
+            int exitCode, long timeout) {
+        return AsyncCall.submit(() -> {
+            JEXEProcess.kill(connectionInfo, pid, exitCode);
+            return null;
+        }, timeout);
+    }
+    
+    /**
+     * 
+     * Attempts to kill each of the processes described by the given PIDs with the given exit code.
+     * The kill commands are pipelined on a single command pipe, so the whole set costs roughly one
+     * round-trip; see {@link JEXECore#transactCommands(ConnectionInfo, List)}. A process that
+     * cannot be killed does not stop the others.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param pids
+     *            The PIDs of the processes to kill
+     * @param exitCode
+     *            The exit code with which the processes should exit
+     * @return The outcome for each PID, in the order given
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static KillResult[] killAll(ConnectionInfo connectionInfo, int[] pids, int exitCode)
+            throws IOException, JEXEException {
+        JEXEProcess.invalidateSnapshots(connectionInfo);
+        
+        List<String> commands = new ArrayList<String>(pids.length);
+        
+        for (int pid : pids) {
+            commands.add("kill " + exitCode + " " + pid);
+        }
+        
+        List<CommandResult> commandResults;
+        
+        try {
+            commandResults = JEXECore.transactCommands(connectionInfo, commands);
+        } finally {
+            JEXEProcess.invalidateSnapshots(connectionInfo);
+        }
+        
+        KillResult[] results = new KillResult[pids.length];
+        
+        for (int i = 0; i < pids.length; i++) {
+            CommandResult commandResult = commandResults.get(i);
+            
+            KillResult result = new KillResult();
+            result.pid = pids[i];
+            
+            if (!commandResult.isSuccess()) {
+                result.exception = commandResult.exception;
+            } else if (commandResult.response.equals("FAIL")) {
+                result.exception = new JEXEException("Unable to terminate process with PID "
+                        + pids[i] + " with exit code " + exitCode);
+            }
+            
+            results[i] = result;
+        }
+        
+        return results;
+    }
+    
+    /**
+     * 
+     * Attempts to kill every process matching the given query with the given exit code; see
+     * {@link #killAll(ConnectionInfo, int[], int)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param queryInfo
+     *            The query selecting the processes to kill
+     * @param exitCode
+     *            The exit code with which the processes should exit
+     * @return The outcome for each matching process
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static KillResult[] killAll(ConnectionInfo connectionInfo, QueryInfo queryInfo,
+            int exitCode) throws IOException, JEXEException {
+        QueryInfo[] matches = JEXEProcess.query(connectionInfo, queryInfo);
+        
+        if (matches == null || matches.length == 0) {
+            return new KillResult[0];
+        }
+        
+        int[] pids = new int[matches.length];
+        
+        for (int i = 0; i < matches.length; i++) {
+            pids[i] = matches[i].pid;
+        }
+        
+        return JEXEProcess.killAll(connectionInfo, pids, exitCode);
+    }
+    
+    /**
+     * 
+     * Attempts to kill every process matching the given query with the given exit code. Use
+     * {@link #killAll(ConnectionInfo, QueryInfo, int)} to learn which processes could not be
+     * killed, and why.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param queryInfo
+     *            The query selecting the processes to kill
+     * @param exitCode
+     *            The exit code with which the processes should exit
+     * @return Whether or not every matching process was killed
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
     public static boolean killByQuery(ConnectionInfo connectionInfo, QueryInfo queryInfo,
             int exitCode) throws IOException, JEXEException {
         boolean result = true;
         
-        for (QueryInfo query : JEXEProcess.query(connectionInfo, queryInfo)) {
-            try {
-                JEXEProcess.kill(connectionInfo, query.pid, exitCode);
-            } catch (JEXEException e) {
-                e.printStackTrace();
-                result = false;
-            }
+        for (KillResult killResult : JEXEProcess.killAll(connectionInfo, queryInfo, exitCode)) {
+            result &= killResult.isSuccess();
         }
         
         return result;
     }
     
+    /**
+     * 
+     * Queries processes on the machine specified by the given {@link ConnectionInfo} object, and
+     * returns the matches as an indexed {@link ProcessTable}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param processQueryInfo
+     *            The query to perform
+     * @return The matching processes
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static ProcessTable queryProcesses(ConnectionInfo connectionInfo,
+            ProcessQueryInfo processQueryInfo) throws IOException, JEXEException {
+        ProcessTable.Builder builder = new ProcessTable.Builder();
+        
+        JEXEProcess.query(connectionInfo, processQueryInfo, info -> {
+            builder.add((ProcessQueryInfo) info);
+            return true;
+        });
+        
+        return builder.build();
+    }
+    
+    /**
+     * 
+     * Queries windows on the machine specified by the given {@link ConnectionInfo} object, and
+     * returns the matches as an indexed {@link WindowTable}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param windowQueryInfo
+     *            The query to perform
+     * @return The matching windows
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static WindowTable queryWindows(ConnectionInfo connectionInfo,
+            WindowQueryInfo windowQueryInfo) throws IOException, JEXEException {
+        WindowTable.Builder builder = new WindowTable.Builder();
+        
+        JEXEProcess.query(connectionInfo, windowQueryInfo, info -> {
+            builder.add((WindowQueryInfo) info);
+            return true;
+        });
+        
+        return builder.build();
+    }
+    
     public static QueryInfo[] query(ConnectionInfo connectionInfo, QueryInfo queryInfo)
             throws IOException, JEXEException {
+        List<QueryInfo> results = new ArrayList<QueryInfo>();
+        
+        JEXEProcess.query(connectionInfo, queryInfo, info -> results.add(info));
+        
+        if (queryInfo instanceof ProcessQueryInfo) {
+            return results.toArray(new ProcessQueryInfo[results.size()]);
+        } else if (queryInfo instanceof WindowQueryInfo) {
+            return results.toArray(new WindowQueryInfo[results.size()]);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * 
+     * Queries processes or windows on the machine specified by the given {@link ConnectionInfo}
+     * object, passing each match to the given {@link QueryHandler} as its record comes off the
+     * pipe. No more than one record is held in memory at a time, and the handler may stop the
+     * query early. If a {@link ProcessSnapshotCache} is set, matches are instead taken from a
+     * snapshot of the machine's full table.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param queryInfo
+     *            The query to perform; a {@link ProcessQueryInfo} or a {@link WindowQueryInfo}
+     * @param handler
+     *            The handler to which to pass matching processes or windows
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static void query(ConnectionInfo connectionInfo, QueryInfo queryInfo,
+            QueryHandler handler) throws IOException, JEXEException {
+        ProcessSnapshotCache snapshotCache = JEXEProcess.snapshotCache;
+        
+        if (snapshotCache != null) {
+            QueryInfo prototype;
+            
+            if (queryInfo instanceof ProcessQueryInfo) {
+                prototype = new ProcessQueryInfo();
+            } else if (queryInfo instanceof WindowQueryInfo) {
+                prototype = new WindowQueryInfo();
+            } else {
+                return;
+            }
+            
+            QueryTable table = snapshotCache.get(connectionInfo, prototype);
+            
+            for (int row : table.select(queryInfo)) {
+                if (!handler.handle(table.get(row))) {
+                    return;
+                }
+            }
+            
+            return;
+        }
+        
+        JEXEProcess.queryDirect(connectionInfo, queryInfo, handler);
+    }
+    
+    /**
+     * Fetches the full process or window table, bypassing any snapshot cache.
+     */
+    static QueryTable fetch(ConnectionInfo connectionInfo, QueryInfo prototype)
+            throws IOException, JEXEException {
+        if (prototype instanceof ProcessQueryInfo) {
+            ProcessTable.Builder builder = new ProcessTable.Builder();
+            JEXEProcess.queryDirect(connectionInfo, prototype, info -> {
+                builder.add((ProcessQueryInfo) info);
+                return true;
+            });
+            return builder.build();
+        }
+        
+        WindowTable.Builder builder = new WindowTable.Builder();
+        JEXEProcess.queryDirect(connectionInfo, prototype, info -> {
+            builder.add((WindowQueryInfo) info);
+            return true;
+        });
+        return builder.build();
+    }
+    
+    private static void queryDirect(ConnectionInfo connectionInfo, QueryInfo queryInfo,
+            QueryHandler handler) throws IOException, JEXEException {
         if (queryInfo instanceof ProcessQueryInfo) {
             ProcessQueryInfo processQueryInfo = (ProcessQueryInfo) queryInfo;
-            HashSet<ProcessQueryInfo> resultSet = new HashSet<ProcessQueryInfo>();
-            String rawQuery = JEXECore.transactCommand(connectionInfo, "query processes");
             
-            for (String processInfoLine : rawQuery.split("\n")) {
-                Map<String, String> processInfoMap = JEXECore.stringToMap(processInfoLine);
-                
+            JEXEProcess.transactQuery(connectionInfo, "query processes", queryInfo, processInfo -> {
                 if (processQueryInfo.pid > 0) {
-                    if (processQueryInfo.pid != Integer.parseInt(processInfoMap.get("pid"))) {
-                        continue;
+                    if (processQueryInfo.pid != processInfo.getInt("pid")) {
+                        return true;
                     }
                 }
                 
                 if (processQueryInfo.name != null) {
-                    if (!processQueryInfo.name.equalsIgnoreCase(processInfoMap.get("name"))) {
-                        continue;
+                    if (!processInfo.equalsIgnoreCase("name", processQueryInfo.name)) {
+                        return true;
                     }
                 }
                 
                 if (processQueryInfo.path != null) {
-                    if (!processQueryInfo.path.equalsIgnoreCase(processInfoMap.get("path"))) {
-                        continue;
+                    if (!processInfo.equalsIgnoreCase("path", processQueryInfo.path)) {
+                        return true;
                     }
                 }
                 
                 if (processQueryInfo.domain != null) {
-                    if (!processQueryInfo.domain.equalsIgnoreCase(processInfoMap.get("domain"))) {
-                        continue;
+                    if (!processInfo.equalsIgnoreCase("domain", processQueryInfo.domain)) {
+                        return true;
                     }
                 }
                 
                 if (processQueryInfo.user != null) {
-                    if (!processQueryInfo.user.equalsIgnoreCase(processInfoMap.get("user"))) {
-                        continue;
+                    if (!processInfo.equalsIgnoreCase("user", processQueryInfo.user)) {
+                        return true;
                     }
                 }
                 
                 ProcessQueryInfo completeInfo = new ProcessQueryInfo();
-                completeInfo.pid = Integer.parseInt(processInfoMap.get("pid"));
-                completeInfo.name = processInfoMap.get("name");
-                completeInfo.path = processInfoMap.get("path");
-                completeInfo.domain = processInfoMap.get("domain");
-                completeInfo.user = processInfoMap.get("user");
+                completeInfo.pid = processInfo.getInt("pid");
+                completeInfo.name = processInfo.get("name");
+                completeInfo.path = processInfo.get("path");
+                completeInfo.domain = processInfo.get("domain");
+                completeInfo.user = processInfo.get("user");
                 
-                resultSet.add(completeInfo);
-            }
-            
-            return resultSet.toArray(new ProcessQueryInfo[resultSet.size()]);
+                return handler.handle(completeInfo);
+            });
         } else if (queryInfo instanceof WindowQueryInfo) {
             WindowQueryInfo windowQueryInfo = (WindowQueryInfo) queryInfo;
-            HashSet<WindowQueryInfo> resultSet = new HashSet<WindowQueryInfo>();
-            String rawQuery = JEXECore.transactCommand(connectionInfo, "query windows");
             
-            for (String windowInfoLine : rawQuery.split("\n")) {
-                Map<String, String> windowInfoMap = JEXECore.stringToMap(windowInfoLine);
-                
+            JEXEProcess.transactQuery(connectionInfo, "query windows", queryInfo, windowInfo -> {
                 if (windowQueryInfo.title != null) {
-                    if (!windowQueryInfo.title.equalsIgnoreCase(windowInfoMap.get("title"))) {
-                        continue;
+                    if (!windowInfo.equalsIgnoreCase("title", windowQueryInfo.title)) {
+                        return true;
                     }
                 }
                 
                 if (windowQueryInfo.pid > 0) {
-                    if (windowQueryInfo.pid != Integer.parseInt(windowInfoMap.get("pid"))) {
-                        continue;
+                    if (windowQueryInfo.pid != windowInfo.getInt("pid")) {
+                        return true;
                     }
                 }
                 
                 WindowQueryInfo completeInfo = new WindowQueryInfo();
-                completeInfo.title = windowInfoMap.get("title");
-                completeInfo.pid = Integer.parseInt(windowInfoMap.get("pid"));
+                completeInfo.title = windowInfo.get("title");
+                completeInfo.pid = windowInfo.getInt("pid");
+                
+                return handler.handle(completeInfo);
+            });
+        }
+    }
+    
+    /**
+     * 
+     * Performs a query transaction, asking JEXESVC to filter the table itself where it is able to.
+     * The predicates of the given {@link QueryInfo} are appended to the command as a JEXESVC map,
+     * for instance <code>query processes [pid=4]</code>, for JEXESVC to match as the client does:
+     * PIDs exactly, and strings ignoring case. Services that predate filtering reject the extra
+     * argument with {@link JEXECore#ERROR_UNRECOGNIZED_COMMAND}; the bare command is then sent
+     * instead, and the machine is remembered for {@link #unfilteredRetryTime}, or until JEXESVC is
+     * installed again, so that later queries go straight to the bare command. Any other error is
+     * the query's own. Either way, the handler still checks every record it is given.
+     * 
+     */
+    private static void transactQuery(ConnectionInfo connectionInfo, String command,
+            QueryInfo queryInfo, RecordHandler handler) throws IOException, JEXEException {
+        String filter = JEXEProcess.filterOf(queryInfo);
+        
+        if (filter != null && JEXEProcess.canFilter(connectionInfo)) {
+            boolean[] delivered = new boolean[1];
+            
+            try {
+                JEXECore.transactRecords(connectionInfo, command + " " + filter, record -> {
+                    delivered[0] = true;
+                    return handler.handleRecord(record);
+                });
+                return;
+            } catch (CommandException e) {
+                if (delivered[0] || e.getErrorCode() != JEXECore.ERROR_UNRECOGNIZED_COMMAND) {
+                    throw e;
+                }
                 
-                resultSet.add(completeInfo);
+                unfilteredHosts.put(connectionInfo.key(),
+                        System.nanoTime() + unfilteredRetryTime * 1000000);
+            }
+        }
+        
+        JEXECore.transactRecords(connectionInfo, command, handler);
+    }
+    
+    private static boolean canFilter(ConnectionInfo connectionInfo) {
+        Long retryAt = unfilteredHosts.get(connectionInfo.key());
+        
+        if (retryAt == null) {
+            return true;
+        } else if (System.nanoTime() - retryAt >= 0) {
+            unfilteredHosts.remove(connectionInfo.key(), retryAt);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Forgets that JEXESVC on the given machine could not filter queries or stream events; called
+     * when JEXESVC is installed or removed.
+     */
+    static void invalidateCapabilities(ConnectionInfo connectionInfo) {
+        unfilteredHosts.remove(connectionInfo.key());
+        ProcessSubscription.invalidateCapabilities(connectionInfo);
+    }
+    
+    /**
+     * Encodes the predicates of the given query as a JEXESVC map, or returns null if it has none.
+     */
+    static String filterOf(QueryInfo queryInfo) {
+        StringBuilder builder = new StringBuilder();
+        JEXERecord.Writer writer = new JEXERecord.Writer(builder);
+        boolean empty = true;
+        
+        if (queryInfo.pid > 0) {
+            writer.put("pid", Integer.toString(queryInfo.pid));
+            empty = false;
+        }
+        
+        if (queryInfo instanceof ProcessQueryInfo) {
+            ProcessQueryInfo processQueryInfo = (ProcessQueryInfo) queryInfo;
+            
+            String[][] predicates = { { "name", processQueryInfo.name },
+                    { "path", processQueryInfo.path }, { "domain", processQueryInfo.domain },
+                    { "user", processQueryInfo.user } };
+            
+            for (String[] predicate : predicates) {
+                if (predicate[1] != null) {
+                    writer.put(predicate[0], predicate[1]);
+                    empty = false;
+                }
             }
+        } else if (queryInfo instanceof WindowQueryInfo) {
+            WindowQueryInfo windowQueryInfo = (WindowQueryInfo) queryInfo;
             
-            return resultSet.toArray(new WindowQueryInfo[resultSet.size()]);
+            if (windowQueryInfo.title != null) {
+                writer.put("title", windowQueryInfo.title);
+                empty = false;
+            }
         }
         
-        return null;
+        return empty ? null : writer.end().toString();
+    }
+    
+    /**
+     * 
+     * Queries processes or windows asynchronously; see {@link #query(ConnectionInfo, QueryInfo)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param queryInfo
+     *            The query to perform
+     * @param timeout
+     *            The deadline for the operation in milliseconds; zero or less for none
+     * @return A future for the matching processes or windows
+     * 
+     */
+    public static CompletableFuture<QueryInfo[]> queryAsync(ConnectionInfo connectionInfo,
+            QueryInfo queryInfo, long timeout) {
+        return AsyncCall.submit(() -> JEXEProcess.query(connectionInfo, queryInfo), timeout);
+    }
+    
+    /**
+     * 
+     * Subscribes to the processes starting and exiting on the machine specified by the given
+     * {@link ConnectionInfo} object, with a window of 256 events and, for JEXESVC versions that
+     * cannot stream events, a poll every second; see
+     * {@link #subscribe(ConnectionInfo, ProcessQueryInfo, ProcessEventListener, int, long)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param filter
+     *            The processes of interest, or null for all
+     * @param listener
+     *            The listener to which events are delivered
+     * @return The subscription, which must be closed when no longer needed
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static ProcessSubscription subscribe(ConnectionInfo connectionInfo,
+            ProcessQueryInfo filter, ProcessEventListener listener)
+            throws IOException, JEXEException {
+        return JEXEProcess.subscribe(connectionInfo, filter, listener, 256, 1000);
+    }
+    
+    /**
+     * 
+     * Subscribes to the processes starting and exiting on the machine specified by the given
+     * {@link ConnectionInfo} object. JEXESVC streams the events on a pipe held by the
+     * subscription, in batches no larger than the window; see {@link ProcessSubscription}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param filter
+     *            The processes of interest, or null for all
+     * @param listener
+     *            The listener to which events are delivered
+     * @param window
+     *            The number of events JEXESVC may send before the listener has handled them
+     * @param pollInterval
+     *            The time between polls in milliseconds, if JEXESVC cannot stream events
+     * @return The subscription, which must be closed when no longer needed
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static ProcessSubscription subscribe(ConnectionInfo connectionInfo,
+            ProcessQueryInfo filter, ProcessEventListener listener, int window, long pollInterval)
+            throws IOException, JEXEException {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        
+        if (pollInterval < 1) {
+            throw new IllegalArgumentException("pollInterval must be at least 1");
+        }
+        
+        return ProcessSubscription.start(connectionInfo, filter, listener, window, pollInterval);
+    }
+    
+    /**
+     * 
+     * Returns the {@link ProcessSnapshotCache} from which queries are answered.
+     * 
+     * @return The snapshot cache, or null if queries always go to JEXESVC
+     * 
+     */
+    public static ProcessSnapshotCache getSnapshotCache() {
+        return JEXEProcess.snapshotCache;
+    }
+    
+    /**
+     * 
+     * Sets the {@link ProcessSnapshotCache} from which queries are answered. There is none by
+     * default, as a snapshot may miss processes started by other means since it was fetched.
+     * 
+     * @param snapshotCache
+     *            The snapshot cache to use, or null to send every query to JEXESVC
+     * 
+     */
+    public static void setSnapshotCache(ProcessSnapshotCache snapshotCache) {
+        JEXEProcess.snapshotCache = snapshotCache;
+    }
+    
+    /**
+     * Drops the snapshots of the given machine. Called both before a command that starts or kills
+     * processes, so that no caller joins a fetch already in flight, and after it, so that none
+     * keeps a snapshot fetched while the command was outstanding.
+     */
+    private static void invalidateSnapshots(ConnectionInfo connectionInfo) {
+        ProcessSnapshotCache snapshotCache = JEXEProcess.snapshotCache;
+        
+        if (snapshotCache != null) {
+            snapshotCache.invalidate(connectionInfo);
+        }
     }
     
     /**
@@ -230,6 +777,128 @@ public class JEXEProcess {
         
     }
     
+    /**
+     * The outcome of killing a single process; see {@link JEXEProcess#killAll(ConnectionInfo,
+     * int[], int)}.
+     */
+    public static class KillResult {
+        
+        /**
+         * The PID of the process.
+         */
+        public int pid;
+        
+        /**
+         * The reason the process could not be killed, or null if it was.
+         */
+        public JEXEException exception;
+        
+        /**
+         * Returns whether or not the process was killed.
+         */
+        public boolean isSuccess() {
+            return this.exception == null;
+        }
+        
+    }
+    
+    /**
+     * Receives the results of a query one at a time; see
+     * {@link JEXEProcess#query(ConnectionInfo, QueryInfo, QueryHandler)}.
+     */
+    public interface QueryHandler {
+        
+        /**
+         * 
+         * Handles a single matching process or window.
+         * 
+         * @param queryInfo
+         *            The complete information for the process or window
+         * @return Whether or not to continue with the query
+         * @throws JEXEException
+         * 
+         */
+        boolean handle(QueryInfo queryInfo) throws JEXEException;
+        
+    }
+    
+    /**
+     * A process starting or exiting; see {@link ProcessSubscription}.
+     */
+    public static class ProcessEvent {
+        
+        /**
+         * The {@link #type} of an event for a process that has started.
+         */
+        public static final int STARTED = 1;
+        
+        /**
+         * The {@link #type} of an event for a process that has exited.
+         */
+        public static final int EXITED = 2;
+        
+        /**
+         * The {@link #type} of an event standing in for {@link #lost} events that JEXESVC could
+         * not hold while the listener was behind. Only {@link #lost} is set.
+         */
+        public static final int LOST = 3;
+        
+        public int type;
+        public int pid;
+        public String name;
+        public String domain;
+        public String user;
+        
+        /**
+         * The exit code of a process that has exited, or null if it is not known.
+         */
+        public Integer exitCode;
+        
+        /**
+         * The time of the event, in milliseconds since the epoch.
+         */
+        public long time;
+        
+        /**
+         * The number of events lost.
+         */
+        public int lost;
+        
+    }
+    
+    /**
+     * Receives the events of a {@link ProcessSubscription}.
+     */
+    public interface ProcessEventListener {
+        
+        /**
+         * 
+         * Handles a batch of events, in the order in which they happened. No more events are
+         * requested from JEXESVC until this returns.
+         * 
+         * @param connectionInfo
+         *            Information specifying the connection to the machine
+         * @param events
+         *            The events
+         * 
+         */
+        void processEvents(ConnectionInfo connectionInfo, List<ProcessEvent> events);
+        
+        /**
+         * 
+         * Handles the end of a subscription for any reason other than it being closed.
+         * 
+         * @param connectionInfo
+         *            Information specifying the connection to the machine
+         * @param e
+         *            The reason
+         * 
+         */
+        default void subscriptionFailed(ConnectionInfo connectionInfo, Exception e) {
+        }
+        
+    }
+    
     public static abstract class QueryInfo {
         
         public int pid;
@@ -0,0 +1,447 @@
+package jexe.core;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A reusable view of a single JEXESVC map, such as <code>[pid=4,name=System]</code>, parsed in
+ * place from the bytes it arrived in. Parsing records only where each key and value lies; nothing
+ * is decoded or copied until a key or value is asked for as a String, and lookups, comparisons
+ * and integer values work directly on the bytes. A record is only valid until the buffer it was
+ * parsed from is reused; in {@link JEXECore#transactRecords(JEXECore.ConnectionInfo, String,
+ * JEXECore.RecordHandler)}, that is until the handler returns.
+ * 
+ * Parsing follows {@link JEXECore#stringToMap(String)}: a key and its value are separated by
+ * <code>=</code>, entries by <code>,</code>, and double quotes protect spaces, commas, and equals
+ * signs without appearing in the result. Unlike stringToMap, entries with neither a key nor a
+ * value, as in <code>[]</code>, are skipped. Records are written with {@link #write(StringBuilder,
+ * Map)} or a {@link Writer}, which produce the format that {@link JEXECore#mapToString(Map)} does.
+ */
+public class JEXERecord {
+    
+    private final Charset charset;
+    
+    private byte[] bytes;
+    private int size;
+    
+    private int[] keyStart = new int[8];
+    private int[] keyEnd = new int[8];
+    private int[] valueStart = new int[8];
+    private int[] valueEnd = new int[8];
+    private boolean[] raw = new boolean[8];
+    
+    public JEXERecord() {
+        this(JEXECore.charset);
+    }
+    
+    JEXERecord(Charset charset) {
+        this.charset = charset;
+    }
+    
+    /**
+     * 
+     * Parses the JEXESVC map in the given range of bytes into this record, replacing its previous
+     * contents. The bytes are not copied, and must not change while the record is in use.
+     * 
+     * @param bytes
+     *            The buffer holding the map
+     * @param offset
+     *            The start of the map within the buffer
+     * @param length
+     *            The length of the map
+     * @return This record
+     * 
+     */
+    public JEXERecord parse(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.size = 0;
+        
+        boolean open = false;
+        boolean stage = false;
+        boolean quote = false;
+        boolean clean = true;
+        
+        int start = 0;
+        int separator = -1;
+        
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte c = bytes[i];
+            
+            if (c == '"') {
+                if (open) {
+                    quote = !quote;
+                    clean = false;
+                }
+            } else if (quote) {
+                continue;
+            } else if (c == '[' && !open) {
+                // As in stringToMap, a map reopened after a value carries on with a value
+                open = true;
+                clean = true;
+                start = i + 1;
+                separator = stage ? i : -1;
+            } else if (!open) {
+                continue;
+            } else if (c == '=') {
+                if (stage) {
+                    clean = false;
+                } else {
+                    stage = true;
+                    separator = i;
+                }
+            } else if (c == ',' || c == ']') {
+                this.add(start, separator, i, clean);
+                
+                if (c == ']') {
+                    open = false;
+                } else {
+                    stage = false;
+                }
+                
+                clean = true;
+                start = i + 1;
+                separator = -1;
+            }
+        }
+        
+        return this;
+    }
+    
+    private void add(int start, int separator, int end, boolean clean) {
+        if (start == end && (separator < 0 || separator == end - 1)) {
+            return;
+        }
+        
+        if (this.size == this.keyStart.length) {
+            int capacity = this.size * 2;
+            this.keyStart = grow(this.keyStart, capacity);
+            this.keyEnd = grow(this.keyEnd, capacity);
+            this.valueStart = grow(this.valueStart, capacity);
+            this.valueEnd = grow(this.valueEnd, capacity);
+            
+            boolean[] raw = new boolean[capacity];
+            System.arraycopy(this.raw, 0, raw, 0, this.size);
+            this.raw = raw;
+        }
+        
+        this.keyStart[this.size] = start;
+        
+        if (separator < 0) {
+            this.keyEnd[this.size] = end;
+            this.valueStart[this.size] = end;
+        } else if (separator < start) {
+            this.keyEnd[this.size] = start;
+            this.valueStart[this.size] = start;
+        } else {
+            this.keyEnd[this.size] = separator;
+            this.valueStart[this.size] = separator + 1;
+        }
+        
+        this.valueEnd[this.size] = end;
+        this.raw[this.size] = !clean;
+        this.size++;
+    }
+    
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+    
+    /**
+     * Returns the number of entries in the record.
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the key of the entry at the given index.
+     */
+    public String key(int index) {
+        return this.decode(this.keyStart[index], this.keyEnd[index], this.raw[index]);
+    }
+    
+    /**
+     * Returns the value of the entry at the given index.
+     */
+    public String value(int index) {
+        return this.decode(this.valueStart[index], this.valueEnd[index], this.raw[index]);
+    }
+    
+    /**
+     * 
+     * Returns the index of the entry with the given key. As with a map, if a key appears more than
+     * once, the last entry wins.
+     * 
+     * @param key
+     *            The key for which to search
+     * @return The index of the entry, or -1 if there is none
+     * 
+     */
+    public int indexOf(String key) {
+        for (int i = this.size - 1; i >= 0; i--) {
+            if (this.matches(this.keyStart[i], this.keyEnd[i], this.raw[i], key, false)) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * 
+     * Returns the value for the given key.
+     * 
+     * @param key
+     *            The key for which to search
+     * @return The value, or null if there is no such key
+     * 
+     */
+    public String get(String key) {
+        int index = this.indexOf(key);
+        return index < 0 ? null : this.value(index);
+    }
+    
+    /**
+     * 
+     * Returns the value for the given key as a decimal integer, without decoding it.
+     * 
+     * @param key
+     *            The key for which to search
+     * @return The value
+     * @throws NumberFormatException
+     *             If there is no such key, or its value is not a decimal integer
+     * 
+     */
+    public int getInt(String key) {
+        int index = this.indexOf(key);
+        
+        if (index < 0) {
+            throw new NumberFormatException("No value for " + key);
+        }
+        
+        int start = this.valueStart[index];
+        int end = this.valueEnd[index];
+        
+        // Plain runs of up to nine digits cannot overflow; leave anything else to parseInt
+        if (this.raw[index] || end == start || end - start > 9) {
+            return Integer.parseInt(this.value(index));
+        }
+        
+        int value = 0;
+        
+        for (int i = start; i < end; i++) {
+            int digit = this.bytes[i] - '0';
+            
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(this.value(index));
+            }
+            
+            value = value * 10 + digit;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * 
+     * Checks whether the value for the given key equals the given string, ignoring case, without
+     * decoding it.
+     * 
+     * @param key
+     *            The key for which to search
+     * @param value
+     *            The string with which to compare the value
+     * @return Whether or not the value matches; false if there is no such key
+     * 
+     */
+    public boolean equalsIgnoreCase(String key, String value) {
+        int index = this.indexOf(key);
+        
+        if (index < 0) {
+            return false;
+        }
+        
+        return this.matches(this.valueStart[index], this.valueEnd[index], this.raw[index], value,
+                true);
+    }
+    
+    /**
+     * Returns the contents of the record as a new Map&lt;String, String&gt;.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        
+        for (int i = 0; i < this.size; i++) {
+            map.put(this.key(i), this.value(i));
+        }
+        
+        return map;
+    }
+    
+    private boolean matches(int start, int end, boolean raw, String string, boolean ignoreCase) {
+        if (raw || end - start != string.length()) {
+            return this.slowMatches(start, end, raw, string, ignoreCase);
+        }
+        
+        for (int i = 0; i < string.length(); i++) {
+            int b = this.bytes[start + i];
+            char c = string.charAt(i);
+            
+            if (b < 0 || c > 0x7F) {
+                return this.slowMatches(start, end, raw, string, ignoreCase);
+            }
+            
+            if (b != c && !(ignoreCase && toLower(b) == toLower(c))) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private boolean slowMatches(int start, int end, boolean raw, String string,
+            boolean ignoreCase) {
+        // Only multi-byte characters or quoting can make the byte and char lengths differ
+        if (!raw && string.length() > end - start) {
+            return false;
+        }
+        
+        String decoded = this.decode(start, end, raw);
+        return ignoreCase ? decoded.equalsIgnoreCase(string) : decoded.equals(string);
+    }
+    
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+    
+    private String decode(int start, int end, boolean raw) {
+        if (!raw) {
+            return new String(this.bytes, start, end - start, this.charset);
+        }
+        
+        // Strip quotes, and the equals signs that stringToMap drops outside of them
+        byte[] stripped = new byte[end - start];
+        int length = 0;
+        boolean quote = false;
+        
+        for (int i = start; i < end; i++) {
+            byte c = this.bytes[i];
+            
+            if (c == '"') {
+                quote = !quote;
+            } else if (c != '=' || quote) {
+                stripped[length++] = c;
+            }
+        }
+        
+        return new String(stripped, 0, length, this.charset);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        Writer writer = new Writer(builder);
+        
+        for (int i = 0; i < this.size; i++) {
+            writer.put(this.key(i), this.value(i));
+        }
+        
+        writer.end();
+        
+        return builder.toString();
+    }
+    
+    /**
+     * 
+     * Appends the given map to the given StringBuilder as a JEXESVC map.
+     * 
+     * @param builder
+     *            The StringBuilder to which to append
+     * @param map
+     *            The map to append
+     * @return The given StringBuilder
+     * 
+     */
+    public static StringBuilder write(StringBuilder builder, Map<String, String> map) {
+        Writer writer = new Writer(builder);
+        
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writer.put(entry.getKey(), entry.getValue());
+        }
+        
+        writer.end();
+        
+        return builder;
+    }
+    
+    /**
+     * Writes a JEXESVC map entry by entry, straight into a StringBuilder, for callers that have no
+     * Map to hand.
+     */
+    public static class Writer {
+        
+        private final StringBuilder builder;
+        private boolean first = true;
+        
+        public Writer(StringBuilder builder) {
+            this.builder = builder;
+            this.builder.append('[');
+        }
+        
+        /**
+         * 
+         * Appends an entry, quoting its key and value where needed.
+         * 
+         * @param key
+         *            The key of the entry
+         * @param value
+         *            The value of the entry
+         * @return This writer
+         * 
+         */
+        public Writer put(String key, String value) {
+            if (!this.first) {
+                this.builder.append(',');
+            }
+            
+            this.first = false;
+            
+            append(this.builder, key);
+            this.builder.append('=');
+            append(this.builder, value);
+            
+            return this;
+        }
+        
+        /**
+         * 
+         * Ends the map.
+         * 
+         * @return The StringBuilder to which the map was written
+         * 
+         */
+        public StringBuilder end() {
+            return this.builder.append(']');
+        }
+        
+        private static void append(StringBuilder builder, String string) {
+            boolean quote = false;
+            
+            for (int i = 0; i < string.length() && !quote; i++) {
+                char c = string.charAt(i);
+                quote = c == ' ' || c == ',' || c == '=' || c == ']';
+            }
+            
+            if (quote) {
+                builder.append('"').append(string).append('"');
+            } else {
+                builder.append(string);
+            }
+        }
+        
+    }
+    
+}
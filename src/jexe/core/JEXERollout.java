@@ -0,0 +1,491 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXEFleet.HostResult;
+
+/**
+ * Installs, uninstalls or checks JEXESVC across many machines, in waves. Each wave runs through a
+ * {@link JEXEFleet}, so machines within a wave proceed in parallel under its concurrency bounds,
+ * and each machine's whole sequence shares one SVCCTL binding and SCM handle. Waves are given as
+ * cumulative fractions of the machines; for instance, <code>{ 0.01, 0.1, 1.0 }</code> first
+ * rolls out to 1% of the machines, then to the rest of the first 10%, and then to the rest. If
+ * more than {@link #getMaxFailureRate()} of the machines in a wave fail, later waves are skipped.
+ * 
+ * Progress is streamed to a {@link ProgressListener} as each machine takes each step. Listeners
+ * are called from the threads doing the work, possibly many at once.
+ */
+public class JEXERollout {
+    
+    private volatile JEXEFleet fleet = new JEXEFleet();
+    private volatile double[] waves = { 1.0 };
+    private volatile double maxFailureRate = 0.1;
+    private volatile ProgressListener listener;
+    
+    /**
+     * Returns the fleet through which each wave runs.
+     */
+    public JEXEFleet getFleet() {
+        return this.fleet;
+    }
+    
+    /**
+     * 
+     * Sets the fleet through which each wave runs; its concurrency bounds and host timeout apply
+     * to every wave.
+     * 
+     * @param fleet
+     *            The fleet to use
+     * 
+     */
+    public void setFleet(JEXEFleet fleet) {
+        this.fleet = fleet;
+    }
+    
+    /**
+     * Returns the cumulative fractions of machines at which each wave ends.
+     */
+    public double[] getWaves() {
+        return this.waves.clone();
+    }
+    
+    /**
+     * 
+     * Sets the cumulative fractions of machines at which each wave ends. The fractions must
+     * increase, and the last must be 1.
+     * 
+     * @param waves
+     *            The wave boundaries
+     * 
+     */
+    public void setWaves(double... waves) {
+        if (waves.length == 0 || waves[waves.length - 1] != 1.0) {
+            throw new IllegalArgumentException("The last wave must end at 1.0");
+        }
+        
+        for (int i = 0; i < waves.length; i++) {
+            if (waves[i] <= 0 || i > 0 && waves[i] <= waves[i - 1]) {
+                throw new IllegalArgumentException("Waves must be positive and increasing");
+            }
+        }
+        
+        this.waves = waves.clone();
+    }
+    
+    /**
+     * Returns the fraction of machines in a wave that may fail before later waves are skipped.
+     */
+    public double getMaxFailureRate() {
+        return this.maxFailureRate;
+    }
+    
+    /**
+     * 
+     * Sets the fraction of machines in a wave that may fail before later waves are skipped.
+     * 
+     * @param maxFailureRate
+     *            The failure rate; 1 or more to never skip
+     * 
+     */
+    public void setMaxFailureRate(double maxFailureRate) {
+        this.maxFailureRate = maxFailureRate;
+    }
+    
+    /**
+     * Returns the listener to which progress is reported, or null if there is none.
+     */
+    public ProgressListener getProgressListener() {
+        return this.listener;
+    }
+    
+    /**
+     * 
+     * Sets the listener to which progress is reported.
+     * 
+     * @param listener
+     *            The listener, or null for none
+     * 
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * 
+     * Starts the given action against the given machines. This method returns immediately; the
+     * outcome is collected from the returned {@link Rollout}.
+     * 
+     * @param hosts
+     *            Information specifying connections to the target machines, in rollout order
+     * @param action
+     *            The action to take on each machine
+     * @return The rollout in progress
+     * 
+     */
+    public Rollout start(Collection<ConnectionInfo> hosts, Action action) {
+        Rollout rollout = new Rollout(this, new ArrayList<ConnectionInfo>(hosts), action);
+        rollout.nextWave();
+        return rollout;
+    }
+    
+    /**
+     * The actions a rollout may take on each machine.
+     */
+    public enum Action {
+        
+        /**
+         * Installs and starts JEXESVC, then checks that it responds; see
+         * {@link JEXECore#install(ConnectionInfo)}.
+         */
+        INSTALL,
+        
+        /**
+         * Stops and removes JEXESVC; see {@link JEXECore#uninstall(ConnectionInfo)}.
+         */
+        UNINSTALL,
+        
+        /**
+         * Checks that JEXESVC responds; see {@link JEXECore#checkInstall(ConnectionInfo)}.
+         */
+        CHECK
+        
+    }
+    
+    /**
+     * The steps reported for each machine. Every machine ends with exactly one of
+     * {@link #SUCCEEDED}, {@link #FAILED} or {@link #SKIPPED}.
+     */
+    public enum Step {
+        
+        CONNECTED, UPLOADED, UPLOAD_SKIPPED, SERVICE_STOPPED, SERVICE_REGISTERED, SERVICE_STARTED,
+        SERVICE_DELETED, FILES_DELETED, VERIFIED, SUCCEEDED, FAILED, SKIPPED
+        
+    }
+    
+    /**
+     * Receives progress events from a rollout.
+     */
+    public interface ProgressListener {
+        
+        void progress(ProgressEvent event);
+        
+    }
+    
+    /**
+     * A step taken on a single machine.
+     */
+    public static class ProgressEvent {
+        
+        /**
+         * Information specifying the connection to the machine.
+         */
+        public ConnectionInfo connectionInfo;
+        
+        /**
+         * The index of the wave in which the machine is.
+         */
+        public int wave;
+        
+        /**
+         * The step taken.
+         */
+        public Step step;
+        
+        /**
+         * The reason the machine failed, for {@link Step#FAILED}; otherwise null.
+         */
+        public Throwable failure;
+        
+        /**
+         * The time of the event, in milliseconds since the epoch.
+         */
+        public long time;
+        
+    }
+    
+    /**
+     * The outcome of a rollout.
+     */
+    public static class Summary {
+        
+        public int succeeded;
+        public int failed;
+        public int skipped;
+        
+        /**
+         * Whether or not later waves were skipped because of failures.
+         */
+        public boolean halted;
+        
+        /**
+         * The result for each machine that failed.
+         */
+        public List<HostResult<Void>> failures = new ArrayList<HostResult<Void>>();
+        
+    }
+    
+    /**
+     * A rollout in progress.
+     */
+    public static class Rollout {
+        
+        private final List<ConnectionInfo> hosts;
+        private final Action action;
+        private final JEXEFleet fleet;
+        private final double maxFailureRate;
+        private final ProgressListener listener;
+        private final int[] bounds;
+        
+        private final Summary summary = new Summary();
+        private final CompletableFuture<Summary> completion = new CompletableFuture<Summary>();
+        
+        private int wave;
+        private int collected;
+        private int failed;
+        private JEXEFleet.Run<Void> run;
+        private boolean cancelled;
+        
+        Rollout(JEXERollout rollout, List<ConnectionInfo> hosts, Action action) {
+            this.hosts = hosts;
+            this.action = action;
+            this.fleet = rollout.fleet;
+            this.maxFailureRate = rollout.maxFailureRate;
+            this.listener = rollout.listener;
+            this.bounds = Rollout.bounds(rollout.waves, hosts.size());
+        }
+        
+        /**
+         * Converts wave fractions to end indices, dropping waves that would be empty.
+         */
+        private static int[] bounds(double[] waves, int total) {
+            int[] bounds = new int[waves.length];
+            int count = 0;
+            
+            for (double wave : waves) {
+                int bound = Math.min(total, (int) Math.ceil(wave * total));
+                
+                if (bound > (count == 0 ? 0 : bounds[count - 1])) {
+                    bounds[count++] = bound;
+                }
+            }
+            
+            int[] trimmed = new int[count];
+            System.arraycopy(bounds, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        
+        /**
+         * Returns a future that completes with the summary once the rollout has finished.
+         */
+        public CompletableFuture<Summary> completion() {
+            return this.completion;
+        }
+        
+        /**
+         * Stops the rollout. Machines in flight are aborted, and later waves are skipped.
+         */
+        public void cancel() {
+            JEXEFleet.Run<Void> run;
+            
+            synchronized (this) {
+                this.cancelled = true;
+                run = this.run;
+            }
+            
+            if (run != null) {
+                run.cancel();
+            }
+        }
+        
+        void nextWave() {
+            int wave;
+            
+            synchronized (this) {
+                wave = this.wave;
+                
+                if (this.cancelled || wave >= this.bounds.length) {
+                    this.finish(wave);
+                    return;
+                }
+                
+                this.collected = 0;
+                this.failed = 0;
+            }
+            
+            int start = wave == 0 ? 0 : this.bounds[wave - 1];
+            List<ConnectionInfo> hosts = this.hosts.subList(start, this.bounds[wave]);
+            
+            // Each machine's outcome is reported as it arrives, on the thread that finished it
+            JEXEFleet.Run<Void> run = this.fleet.runAsync(hosts,
+                    connectionInfo -> this.perform(connectionInfo, wave),
+                    result -> this.collect(result, wave, hosts.size()));
+            
+            boolean cancelled;
+            
+            synchronized (this) {
+                // A wave run on the calling thread may already have moved on to the next
+                if (this.wave == wave) {
+                    this.run = run;
+                }
+                
+                cancelled = this.cancelled;
+            }
+            
+            if (cancelled) {
+                run.cancel();
+            }
+        }
+        
+        /**
+         * Records the outcome of a single machine, and starts the next wave once the last machine
+         * of this one has finished.
+         */
+        private void collect(HostResult<Void> result, int wave, int size) {
+            if (result.isSuccess()) {
+                this.report(result.connectionInfo, wave, Step.SUCCEEDED, null);
+            } else if (result.failure instanceof CancellationException) {
+                this.report(result.connectionInfo, wave, Step.SKIPPED, null);
+            } else {
+                this.report(result.connectionInfo, wave, Step.FAILED, result.failure);
+            }
+            
+            boolean last;
+            
+            synchronized (this) {
+                if (result.isSuccess()) {
+                    this.summary.succeeded++;
+                } else if (result.failure instanceof CancellationException) {
+                    this.summary.skipped++;
+                } else {
+                    this.failed++;
+                    this.summary.failed++;
+                    this.summary.failures.add(result);
+                }
+                
+                last = ++this.collected == size;
+                
+                if (last) {
+                    this.wave++;
+                    
+                    if (this.wave < this.bounds.length
+                            && this.failed > this.maxFailureRate * size) {
+                        this.summary.halted = true;
+                        this.cancelled = true;
+                    }
+                }
+            }
+            
+            if (last) {
+                this.nextWave();
+            }
+        }
+        
+        /**
+         * Completes the rollout, reporting every machine not reached as skipped.
+         */
+        private void finish(int wave) {
+            int start = wave == 0 ? 0 : this.bounds[Math.min(wave, this.bounds.length) - 1];
+            
+            for (ConnectionInfo connectionInfo : this.hosts.subList(start, this.hosts.size())) {
+                this.summary.skipped++;
+                this.report(connectionInfo, wave, Step.SKIPPED, null);
+            }
+            
+            this.completion.complete(this.summary);
+        }
+        
+        /**
+         * Starts the action on a single machine. Waits on the machine's service hold no thread;
+         * the steps after each wait run on the thread that ends it.
+         */
+        private CompletableFuture<Void> perform(ConnectionInfo connectionInfo, int wave)
+                throws IOException, JEXEException {
+            if (this.action == Action.CHECK) {
+                this.verify(connectionInfo, wave);
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            ServiceManager manager = ServiceManager.open(connectionInfo);
+            CompletableFuture<Void> change;
+            
+            try {
+                this.report(connectionInfo, wave, Step.CONNECTED, null);
+                
+                Consumer<Step> steps = step -> this.report(connectionInfo, wave, step, null);
+                change = this.action == Action.INSTALL ? JEXECore.installAsync(connectionInfo,
+                        manager, steps) : JEXECore.uninstallAsync(connectionInfo, manager, steps);
+            } catch (RuntimeException e) {
+                Rollout.close(manager);
+                throw e;
+            }
+            
+            CompletableFuture<Void> performed = new CompletableFuture<Void>();
+            
+            change.whenComplete((result, failure) -> {
+                Rollout.close(manager);
+                
+                try {
+                    if (failure != null) {
+                        performed.completeExceptionally(failure);
+                        return;
+                    } else if (this.action == Action.INSTALL) {
+                        this.verify(connectionInfo, wave);
+                    }
+                    
+                    performed.complete(null);
+                } catch (JEXEException | RuntimeException e) {
+                    performed.completeExceptionally(e);
+                }
+            });
+            
+            // A machine aborted by its deadline or by cancellation stops at its next step
+            performed.whenComplete((result, failure) -> change.cancel(false));
+            return performed;
+        }
+        
+        private void verify(ConnectionInfo connectionInfo, int wave) throws JEXEException {
+            if (!JEXECore.checkInstall(connectionInfo)) {
+                throw new JEXEException("JEXESVC was not detected on " + connectionInfo.address);
+            }
+            
+            this.report(connectionInfo, wave, Step.VERIFIED, null);
+        }
+        
+        /**
+         * Closes the given service manager once the action on its machine is over, ignoring
+         * failures; the outcome of the action stands either way.
+         */
+        private static void close(ServiceManager manager) {
+            try {
+                manager.close();
+            } catch (IOException e) {
+            }
+        }
+        
+        private void report(ConnectionInfo connectionInfo, int wave, Step step,
+                Throwable failure) {
+            if (this.listener == null) {
+                return;
+            }
+            
+            ProgressEvent event = new ProgressEvent();
+            event.connectionInfo = connectionInfo;
+            event.wave = wave;
+            event.step = step;
+            event.failure = failure;
+            event.time = System.currentTimeMillis();
+            
+            this.listener.progress(event);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,427 @@
+package jexe.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * Keeps authenticated command pipes to JEXESVC instances open between transactions. Sessions are
+ * pooled per {@link ConnectionInfo}; that is, per address and set of credentials. Opening a pipe
+ * costs an SMB open and, often, an authentication exchange, which may well outweigh the command
+ * itself, so {@link JEXECore#transactCommand(ConnectionInfo, String)} borrows from the pool
+ * returned by {@link JEXECore#getSessionPool()} rather than opening a pipe for each command.
+ */
+public class JEXESessionPool {
+    
+    private final ConcurrentMap<String, HostSessions> hosts =
+            new ConcurrentHashMap<String, HostSessions>();
+    
+    private volatile int maxPerHost = 4;
+    private volatile long idleTimeout = 60000;
+    private volatile long borrowTimeout = 30000;
+    private volatile boolean healthCheck = true;
+    
+    private volatile long lastEviction = System.currentTimeMillis();
+    
+    /**
+     * Returns the maximum number of sessions, idle or in use, kept open to a single machine.
+     */
+    public int getMaxPerHost() {
+        return this.maxPerHost;
+    }
+    
+    /**
+     * 
+     * Sets the maximum number of sessions, idle or in use, kept open to a single machine. Callers
+     * that borrow beyond this limit wait for a session to be released.
+     * 
+     * @param maxPerHost
+     *            The maximum number of sessions per machine
+     * 
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be at least 1");
+        }
+        
+        this.maxPerHost = maxPerHost;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, after which an unused session is closed.
+     */
+    public long getIdleTimeout() {
+        return this.idleTimeout;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, after which an unused session is closed. Idle sessions are
+     * evicted as the pool is used, or explicitly by {@link #evictIdle()}.
+     * 
+     * @param idleTimeout
+     *            The idle timeout in milliseconds
+     * 
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, that a caller waits for a session when the machine is
+     * already at {@link #getMaxPerHost()}.
+     */
+    public long getBorrowTimeout() {
+        return this.borrowTimeout;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, that a caller waits for a session when the machine is already
+     * at {@link #getMaxPerHost()}.
+     * 
+     * @param borrowTimeout
+     *            The borrow timeout in milliseconds
+     * 
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+    
+    /**
+     * Returns whether idle sessions are checked before being handed out.
+     */
+    public boolean isHealthCheck() {
+        return this.healthCheck;
+    }
+    
+    /**
+     * 
+     * Sets whether idle sessions are checked before being handed out. The check peeks at the pipe,
+     * which costs a round-trip but is far cheaper than opening a new pipe, and discards sessions
+     * that JEXESVC has dropped or that hold stray data.
+     * 
+     * @param healthCheck
+     *            Whether or not to check idle sessions
+     * 
+     */
+    public void setHealthCheck(boolean healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+    
+    /**
+     * 
+     * Opens sessions to the machine specified by the given {@link ConnectionInfo} object ahead of
+     * time, so that the first transactions do not pay for opening pipes.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param sessions
+     *            The number of sessions to have open; limited by {@link #getMaxPerHost()}
+     * @throws JEXEException
+     * 
+     */
+    public void warmUp(ConnectionInfo connectionInfo, int sessions) throws JEXEException {
+        String key = connectionInfo.key();
+        HostSessions host = this.host(key);
+        
+        while (true) {
+            int generation;
+            
+            synchronized (host) {
+                if (host.removed) {
+                    generation = -1;
+                } else if (host.total >= Math.min(sessions, this.maxPerHost)) {
+                    return;
+                } else {
+                    host.total++;
+                    generation = host.generation;
+                }
+            }
+            
+            if (generation < 0) {
+                host = this.host(key);
+                continue;
+            }
+            
+            this.release(this.open(host, connectionInfo, generation,
+                    JEXECore.getConnectTimeout()));
+        }
+    }
+    
+    /**
+     * 
+     * Closes all idle sessions to the machine specified by the given {@link ConnectionInfo}
+     * object. Sessions in use are closed when they are released.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * 
+     */
+    public void invalidate(ConnectionInfo connectionInfo) {
+        String key = connectionInfo.key();
+        HostSessions host = this.hosts.get(key);
+        
+        if (host != null) {
+            this.closeAll(this.drain(key, host));
+        }
+    }
+    
+    /**
+     * Closes all sessions that have been idle for longer than {@link #getIdleTimeout()}, and
+     * forgets machines that are left with no sessions open.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<CommandSession> expired = new ArrayList<CommandSession>();
+        
+        this.lastEviction = now;
+        
+        for (Map.Entry<String, HostSessions> entry : this.hosts.entrySet()) {
+            HostSessions host = entry.getValue();
+            
+            synchronized (host) {
+                Iterator<CommandSession> iterator = host.idle.iterator();
+                int evicted = 0;
+                
+                while (iterator.hasNext()) {
+                    CommandSession session = iterator.next();
+                    
+                    if (now - session.getLastUsed() > this.idleTimeout) {
+                        iterator.remove();
+                        expired.add(session);
+                        evicted++;
+                    }
+                }
+                
+                if (evicted > 0) {
+                    host.total -= evicted;
+                    host.notifyAll();
+                }
+                
+                this.retire(entry.getKey(), host);
+            }
+        }
+        
+        this.closeAll(expired);
+    }
+    
+    /**
+     * Closes all idle sessions held by the pool.
+     */
+    public void close() {
+        for (Map.Entry<String, HostSessions> entry : this.hosts.entrySet()) {
+            this.closeAll(this.drain(entry.getKey(), entry.getValue()));
+        }
+    }
+    
+    /**
+     * 
+     * Borrows a session to the machine specified by the given {@link ConnectionInfo} object,
+     * opening one if none are idle. Every borrowed session must be handed back through
+     * {@link #release(CommandSession)}.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param connectTimeout
+     *            The longest time to wait for a new pipe to open in milliseconds, if one must be
+     *            opened; zero or less to leave it to the transport
+     * @return The session
+     * @throws JEXEException
+     * 
+     */
+    CommandSession borrow(ConnectionInfo connectionInfo, long connectTimeout)
+            throws JEXEException {
+        this.evictIfDue();
+        
+        String key = connectionInfo.key();
+        HostSessions host = this.host(key);
+        long deadline = System.currentTimeMillis() + this.borrowTimeout;
+        
+        while (true) {
+            CommandSession session = null;
+            int generation = -1;
+            
+            synchronized (host) {
+                while (!host.removed && host.idle.isEmpty() && host.total >= this.maxPerHost) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    
+                    if (remaining <= 0) {
+                        throw new JEXEException("Timed out waiting for a session to "
+                                + connectionInfo.address);
+                    }
+                    
+                    try {
+                        host.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new JEXEException("Interrupted waiting for a session to "
+                                + connectionInfo.address, e);
+                    }
+                }
+                
+                if (!host.removed) {
+                    if (!host.idle.isEmpty()) {
+                        session = host.idle.pollFirst();
+                    } else {
+                        host.total++;
+                    }
+                    
+                    generation = host.generation;
+                }
+            }
+            
+            // The machine was forgotten after it was looked up; start over with a fresh entry
+            if (generation < 0) {
+                host = this.host(key);
+                continue;
+            }
+            
+            if (session == null) {
+                return this.open(host, connectionInfo, generation, connectTimeout);
+            }
+            
+            if (System.currentTimeMillis() - session.getLastUsed() > this.idleTimeout
+                    || (this.healthCheck && !session.checkHealth())) {
+                this.discard(host, session);
+                continue;
+            }
+            
+            return session;
+        }
+    }
+    
+    /**
+     * 
+     * Hands a borrowed session back to the pool. Sessions that have seen a transport or protocol
+     * error, or that were borrowed before the machine was invalidated, are closed rather than
+     * pooled.
+     * 
+     * @param session
+     *            The session to release
+     * 
+     */
+    void release(CommandSession session) {
+        HostSessions host = this.host(session.key);
+        
+        synchronized (host) {
+            if (!session.isBroken() && session.generation == host.generation) {
+                host.idle.addFirst(session);
+                host.notify();
+                return;
+            }
+        }
+        
+        this.discard(host, session);
+    }
+    
+    private CommandSession open(HostSessions host, ConnectionInfo connectionInfo, int generation,
+            long connectTimeout) throws JEXEException {
+        CommandSession session;
+        try {
+            session = CommandSession.open(connectionInfo, connectTimeout);
+        } catch (JEXEException e) {
+            synchronized (host) {
+                host.total--;
+                host.notify();
+            }
+            
+            throw e;
+        }
+        
+        session.pool = this;
+        session.generation = generation;
+        
+        return session;
+    }
+    
+    private void discard(HostSessions host, CommandSession session) {
+        synchronized (host) {
+            host.total--;
+            host.notify();
+        }
+        
+        session.close();
+    }
+    
+    private List<CommandSession> drain(String key, HostSessions host) {
+        synchronized (host) {
+            List<CommandSession> drained = host.drain();
+            
+            this.retire(key, host);
+            
+            return drained;
+        }
+    }
+    
+    /**
+     * Forgets a machine once it has no sessions open, idle or borrowed. Callers must hold the
+     * lock on the entry; anyone still holding a reference sees it marked removed and looks the
+     * machine up again, so per-host limits are never split across two entries.
+     */
+    private void retire(String key, HostSessions host) {
+        if (host.total == 0) {
+            host.removed = true;
+            this.hosts.remove(key, host);
+        }
+    }
+    
+    private void evictIfDue() {
+        if (System.currentTimeMillis() - this.lastEviction > this.idleTimeout / 2) {
+            this.evictIdle();
+        }
+    }
+    
+    private HostSessions host(String key) {
+        HostSessions host = this.hosts.get(key);
+        
+        if (host == null) {
+            HostSessions created = new HostSessions();
+            host = this.hosts.putIfAbsent(key, created);
+            
+            if (host == null) {
+                host = created;
+            }
+        }
+        
+        return host;
+    }
+    
+    private void closeAll(List<CommandSession> sessions) {
+        for (CommandSession session : sessions) {
+            session.close();
+        }
+    }
+    
+    /**
+     * The sessions open to a single machine. Idle sessions are kept most-recently-used first, so
+     * that a lightly loaded host settles on a few warm pipes and lets the rest expire.
+     */
+    private static class HostSessions {
+        
+        final ArrayDeque<CommandSession> idle = new ArrayDeque<CommandSession>();
+        int total;
+        int generation;
+        boolean removed;
+        
+        synchronized List<CommandSession> drain() {
+            List<CommandSession> drained = new ArrayList<CommandSession>(this.idle);
+            
+            this.total -= drained.size();
+            this.generation++;
+            this.idle.clear();
+            this.notifyAll();
+            
+            return drained;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,70 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jexe.core.JEXECore.ConnectionInfo;
+
+/**
+ * Opens the pipes over which JEXE talks to JEXESVC: the command pipe, and the standard stream
+ * pipes of processes started with redirection. The default, {@link SmbPipeTransport}, opens SMB
+ * named pipes under <code>IPC$</code>; another may be set with
+ * {@link JEXECore#setTransport(JEXETransport)} to carry the same protocol some other way, or to
+ * reach a simulated JEXESVC.
+ * 
+ * Installation is not affected; JEXESVC is always installed over <code>ADMIN$</code> and SVCCTL.
+ */
+public interface JEXETransport {
+    
+    /**
+     * Specify as the access to open a pipe for reading.
+     */
+    int READ = 0x1;
+    
+    /**
+     * Specify as the access to open a pipe for writing.
+     */
+    int WRITE = 0x2;
+    
+    /**
+     * 
+     * Opens a JEXESVC pipe on the machine specified by the given {@link ConnectionInfo} object.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param pipeUrl
+     *            The JEXESVC pipe, such as <code>/jexesvc/cmd</code> or
+     *            <code>/jexesvc/stdout/1234</code>
+     * @param access
+     *            {@link #READ}, {@link #WRITE}, or both
+     * @return The open pipe
+     * @throws IOException
+     * 
+     */
+    Pipe open(ConnectionInfo connectionInfo, String pipeUrl, int access) throws IOException;
+    
+    /**
+     * An open pipe, as a stream in each direction in which it was opened. Closing the streams
+     * closes the pipe.
+     */
+    public static class Pipe {
+        
+        /**
+         * The stream from which to read, or null if the pipe was not opened for reading.
+         */
+        public final InputStream in;
+        
+        /**
+         * The stream to which to write, or null if the pipe was not opened for writing.
+         */
+        public final OutputStream out;
+        
+        public Pipe(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,146 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads lines from a pipe as ranges of a reusable byte buffer, so that a line need not be decoded
+ * unless it is wanted as a String. Lines end at LF, CR, or CR LF, as with
+ * {@link java.io.BufferedReader#readLine()}. A line's bytes stay valid only until the next call to
+ * {@link #nextLine()}.
+ */
+class LineReader {
+    
+    private final InputStream in;
+    
+    private byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private boolean skipLF;
+    
+    private int lineStart;
+    private int lineEnd;
+    
+    private long bytesRead;
+    
+    LineReader(InputStream in) {
+        this.in = in;
+    }
+    
+    /**
+     * 
+     * Advances to the next line.
+     * 
+     * @return Whether or not there was another line; false at end-of-stream
+     * @throws IOException
+     * 
+     */
+    boolean nextLine() throws IOException {
+        int scan = this.position;
+        
+        while (true) {
+            if (this.skipLF && scan < this.limit) {
+                this.skipLF = false;
+                
+                if (this.buffer[scan] == '\n') {
+                    this.position = ++scan;
+                }
+            }
+            
+            for (; scan < this.limit; scan++) {
+                byte b = this.buffer[scan];
+                
+                if (b == '\n' || b == '\r') {
+                    this.lineStart = this.position;
+                    this.lineEnd = scan;
+                    this.position = scan + 1;
+                    this.skipLF = b == '\r';
+                    return true;
+                }
+            }
+            
+            int scanned = scan - this.position;
+            
+            if (!this.fill()) {
+                if (this.limit > this.position) {
+                    this.lineStart = this.position;
+                    this.lineEnd = this.limit;
+                    this.position = this.limit;
+                    return true;
+                }
+                
+                return false;
+            }
+            
+            scan = this.position + scanned;
+        }
+    }
+    
+    /**
+     * Reads more data into the buffer, compacting or growing it first as needed, and returns
+     * whether any was read.
+     */
+    private boolean fill() throws IOException {
+        if (this.position > 0) {
+            this.limit -= this.position;
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit);
+            this.position = 0;
+        }
+        
+        if (this.limit == this.buffer.length) {
+            byte[] grown = new byte[this.buffer.length * 2];
+            System.arraycopy(this.buffer, 0, grown, 0, this.limit);
+            this.buffer = grown;
+        }
+        
+        int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        
+        if (read <= 0) {
+            return false;
+        }
+        
+        this.limit += read;
+        this.bytesRead += read;
+        return true;
+    }
+    
+    /**
+     * Returns the number of bytes read from the stream so far.
+     */
+    long bytesRead() {
+        return this.bytesRead;
+    }
+    
+    byte[] buffer() {
+        return this.buffer;
+    }
+    
+    int lineStart() {
+        return this.lineStart;
+    }
+    
+    int lineEnd() {
+        return this.lineEnd;
+    }
+    
+    boolean isLineEmpty() {
+        return this.lineStart == this.lineEnd;
+    }
+    
+    String lineString(Charset charset) {
+        return new String(this.buffer, this.lineStart, this.lineEnd - this.lineStart, charset);
+    }
+    
+    /**
+     * Returns whether data beyond the current line is already buffered.
+     */
+    boolean hasBuffered() {
+        if (this.skipLF && this.position < this.limit && this.buffer[this.position] == '\n') {
+            return this.position + 1 < this.limit;
+        }
+        
+        return this.position < this.limit;
+    }
+    
+}
@@ -0,0 +1,756 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jexe.core.JEXECore.ConnectionInfo;
+
+/**
+ * A {@link JEXETransport} that carries JEXESVC's pipes over TCP, for machines where JEXESVC, or a
+ * relay in front of it, listens on a socket. Each pipe is its own connection, which opens with a
+ * single header line naming the pipe, and then carries the pipe's bytes unchanged:
+ * 
+ * <pre>
+ * OPEN &lt;address&gt; &lt;pipe&gt; &lt;access&gt;
+ * </pre>
+ * 
+ * where the address is that of the target machine, so that a relay knows where to forward the
+ * pipe, and the access is that given to {@link #open(ConnectionInfo, String, int)}. Connections
+ * are made to {@link #getPort()} on each machine, or all to {@link #getRelay()} if one is set.
+ * 
+ * All connections are served by a few selector threads, {@link #getThreads()}, rather than a
+ * thread or two each, so a single JVM may hold thousands of pipes open. Bytes received are
+ * buffered for the pipe's reader, and bytes written are sent at once where the socket takes them
+ * and queued for the selector otherwise; a reader that falls more than {@link #getBufferLimit()}
+ * behind stops the socket being read, and a writer that gets as far ahead waits.
+ */
+public class NioTcpTransport implements JEXETransport {
+    
+    /**
+     * The port on which JEXESVC is taken to listen if no other is set.
+     */
+    public static final int defaultPort = 4460;
+    
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    
+    private volatile int port = defaultPort;
+    private volatile InetSocketAddress relay;
+    private volatile long connectTimeout = 10000;
+    private volatile int bufferLimit = 256 * 1024;
+    private volatile int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    
+    private Reactor[] reactors;
+    private boolean closed;
+    
+    /**
+     * Returns the port to which connections are made on each machine.
+     */
+    public int getPort() {
+        return this.port;
+    }
+    
+    /**
+     * 
+     * Sets the port to which connections are made on each machine.
+     * 
+     * @param port
+     *            The port
+     * 
+     */
+    public void setPort(int port) {
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("port must be between 1 and 65535");
+        }
+        
+        this.port = port;
+    }
+    
+    /**
+     * Returns the relay to which all connections are made, or null if each is made to its own
+     * machine.
+     */
+    public InetSocketAddress getRelay() {
+        return this.relay;
+    }
+    
+    /**
+     * 
+     * Sets a relay to which all connections are made, in place of the machines themselves. The
+     * relay learns the machine and pipe from the header of each connection.
+     * 
+     * @param relay
+     *            The address of the relay, or null to connect to each machine directly
+     * 
+     */
+    public void setRelay(InetSocketAddress relay) {
+        this.relay = relay;
+    }
+    
+    /**
+     * Returns the longest time, in milliseconds, to wait for a connection to be made.
+     */
+    public long getConnectTimeout() {
+        return this.connectTimeout;
+    }
+    
+    /**
+     * 
+     * Sets the longest time, in milliseconds, to wait for a connection to be made.
+     * 
+     * @param connectTimeout
+     *            The timeout in milliseconds
+     * 
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        if (connectTimeout < 1) {
+            throw new IllegalArgumentException("connectTimeout must be at least 1");
+        }
+        
+        this.connectTimeout = connectTimeout;
+    }
+    
+    /**
+     * Returns the number of bytes buffered in each direction of a pipe before the other end is
+     * made to wait.
+     */
+    public int getBufferLimit() {
+        return this.bufferLimit;
+    }
+    
+    /**
+     * 
+     * Sets the number of bytes buffered in each direction of a pipe before the other end is made
+     * to wait. Pipes already open keep the limit they were opened with.
+     * 
+     * @param bufferLimit
+     *            The limit in bytes
+     * 
+     */
+    public void setBufferLimit(int bufferLimit) {
+        if (bufferLimit < 1024) {
+            throw new IllegalArgumentException("bufferLimit must be at least 1024");
+        }
+        
+        this.bufferLimit = bufferLimit;
+    }
+    
+    /**
+     * Returns the number of selector threads serving connections.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+    
+    /**
+     * 
+     * Sets the number of selector threads serving connections. The threads are started when the
+     * first pipe is opened, after which their number cannot be changed.
+     * 
+     * @param threads
+     *            The number of threads
+     * 
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        
+        if (this.reactors != null) {
+            throw new IllegalStateException("Transport has already been started");
+        }
+        
+        this.threads = threads;
+    }
+    
+    @Override
+    public Pipe open(ConnectionInfo connectionInfo, String pipeUrl, int access)
+            throws IOException {
+        InetSocketAddress relay = this.relay;
+        InetSocketAddress target = relay != null ? relay
+                : new InetSocketAddress(connectionInfo.address, this.port);
+        
+        if (target.isUnresolved()) {
+            throw new IOException("Unable to resolve " + target.getHostString());
+        }
+        
+        SocketChannel channel = SocketChannel.open();
+        Connection connection;
+        
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            
+            connection = new Connection(this.reactor(), channel, this.bufferLimit);
+            connection.connect(target, this.connectTimeout);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        
+        byte[] header = ("OPEN " + connectionInfo.address + " " + pipeUrl + " " + access + "\n")
+                .getBytes(JEXECore.charset);
+        connection.write(header, 0, header.length);
+        
+        return new Pipe((access & READ) != 0 ? connection.in : null,
+                (access & WRITE) != 0 ? connection.out : null);
+    }
+    
+    /**
+     * Stops the selector threads, closing every pipe opened through this transport. The transport
+     * cannot be used afterward.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        
+        if (this.reactors != null) {
+            for (Reactor reactor : this.reactors) {
+                reactor.close();
+            }
+        }
+    }
+    
+    /**
+     * Returns the selector thread to serve the next connection, starting the threads if need be.
+     */
+    private synchronized Reactor reactor() throws IOException {
+        if (this.closed) {
+            throw new IOException("Transport is closed");
+        }
+        
+        if (this.reactors == null) {
+            Reactor[] reactors = new Reactor[this.threads];
+            
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor("jexe-nio-" + i);
+            }
+            
+            this.reactors = reactors;
+        }
+        
+        int index = this.nextReactor.getAndIncrement() & Integer.MAX_VALUE;
+        return this.reactors[index % this.reactors.length];
+    }
+    
+    /**
+     * A selector thread. Channels are registered, and their interest changed, only from the
+     * thread itself, since doing so from elsewhere may block until the selector wakes.
+     */
+    private static class Reactor implements Runnable {
+        
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        
+        /**
+         * The buffer into which every channel of this thread is read, before the bytes are handed
+         * to the channel's reader.
+         */
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+        
+        Reactor(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+        
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+        
+        /**
+         * Fails every connection of this thread, then stops the thread.
+         */
+        void close() {
+            this.execute(() -> {
+                for (SelectionKey key : this.selector.keys()) {
+                    ((Connection) key.attachment()).fail(new IOException("Transport is closed"));
+                }
+                
+                try {
+                    this.selector.close();
+                } catch (IOException e) {
+                }
+            });
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (this.selector.isOpen()) {
+                    this.selector.select();
+                    
+                    Runnable task;
+                    
+                    while ((task = this.tasks.poll()) != null) {
+                        task.run();
+                    }
+                    
+                    Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+                    
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        
+                        Connection connection = (Connection) key.attachment();
+                        
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        
+                        if (key.isConnectable()) {
+                            connection.connectReady();
+                        } else {
+                            if (key.isWritable()) {
+                                connection.writeReady();
+                            }
+                            
+                            if (key.isValid() && key.isReadable()) {
+                                connection.readReady(this.scratch);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // The selector was closed along with the transport
+            }
+        }
+        
+    }
+    
+    /**
+     * One pipe over one socket. The pipe's reader and writer block on the connection's lock,
+     * which is a {@link ReentrantLock} rather than a monitor so that virtual threads waiting on a
+     * pipe do not pin their carriers.
+     */
+    private static class Connection {
+        
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final int bufferLimit;
+        
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = this.lock.newCondition();
+        private final Condition writable = this.lock.newCondition();
+        
+        private SelectionKey key;
+        private boolean connected;
+        private IOException failure;
+        private boolean eof;
+        private boolean closed;
+        
+        /**
+         * Bytes received and not yet read, from {@link #head} to {@link #tail}.
+         */
+        private byte[] inbound = new byte[8192];
+        private int head;
+        private int tail;
+        private boolean readPaused;
+        
+        /**
+         * Bytes written and not yet sent.
+         */
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        private int outboundBytes;
+        private boolean writeInterest;
+        
+        final InputStream in = new InputStream() {
+            
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Connection.this.read(b, off, len);
+            }
+            
+            @Override
+            public int available() {
+                return Connection.this.available();
+            }
+            
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+            
+        };
+        
+        final OutputStream out = new OutputStream() {
+            
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Connection.this.write(b, off, len);
+            }
+            
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+            
+        };
+        
+        Connection(Reactor reactor, SocketChannel channel, int bufferLimit) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.bufferLimit = bufferLimit;
+        }
+        
+        /**
+         * Connects to the given address, waiting at most the given time.
+         */
+        void connect(InetSocketAddress address, long timeout) throws IOException {
+            boolean connected = this.channel.connect(address);
+            
+            this.reactor.execute(() -> {
+                try {
+                    this.key = this.channel.register(this.reactor.selector,
+                            connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                    
+                    if (connected) {
+                        this.connected();
+                    }
+                } catch (IOException e) {
+                    this.fail(e);
+                }
+            });
+            
+            this.lock.lock();
+            
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                
+                while (!this.connected && this.failure == null) {
+                    if (remaining <= 0) {
+                        this.closeNow();
+                        throw new SocketTimeoutException("Timed out connecting to " + address);
+                    }
+                    
+                    remaining = this.writable.awaitNanos(remaining);
+                }
+                
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.closeNow();
+                throw new InterruptedIOException();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        void connectReady() {
+            try {
+                this.channel.finishConnect();
+                this.key.interestOps(SelectionKey.OP_READ);
+                this.connected();
+            } catch (IOException e) {
+                this.fail(e);
+            }
+        }
+        
+        private void connected() {
+            this.lock.lock();
+            
+            try {
+                this.connected = true;
+                this.writable.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            
+            this.lock.lock();
+            
+            try {
+                while (this.head == this.tail) {
+                    if (this.closed) {
+                        throw new IOException("Pipe is closed");
+                    }
+                    
+                    if (this.failure != null) {
+                        throw new IOException(this.failure.getMessage(), this.failure);
+                    }
+                    
+                    if (this.eof) {
+                        return -1;
+                    }
+                    
+                    this.readable.await();
+                }
+                
+                int count = Math.min(len, this.tail - this.head);
+                System.arraycopy(this.inbound, this.head, b, off, count);
+                this.head += count;
+                
+                if (this.head == this.tail) {
+                    this.head = 0;
+                    this.tail = 0;
+                }
+                
+                // Resume reading the socket once the reader has caught up by half
+                if (this.readPaused && this.tail - this.head <= this.bufferLimit / 2) {
+                    this.readPaused = false;
+                    this.reactor.execute(() -> this.interest(SelectionKey.OP_READ, true));
+                }
+                
+                return count;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        int available() {
+            this.lock.lock();
+            
+            try {
+                return this.tail - this.head;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        void readReady(ByteBuffer scratch) {
+            scratch.clear();
+            
+            int read;
+            
+            try {
+                read = this.channel.read(scratch);
+            } catch (IOException e) {
+                this.fail(e);
+                return;
+            }
+            
+            this.lock.lock();
+            
+            try {
+                if (read < 0) {
+                    this.eof = true;
+                    this.interest(SelectionKey.OP_READ, false);
+                } else {
+                    scratch.flip();
+                    this.receive(scratch);
+                    
+                    if (this.tail - this.head >= this.bufferLimit) {
+                        this.readPaused = true;
+                        this.interest(SelectionKey.OP_READ, false);
+                    }
+                }
+                
+                this.readable.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * Appends received bytes to the inbound buffer, compacting or growing it as needed.
+         */
+        private void receive(ByteBuffer bytes) {
+            int length = bytes.remaining();
+            
+            if (this.tail + length > this.inbound.length) {
+                int buffered = this.tail - this.head;
+                byte[] inbound = this.inbound;
+                
+                if (buffered + length > inbound.length) {
+                    inbound = new byte[Math.max(inbound.length * 2, buffered + length)];
+                }
+                
+                System.arraycopy(this.inbound, this.head, inbound, 0, buffered);
+                this.inbound = inbound;
+                this.head = 0;
+                this.tail = buffered;
+            }
+            
+            bytes.get(this.inbound, this.tail, length);
+            this.tail += length;
+        }
+        
+        void write(byte[] b, int off, int len) throws IOException {
+            this.lock.lock();
+            
+            try {
+                if (this.closed) {
+                    throw new IOException("Pipe is closed");
+                }
+                
+                if (this.failure != null) {
+                    throw new IOException(this.failure.getMessage(), this.failure);
+                }
+                
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                
+                // Bytes go straight to the socket where nothing is queued ahead of them
+                if (this.outbound.isEmpty()) {
+                    try {
+                        this.channel.write(buffer);
+                    } catch (IOException e) {
+                        this.fail(e);
+                        throw e;
+                    }
+                    
+                    if (!buffer.hasRemaining()) {
+                        return;
+                    }
+                }
+                
+                ByteBuffer queued = ByteBuffer.allocate(buffer.remaining());
+                queued.put(buffer).flip();
+                this.outbound.add(queued);
+                this.outboundBytes += queued.remaining();
+                
+                if (!this.writeInterest) {
+                    this.writeInterest = true;
+                    this.reactor.execute(() -> this.interest(SelectionKey.OP_WRITE, true));
+                }
+                
+                while (this.outboundBytes > this.bufferLimit && this.failure == null
+                        && !this.closed) {
+                    this.writable.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        void writeReady() {
+            this.lock.lock();
+            
+            try {
+                while (!this.outbound.isEmpty()) {
+                    ByteBuffer buffer = this.outbound.peek();
+                    int written = this.channel.write(buffer);
+                    this.outboundBytes -= written;
+                    
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    
+                    this.outbound.poll();
+                }
+                
+                if (this.outbound.isEmpty()) {
+                    this.writeInterest = false;
+                    this.interest(SelectionKey.OP_WRITE, false);
+                    
+                    // A pipe closed with bytes still queued is closed once they are sent
+                    if (this.closed) {
+                        this.closeNow();
+                    }
+                }
+                
+                this.writable.signalAll();
+            } catch (IOException e) {
+                this.fail(e);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * Adds or removes interest in an operation; called on the selector thread only.
+         */
+        private void interest(int operation, boolean interested) {
+            SelectionKey key = this.key;
+            
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            
+            key.interestOps(interested ? key.interestOps() | operation
+                    : key.interestOps() & ~operation);
+        }
+        
+        /**
+         * Closes the pipe. Bytes already written are still sent, unless the pipe has failed.
+         */
+        void close() {
+            this.lock.lock();
+            
+            try {
+                if (this.closed) {
+                    return;
+                }
+                
+                this.closed = true;
+                
+                if (this.outbound.isEmpty() || this.failure != null) {
+                    this.closeNow();
+                }
+                
+                this.readable.signalAll();
+                this.writable.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        void fail(IOException e) {
+            this.lock.lock();
+            
+            try {
+                if (this.failure == null) {
+                    this.failure = e;
+                }
+                
+                this.outbound.clear();
+                this.outboundBytes = 0;
+                this.closeNow();
+                
+                this.readable.signalAll();
+                this.writable.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        
+        private void closeNow() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+            }
+        }
+        
+    }
+    
+}
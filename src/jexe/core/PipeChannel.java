@@ -0,0 +1,131 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+
+/**
+ * A byte channel over the stream of a named pipe. Heap buffers are read into and written from in
+ * place; direct buffers pass through a single scratch array owned by the channel. Unlike the
+ * channels returned by {@link java.nio.channels.Channels}, no transfer buffer is allocated per
+ * call, and a read may fill as much of the buffer as the pipe delivers at once.
+ */
+class PipeChannel implements ByteChannel {
+    
+    private final InputStream in;
+    private final OutputStream out;
+    
+    private byte[] scratch;
+    private volatile boolean open = true;
+    
+    PipeChannel(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        
+        if (this.in == null) {
+            throw new NonReadableChannelException();
+        }
+        
+        int length = dst.remaining();
+        
+        if (length == 0) {
+            return 0;
+        }
+        
+        int read;
+        
+        if (dst.hasArray()) {
+            read = this.in.read(dst.array(), dst.arrayOffset() + dst.position(), length);
+            
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+        } else {
+            byte[] scratch = this.scratch(length);
+            read = this.in.read(scratch, 0, Math.min(length, scratch.length));
+            
+            if (read > 0) {
+                dst.put(scratch, 0, read);
+            }
+        }
+        
+        return read;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+        
+        if (this.out == null) {
+            throw new NonWritableChannelException();
+        }
+        
+        int length = src.remaining();
+        
+        if (src.hasArray()) {
+            this.out.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+        } else {
+            byte[] scratch = this.scratch(length);
+            
+            while (src.hasRemaining()) {
+                int chunk = Math.min(src.remaining(), scratch.length);
+                src.get(scratch, 0, chunk);
+                this.out.write(scratch, 0, chunk);
+            }
+        }
+        
+        this.out.flush();
+        
+        return length;
+    }
+    
+    private byte[] scratch(int length) {
+        int size = Math.min(length, RemoteProcess.bufferSize);
+        
+        if (this.scratch == null || this.scratch.length < size) {
+            this.scratch = new byte[size];
+        }
+        
+        return this.scratch;
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (!this.open) {
+            return;
+        }
+        
+        this.open = false;
+        
+        try {
+            if (this.out != null) {
+                this.out.close();
+            }
+        } finally {
+            if (this.in != null) {
+                this.in.close();
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,205 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXEProcess.QueryInfo;
+
+/**
+ * Holds recent process and window tables for each machine, so that queries made close together
+ * share a single <code>query processes</code> or <code>query windows</code> transaction. When set
+ * with {@link JEXEProcess#setSnapshotCache(ProcessSnapshotCache)}, every query is answered by
+ * filtering a snapshot of the full table no older than {@link #getTtl()}. Callers that ask for a
+ * table while it is being fetched wait for that fetch rather than starting their own.
+ * 
+ * Snapshots are kept per {@link ConnectionInfo}, since different credentials may see different
+ * tables, and the least recently used are dropped beyond {@link #getMaxSnapshots()}. Starting or
+ * killing a process through {@link JEXEProcess} drops the snapshots of its machine.
+ */
+public class ProcessSnapshotCache {
+    
+    private final LinkedHashMap<String, Snapshot> snapshots =
+            new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+                
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+                    return this.size() > ProcessSnapshotCache.this.maxSnapshots;
+                }
+                
+            };
+    
+    private volatile long ttl = 5000;
+    private volatile int maxSnapshots = 256;
+    
+    /**
+     * Returns the time, in milliseconds, for which a snapshot is used once fetched.
+     */
+    public long getTtl() {
+        return this.ttl;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, for which a snapshot is used once fetched. Snapshots already
+     * held keep the TTL they were fetched with.
+     * 
+     * @param ttl
+     *            The TTL in milliseconds
+     * 
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+    
+    /**
+     * Returns the maximum number of snapshots held at once.
+     */
+    public int getMaxSnapshots() {
+        return this.maxSnapshots;
+    }
+    
+    /**
+     * 
+     * Sets the maximum number of snapshots held at once. Each machine holds up to two: one of its
+     * processes, and one of its windows.
+     * 
+     * @param maxSnapshots
+     *            The maximum number of snapshots
+     * 
+     */
+    public void setMaxSnapshots(int maxSnapshots) {
+        if (maxSnapshots < 1) {
+            throw new IllegalArgumentException("maxSnapshots must be at least 1");
+        }
+        
+        this.maxSnapshots = maxSnapshots;
+    }
+    
+    /**
+     * 
+     * Drops the snapshots of the given machine, under any credentials.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the machine
+     * 
+     */
+    public synchronized void invalidate(ConnectionInfo connectionInfo) {
+        Iterator<Snapshot> iterator = this.snapshots.values().iterator();
+        
+        while (iterator.hasNext()) {
+            if (iterator.next().address.equals(connectionInfo.address)) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Drops all snapshots.
+     */
+    public synchronized void clear() {
+        this.snapshots.clear();
+    }
+    
+    /**
+     * 
+     * Returns a snapshot of the given table, fetching it first if there is no current one.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param prototype
+     *            An empty query of the table to fetch; a {@link JEXEProcess.ProcessQueryInfo} or a
+     *            {@link JEXEProcess.WindowQueryInfo}
+     * @return Every process or window on the machine; a {@link ProcessTable} or a
+     *         {@link WindowTable}
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    QueryTable get(ConnectionInfo connectionInfo, QueryInfo prototype) throws IOException,
+            JEXEException {
+        String key = connectionInfo.key() + "|" + prototype.getClass().getSimpleName();
+        
+        Snapshot snapshot;
+        boolean fetch = false;
+        
+        synchronized (this) {
+            snapshot = this.snapshots.get(key);
+            
+            if (snapshot == null || snapshot.future.isDone()
+                    && System.nanoTime() - snapshot.expires >= 0) {
+                snapshot = new Snapshot(connectionInfo.address);
+                this.snapshots.put(key, snapshot);
+                fetch = true;
+            }
+        }
+        
+        if (fetch) {
+            return this.fetch(key, snapshot, connectionInfo, prototype);
+        }
+        
+        try {
+            return snapshot.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for process snapshot");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof JEXEException) {
+                throw (JEXEException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            
+            throw (Error) cause;
+        }
+    }
+    
+    private QueryTable fetch(String key, Snapshot snapshot, ConnectionInfo connectionInfo,
+            QueryInfo prototype) throws IOException, JEXEException {
+        QueryTable table;
+        
+        try {
+            table = JEXEProcess.fetch(connectionInfo, prototype);
+        } catch (IOException | JEXEException | RuntimeException | Error e) {
+            // Leave no failed snapshot behind; the next caller fetches afresh
+            synchronized (this) {
+                this.snapshots.remove(key, snapshot);
+            }
+            
+            snapshot.future.completeExceptionally(e);
+            throw e;
+        }
+        
+        synchronized (this) {
+            snapshot.expires = System.nanoTime() + this.ttl * 1000000;
+        }
+        
+        snapshot.future.complete(table);
+        return table;
+    }
+    
+    private static class Snapshot {
+        
+        final String address;
+        final CompletableFuture<QueryTable> future = new CompletableFuture<QueryTable>();
+        long expires;
+        
+        Snapshot(String address) {
+            this.address = address;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,453 @@
+package jexe.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import jexe.core.JEXECore.CommandException;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXEProcess.ProcessEvent;
+import jexe.core.JEXEProcess.ProcessEventListener;
+import jexe.core.JEXEProcess.ProcessQueryInfo;
+
+/**
+ * A subscription to the processes starting and exiting on one machine; see
+ * {@link JEXEProcess#subscribe(ConnectionInfo, ProcessQueryInfo, ProcessEventListener, int, long)}.
+ * 
+ * The subscription holds a command pipe of its own, on which it sends
+ * <code>subscribe processes [filter]</code> and is answered with <code>RESPONSE 0</code>. From
+ * then on, JEXESVC writes batches of events as they happen, each a line <code>EVENTS n</code>
+ * followed by n JEXESVC maps:
+ * 
+ * <pre>
+ * [event=start,pid=1234,name=notepad.exe,domain=CORP,user=jsmith,time=...]
+ * [event=exit,pid=1234,name=notepad.exe,domain=CORP,user=jsmith,exitcode=0,time=...]
+ * [event=lost,count=17]
+ * </pre>
+ * 
+ * JEXESVC may only send as many events as it has been granted credit for, with
+ * <code>credit n</code>; the subscription grants its window up front, and grants each batch back
+ * once the listener has returned from it. Events raised while JEXESVC has no credit are held and
+ * sent together in the next batch, so a slow listener is handed larger batches rather than falling
+ * behind without bound; events beyond what JEXESVC is willing to hold are counted in a
+ * <code>lost</code> event instead.
+ * 
+ * JEXESVC versions without subscriptions reject the command as unrecognized. The subscription
+ * then polls the process table instead, reporting the difference between successive polls, and
+ * the machine is remembered, until JEXESVC is installed again or for at most
+ * {@link #unsubscribableRetryTime}, so that later subscriptions poll straight away. Any other
+ * error fails the subscription. Polling cannot see processes that start and exit between polls,
+ * nor exit codes.
+ * 
+ * Events are delivered on a single thread from the asynchronous executor, one batch at a time.
+ */
+public class ProcessSubscription implements Closeable {
+    
+    /**
+     * The time, in milliseconds, after which a machine whose JEXESVC rejected a subscription is
+     * asked to stream events again.
+     */
+    static final long unsubscribableRetryTime = 600000;
+    
+    /**
+     * Machines whose JEXESVC has rejected a subscription, by {@link ConnectionInfo#key()}, with
+     * the time, by {@link System#nanoTime()}, after which a subscription is tried again.
+     */
+    private static final Map<String, Long> unsubscribableHosts =
+            new ConcurrentHashMap<String, Long>();
+    
+    private final ConnectionInfo connectionInfo;
+    private final ProcessQueryInfo filter;
+    private final ProcessEventListener listener;
+    private final int window;
+    private final long pollInterval;
+    
+    private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+    
+    private InputStream in;
+    private OutputStream out;
+    private LineReader reader;
+    
+    /**
+     * The processes seen by the last poll, by PID; used only while polling.
+     */
+    private Map<Integer, ProcessQueryInfo> processes;
+    
+    private volatile boolean polling;
+    private volatile boolean closed;
+    
+    private ProcessSubscription(ConnectionInfo connectionInfo, ProcessQueryInfo filter,
+            ProcessEventListener listener, int window, long pollInterval) {
+        this.connectionInfo = connectionInfo;
+        this.filter = filter;
+        this.listener = listener;
+        this.window = window;
+        this.pollInterval = pollInterval;
+    }
+    
+    /**
+     * Subscribes to the given machine, falling back to polling if its JEXESVC cannot stream
+     * events, and starts delivering events to the listener.
+     */
+    static ProcessSubscription start(ConnectionInfo connectionInfo, ProcessQueryInfo filter,
+            ProcessEventListener listener, int window, long pollInterval)
+            throws IOException, JEXEException {
+        ProcessSubscription subscription = new ProcessSubscription(connectionInfo, filter,
+                listener, window, pollInterval);
+        
+        if (ProcessSubscription.canSubscribe(connectionInfo) && subscription.subscribe()) {
+            subscription.execute(subscription::stream);
+        } else {
+            subscription.polling = true;
+            subscription.processes = subscription.snapshot();
+            AsyncCall.schedule(subscription::poll, pollInterval, subscription.completion);
+        }
+        
+        return subscription;
+    }
+    
+    private static boolean canSubscribe(ConnectionInfo connectionInfo) {
+        Long retryAt = unsubscribableHosts.get(connectionInfo.key());
+        
+        if (retryAt == null) {
+            return true;
+        } else if (System.nanoTime() - retryAt >= 0) {
+            unsubscribableHosts.remove(connectionInfo.key(), retryAt);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Forgets that JEXESVC on the given machine could not stream events; called when JEXESVC is
+     * installed or removed.
+     */
+    static void invalidateCapabilities(ConnectionInfo connectionInfo) {
+        unsubscribableHosts.remove(connectionInfo.key());
+    }
+    
+    /**
+     * Returns information specifying the connection to the machine.
+     */
+    public ConnectionInfo getConnectionInfo() {
+        return this.connectionInfo;
+    }
+    
+    /**
+     * Returns whether or not events are found by polling, rather than streamed by JEXESVC.
+     */
+    public boolean isPolling() {
+        return this.polling;
+    }
+    
+    /**
+     * Returns a future that completes when the subscription is closed, or fails with the reason
+     * the subscription ended otherwise.
+     */
+    public CompletableFuture<Void> completion() {
+        return this.completion;
+    }
+    
+    /**
+     * Ends the subscription. A batch already being delivered is finished, but no more follow.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.closePipe();
+        this.completion.complete(null);
+    }
+    
+    /**
+     * Sends the subscription command on a new pipe, and returns whether JEXESVC accepted it.
+     */
+    private boolean subscribe() throws IOException, JEXEException {
+        HostCircuitBreaker breaker = JEXECore.getCircuitBreaker();
+        
+        if (breaker != null) {
+            breaker.acquire(this.connectionInfo.address);
+        }
+        
+        JEXETransport.Pipe pipe = JEXECore.openPipe(this.connectionInfo, JEXECore.pipeUrlCommand,
+                JEXETransport.READ | JEXETransport.WRITE, JEXECore.getConnectTimeout());
+        
+        this.in = pipe.in;
+        this.out = pipe.out;
+        this.reader = new LineReader(pipe.in);
+        
+        String filter = this.filter != null ? JEXEProcess.filterOf(this.filter) : null;
+        long readTimeout = JEXECore.getReadTimeout();
+        ScheduledFuture<?> watchdog = readTimeout > 0
+                ? AsyncCall.watch(this::closePipe, readTimeout) : null;
+        String response;
+        
+        try {
+            this.write("COMMAND subscribe processes" + (filter != null ? " " + filter : "")
+                    + "\nCOMMAND credit " + this.window + "\n");
+            response = this.readLine();
+        } catch (IOException e) {
+            this.closePipe();
+            
+            if (watchdog != null && watchdog.isDone() && !watchdog.isCancelled()) {
+                if (breaker != null) {
+                    breaker.readFailed(this.connectionInfo.address);
+                }
+                
+                throw new SocketTimeoutException("JEXESVC did not answer within " + readTimeout
+                        + " ms");
+            }
+            
+            throw e;
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+        
+        if (breaker != null) {
+            breaker.answered(this.connectionInfo.address);
+        }
+        
+        if (response.startsWith("RESPONSE ")) {
+            return true;
+        }
+        
+        this.closePipe();
+        
+        if (response.startsWith("ERROR ")) {
+            int errorCode;
+            
+            try {
+                errorCode = Integer.parseInt(response.substring(6).trim());
+            } catch (NumberFormatException e) {
+                errorCode = -1;
+            }
+            
+            if (errorCode != JEXECore.ERROR_UNRECOGNIZED_COMMAND) {
+                throw new CommandException("Response: " + response.substring(6), errorCode);
+            }
+            
+            unsubscribableHosts.put(this.connectionInfo.key(),
+                    System.nanoTime() + unsubscribableRetryTime * 1000000);
+            return false;
+        }
+        
+        throw new CommandException("Protocol: unrecognized response");
+    }
+    
+    /**
+     * Reads batches of events from the pipe and delivers them until the pipe is closed.
+     */
+    private void stream() {
+        JEXERecord record = new JEXERecord();
+        
+        try {
+            while (true) {
+                String header = this.readLine();
+                
+                if (!header.startsWith("EVENTS ")) {
+                    throw new CommandException("Protocol: unexpected line in event stream");
+                }
+                
+                int count;
+                
+                try {
+                    count = Integer.parseInt(header.substring(7));
+                } catch (NumberFormatException e) {
+                    throw new CommandException("Protocol: invalid event count", e);
+                }
+                
+                List<ProcessEvent> events = new ArrayList<ProcessEvent>(count);
+                
+                for (int i = 0; i < count; i++) {
+                    this.nextLine();
+                    
+                    if (!this.reader.isLineEmpty()) {
+                        record.parse(this.reader.buffer(), this.reader.lineStart(),
+                                this.reader.lineEnd() - this.reader.lineStart());
+                        events.add(ProcessSubscription.toEvent(record));
+                    }
+                }
+                
+                if (!events.isEmpty()) {
+                    this.listener.processEvents(this.connectionInfo, events);
+                }
+                
+                // The batch is handed back as credit only once the listener is done with it
+                if (count > 0) {
+                    this.write("COMMAND credit " + count + "\n");
+                }
+            }
+        } catch (IOException | JEXEException | RuntimeException e) {
+            this.fail(e);
+        }
+    }
+    
+    /**
+     * Polls the process table once, delivers the difference from the last poll, and schedules
+     * the next poll; no thread is held in between.
+     */
+    private void poll() {
+        if (this.closed) {
+            return;
+        }
+        
+        try {
+            Map<Integer, ProcessQueryInfo> processes = this.snapshot();
+            List<ProcessEvent> events = new ArrayList<ProcessEvent>();
+            
+            for (ProcessQueryInfo processInfo : this.processes.values()) {
+                ProcessQueryInfo current = processes.get(processInfo.pid);
+                
+                // A PID reused by another program is the old process exiting
+                if (current == null || !ProcessSubscription.same(processInfo, current)) {
+                    events.add(ProcessSubscription.toEvent(ProcessEvent.EXITED, processInfo));
+                }
+            }
+            
+            for (ProcessQueryInfo processInfo : processes.values()) {
+                ProcessQueryInfo previous = this.processes.get(processInfo.pid);
+                
+                if (previous == null || !ProcessSubscription.same(previous, processInfo)) {
+                    events.add(ProcessSubscription.toEvent(ProcessEvent.STARTED, processInfo));
+                }
+            }
+            
+            this.processes = processes;
+            
+            if (!events.isEmpty() && !this.closed) {
+                this.listener.processEvents(this.connectionInfo, events);
+            }
+            
+            if (!this.closed) {
+                AsyncCall.schedule(this::poll, this.pollInterval, this.completion);
+            }
+        } catch (IOException | JEXEException | RuntimeException e) {
+            this.fail(e);
+        }
+    }
+    
+    private Map<Integer, ProcessQueryInfo> snapshot() throws IOException, JEXEException {
+        ProcessTable table = JEXEProcess.queryProcesses(this.connectionInfo,
+                this.filter != null ? this.filter : new ProcessQueryInfo());
+        Map<Integer, ProcessQueryInfo> processes = new HashMap<Integer, ProcessQueryInfo>(
+                table.size() * 2);
+        
+        for (int row = 0; row < table.size(); row++) {
+            ProcessQueryInfo processInfo = table.get(row);
+            processes.put(processInfo.pid, processInfo);
+        }
+        
+        return processes;
+    }
+    
+    private void fail(Exception e) {
+        this.closePipe();
+        
+        if (this.closed) {
+            return;
+        }
+        
+        this.closed = true;
+        
+        if (this.completion.completeExceptionally(e)) {
+            this.listener.subscriptionFailed(this.connectionInfo, e);
+        }
+    }
+    
+    private void execute(Runnable task) {
+        try {
+            JEXECore.getAsyncExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            this.fail(e);
+        }
+    }
+    
+    private void write(String string) throws IOException {
+        this.out.write(string.getBytes(JEXECore.charset));
+        this.out.flush();
+    }
+    
+    private String readLine() throws IOException {
+        this.nextLine();
+        return this.reader.lineString(JEXECore.charset);
+    }
+    
+    private void nextLine() throws IOException {
+        if (!this.reader.nextLine()) {
+            throw new IOException("JEXESVC closed the event stream");
+        }
+    }
+    
+    private void closePipe() {
+        try {
+            if (this.in != null) {
+                this.in.close();
+            }
+            
+            if (this.out != null) {
+                this.out.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+    
+    private static boolean same(ProcessQueryInfo a, ProcessQueryInfo b) {
+        return a.name == null ? b.name == null : a.name.equalsIgnoreCase(b.name);
+    }
+    
+    private static ProcessEvent toEvent(JEXERecord record) throws CommandException {
+        ProcessEvent event = new ProcessEvent();
+        
+        if (record.equalsIgnoreCase("event", "start")) {
+            event.type = ProcessEvent.STARTED;
+        } else if (record.equalsIgnoreCase("event", "exit")) {
+            event.type = ProcessEvent.EXITED;
+        } else if (record.equalsIgnoreCase("event", "lost")) {
+            event.type = ProcessEvent.LOST;
+            event.lost = record.getInt("count");
+            return event;
+        } else {
+            throw new CommandException("Protocol: unknown event " + record.get("event"));
+        }
+        
+        event.pid = record.getInt("pid");
+        event.name = record.get("name");
+        event.domain = record.get("domain");
+        event.user = record.get("user");
+        
+        if (record.indexOf("exitcode") >= 0) {
+            event.exitCode = record.getInt("exitcode");
+        }
+        
+        if (record.indexOf("time") >= 0) {
+            event.time = Long.parseLong(record.get("time"));
+        }
+        
+        return event;
+    }
+    
+    private static ProcessEvent toEvent(int type, ProcessQueryInfo processInfo) {
+        ProcessEvent event = new ProcessEvent();
+        event.type = type;
+        event.pid = processInfo.pid;
+        event.name = processInfo.name;
+        event.domain = processInfo.domain;
+        event.user = processInfo.user;
+        event.time = System.currentTimeMillis();
+        return event;
+    }
+    
+}
@@ -0,0 +1,210 @@
+package jexe.core;
+
+import java.util.Arrays;
+
+import jexe.core.JEXEProcess.ProcessQueryInfo;
+import jexe.core.JEXEProcess.QueryInfo;
+
+/**
+ * A table of processes, as returned by {@link JEXEProcess#queryProcesses(JEXECore.ConnectionInfo,
+ * ProcessQueryInfo)}. Lookups by PID, name or user go through hash indexes; the name and user
+ * indexes are built on first use.
+ */
+public class ProcessTable extends QueryTable {
+    
+    private final String[] names;
+    private final String[] paths;
+    private final String[] domains;
+    private final String[] users;
+    
+    private final StringIndex nameIndex;
+    private final StringIndex userIndex;
+    
+    ProcessTable(int size, int[] pids, String[] names, String[] paths, String[] domains,
+            String[] users) {
+        super(size, pids);
+        
+        this.names = names;
+        this.paths = paths;
+        this.domains = domains;
+        this.users = users;
+        
+        this.nameIndex = new StringIndex(names, size);
+        this.userIndex = new StringIndex(users, size);
+    }
+    
+    /**
+     * Returns the image name in the given row.
+     */
+    public String name(int row) {
+        this.check(row);
+        return this.names[row];
+    }
+    
+    /**
+     * Returns the image path in the given row.
+     */
+    public String path(int row) {
+        this.check(row);
+        return this.paths[row];
+    }
+    
+    /**
+     * Returns the domain of the user in the given row.
+     */
+    public String domain(int row) {
+        this.check(row);
+        return this.domains[row];
+    }
+    
+    /**
+     * Returns the user in the given row.
+     */
+    public String user(int row) {
+        this.check(row);
+        return this.users[row];
+    }
+    
+    /**
+     * 
+     * Returns the row of the process with the given PID.
+     * 
+     * @param pid
+     *            The PID for which to search
+     * @return The row, or -1 if there is no such process
+     * 
+     */
+    public int indexOf(int pid) {
+        int[] rows = this.rowsByPid(pid);
+        return rows.length == 0 ? -1 : rows[0];
+    }
+    
+    /**
+     * 
+     * Returns the process with the given PID.
+     * 
+     * @param pid
+     *            The PID for which to search
+     * @return The process, or null if there is no such process
+     * 
+     */
+    public ProcessQueryInfo find(int pid) {
+        int row = this.indexOf(pid);
+        return row < 0 ? null : this.get(row);
+    }
+    
+    /**
+     * 
+     * Returns the rows of the processes with the given image name, ignoring case.
+     * 
+     * @param name
+     *            The image name for which to search
+     * @return The matching rows, in table order
+     * 
+     */
+    public int[] rowsByName(String name) {
+        return this.nameIndex.rows(name);
+    }
+    
+    /**
+     * 
+     * Returns the rows of the processes running as the given user, ignoring case.
+     * 
+     * @param user
+     *            The user for which to search
+     * @return The matching rows, in table order
+     * 
+     */
+    public int[] rowsByUser(String user) {
+        return this.userIndex.rows(user);
+    }
+    
+    @Override
+    public ProcessQueryInfo get(int row) {
+        this.check(row);
+        
+        ProcessQueryInfo processInfo = new ProcessQueryInfo();
+        processInfo.pid = this.pids[row];
+        processInfo.name = this.names[row];
+        processInfo.path = this.paths[row];
+        processInfo.domain = this.domains[row];
+        processInfo.user = this.users[row];
+        
+        return processInfo;
+    }
+    
+    @Override
+    public int[] select(QueryInfo queryInfo) {
+        ProcessQueryInfo processQueryInfo = (ProcessQueryInfo) queryInfo;
+        int[] candidates;
+        
+        // Start from the most selective index available
+        if (processQueryInfo.pid > 0) {
+            candidates = this.rowsByPid(processQueryInfo.pid);
+        } else if (processQueryInfo.name != null) {
+            candidates = this.rowsByName(processQueryInfo.name);
+        } else if (processQueryInfo.user != null) {
+            candidates = this.rowsByUser(processQueryInfo.user);
+        } else {
+            candidates = this.allRows();
+        }
+        
+        return filter(candidates, row -> matches(processQueryInfo.name, this.names[row])
+                && matches(processQueryInfo.path, this.paths[row])
+                && matches(processQueryInfo.domain, this.domains[row])
+                && matches(processQueryInfo.user, this.users[row]));
+    }
+    
+    @Override
+    public ProcessQueryInfo[] toArray() {
+        ProcessQueryInfo[] processes = new ProcessQueryInfo[this.size];
+        
+        for (int i = 0; i < this.size; i++) {
+            processes[i] = this.get(i);
+        }
+        
+        return processes;
+    }
+    
+    /**
+     * Collects processes into a {@link ProcessTable}.
+     */
+    static class Builder {
+        
+        private final StringPool strings = new StringPool();
+        
+        private int size;
+        private int[] pids = new int[256];
+        private String[] names = new String[256];
+        private String[] paths = new String[256];
+        private String[] domains = new String[256];
+        private String[] users = new String[256];
+        
+        Builder add(ProcessQueryInfo processInfo) {
+            if (this.size == this.pids.length) {
+                int capacity = this.size * 2;
+                this.pids = Arrays.copyOf(this.pids, capacity);
+                this.names = Arrays.copyOf(this.names, capacity);
+                this.paths = Arrays.copyOf(this.paths, capacity);
+                this.domains = Arrays.copyOf(this.domains, capacity);
+                this.users = Arrays.copyOf(this.users, capacity);
+            }
+            
+            this.pids[this.size] = processInfo.pid;
+            this.names[this.size] = this.strings.intern(processInfo.name);
+            this.paths[this.size] = this.strings.intern(processInfo.path);
+            this.domains[this.size] = this.strings.intern(processInfo.domain);
+            this.users[this.size] = this.strings.intern(processInfo.user);
+            this.size++;
+            
+            return this;
+        }
+        
+        ProcessTable build() {
+            return new ProcessTable(this.size, this.pids, this.names, this.paths, this.domains,
+                    this.users);
+        }
+        
+    }
+    
+}
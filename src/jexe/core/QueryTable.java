@@ -0,0 +1,275 @@
+package jexe.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import jexe.core.JEXEProcess.QueryInfo;
+
+/**
+ * An immutable table of query results, held column by column. PIDs are kept in a primitive array
+ * and indexed by hash, so that looking a PID up does not scan the table; subclasses index their
+ * string columns likewise, and share one instance among equal strings.
+ */
+public abstract class QueryTable {
+    
+    private static final int[] noRows = new int[0];
+    
+    final int size;
+    final int[] pids;
+    
+    private final IntIndex pidIndex;
+    
+    QueryTable(int size, int[] pids) {
+        this.size = size;
+        this.pids = pids;
+        this.pidIndex = new IntIndex(pids, size);
+    }
+    
+    /**
+     * Returns the number of rows in the table.
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the PID in the given row.
+     */
+    public int pid(int row) {
+        this.check(row);
+        return this.pids[row];
+    }
+    
+    /**
+     * 
+     * Returns the rows with the given PID, in table order.
+     * 
+     * @param pid
+     *            The PID for which to search
+     * @return The matching rows; empty if there are none
+     * 
+     */
+    public int[] rowsByPid(int pid) {
+        return this.pidIndex.rows(pid);
+    }
+    
+    /**
+     * Returns the given row as a new {@link QueryInfo}.
+     */
+    public abstract QueryInfo get(int row);
+    
+    /**
+     * 
+     * Returns the rows matching the given query, as {@link JEXEProcess#query(
+     * JEXECore.ConnectionInfo, QueryInfo)} would match them, in table order.
+     * 
+     * @param queryInfo
+     *            The query to match
+     * @return The matching rows; empty if there are none
+     * 
+     */
+    public abstract int[] select(QueryInfo queryInfo);
+    
+    /**
+     * Returns every row as a new {@link QueryInfo}, in table order.
+     */
+    public abstract QueryInfo[] toArray();
+    
+    void check(int row) {
+        if (row < 0 || row >= this.size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + this.size);
+        }
+    }
+    
+    /**
+     * Returns every row.
+     */
+    int[] allRows() {
+        int[] rows = new int[this.size];
+        
+        for (int i = 0; i < this.size; i++) {
+            rows[i] = i;
+        }
+        
+        return rows;
+    }
+    
+    /**
+     * Narrows the given candidate rows to those accepted by the given filter.
+     */
+    static int[] filter(int[] candidates, RowFilter filter) {
+        int[] rows = new int[candidates.length];
+        int count = 0;
+        
+        for (int row : candidates) {
+            if (filter.accept(row)) {
+                rows[count++] = row;
+            }
+        }
+        
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+    
+    static boolean matches(String predicate, String value) {
+        return predicate == null || predicate.equalsIgnoreCase(value);
+    }
+    
+    interface RowFilter {
+        
+        boolean accept(int row);
+        
+    }
+    
+    /**
+     * A hash index of an int column, chaining the rows of each bucket through a primitive array.
+     */
+    static class IntIndex {
+        
+        private final int[] keys;
+        private final int[] heads;
+        private final int[] next;
+        
+        IntIndex(int[] keys, int size) {
+            int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+            
+            this.keys = keys;
+            this.heads = new int[capacity];
+            this.next = new int[size];
+            
+            Arrays.fill(this.heads, -1);
+            
+            // Link rows last to first, so that each chain runs in table order
+            for (int row = size - 1; row >= 0; row--) {
+                int bucket = this.bucket(keys[row]);
+                this.next[row] = this.heads[bucket];
+                this.heads[bucket] = row;
+            }
+        }
+        
+        private int bucket(int key) {
+            int hash = key * 0x9E3779B9;
+            return (hash ^ hash >>> 16) & this.heads.length - 1;
+        }
+        
+        int[] rows(int key) {
+            int head = this.heads[this.bucket(key)];
+            int count = 0;
+            
+            for (int row = head; row >= 0; row = this.next[row]) {
+                if (this.keys[row] == key) {
+                    count++;
+                }
+            }
+            
+            if (count == 0) {
+                return noRows;
+            }
+            
+            int[] rows = new int[count];
+            count = 0;
+            
+            for (int row = head; row >= 0; row = this.next[row]) {
+                if (this.keys[row] == key) {
+                    rows[count++] = row;
+                }
+            }
+            
+            return rows;
+        }
+        
+    }
+    
+    /**
+     * A case-insensitive index of a string column, built on first use.
+     */
+    static class StringIndex {
+        
+        private final String[] values;
+        private final int size;
+        
+        private Map<String, int[]> index;
+        
+        StringIndex(String[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+        
+        int[] rows(String value) {
+            int[] rows = this.index().get(StringIndex.fold(value));
+            return rows == null ? noRows : rows.clone();
+        }
+        
+        /**
+         * Folds each char as {@link String#equalsIgnoreCase(String)} compares it, so that two
+         * strings have the same key exactly when they are equal ignoring case.
+         */
+        static String fold(String value) {
+            char[] chars = new char[value.length()];
+            
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+            }
+            
+            return new String(chars);
+        }
+        
+        private synchronized Map<String, int[]> index() {
+            if (this.index == null) {
+                Map<String, int[]> counts = new HashMap<String, int[]>();
+                
+                for (int row = 0; row < this.size; row++) {
+                    if (this.values[row] != null) {
+                        String key = StringIndex.fold(this.values[row]);
+                        int[] count = counts.get(key);
+                        
+                        if (count == null) {
+                            counts.put(key, new int[] { 1 });
+                        } else {
+                            count[0]++;
+                        }
+                    }
+                }
+                
+                Map<String, int[]> index = new HashMap<String, int[]>(counts.size() * 2);
+                
+                for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                    index.put(entry.getKey(), new int[entry.getValue()[0]]);
+                    entry.getValue()[0] = 0;
+                }
+                
+                for (int row = 0; row < this.size; row++) {
+                    if (this.values[row] != null) {
+                        String key = StringIndex.fold(this.values[row]);
+                        index.get(key)[counts.get(key)[0]++] = row;
+                    }
+                }
+                
+                this.index = index;
+            }
+            
+            return this.index;
+        }
+        
+    }
+    
+    /**
+     * Shares one instance among equal strings added to a table, since the same few users, domains
+     * and paths tend to recur across every row.
+     */
+    static class StringPool {
+        
+        private final Map<String, String> strings = new HashMap<String, String>();
+        
+        String intern(String string) {
+            if (string == null) {
+                return null;
+            }
+            
+            String existing = this.strings.putIfAbsent(string, string);
+            return existing == null ? string : existing;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,517 @@
+package jexe.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import jexe.core.JEXECore.CommandException;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXEProcess.ProcessCreationInfo;
+
+/**
+ * A process started by {@link JEXEProcess#start(ConnectionInfo, ProcessCreationInfo)}. Each
+ * standard stream the process was started with redirected is exposed as a byte channel over its
+ * own JEXESVC pipe, named for the process handle; for instance, the standard output of the process
+ * with handle 1234 is read from <code>/jexesvc/stdout/1234</code>.
+ * 
+ * The channels block, so a slow consumer naturally holds back the remote process once the pipe
+ * buffers fill. For bulk output, {@link #transfer(ReadableByteChannel, WritableByteChannel,
+ * ByteBuffer)} moves data through a single caller-supplied buffer without per-line or per-chunk
+ * copies.
+ * 
+ * Waiting for the process to exit is done by JEXESVC, which holds a <code>wait</code> command
+ * until the process exits or the time given runs out, and then answers with its exit code. Many
+ * processes are waited on with a single command per machine; see
+ * {@link #waitForAll(Collection, long)} and {@link #waitForAny(Collection, long)}.
+ */
+public class RemoteProcess implements Closeable {
+    
+    /**
+     * The buffer size used when none is supplied. SMB reads are limited by the negotiated buffer
+     * size, so there is little to gain from anything larger.
+     */
+    static final int bufferSize = 0x10000;
+    
+    private final ConnectionInfo connectionInfo;
+    private final String handle;
+    private final byte redirectFlags;
+    
+    private PipeChannel stdin;
+    private PipeChannel stdout;
+    private PipeChannel stderr;
+    
+    private volatile boolean exited;
+    private volatile Integer exitCode;
+    
+    RemoteProcess(ConnectionInfo connectionInfo, String handle, byte redirectFlags) {
+        this.connectionInfo = connectionInfo;
+        this.handle = handle;
+        this.redirectFlags = redirectFlags;
+    }
+    
+    /**
+     * Returns information specifying the connection to the machine on which the process runs.
+     */
+    public ConnectionInfo getConnectionInfo() {
+        return this.connectionInfo;
+    }
+    
+    /**
+     * Returns the JEXESVC process handle for the process.
+     */
+    public String getHandle() {
+        return this.handle;
+    }
+    
+    /**
+     * 
+     * Returns a channel to the standard input stream of the process, opening its pipe on first
+     * use. Closing the channel closes the stream.
+     * 
+     * @return The standard input channel
+     * @throws JEXEException
+     * 
+     */
+    public synchronized WritableByteChannel getStdin() throws JEXEException {
+        if (this.stdin == null) {
+            this.stdin = this.openPipe(JEXECore.pipeUrlProcessStdin,
+                    ProcessCreationInfo.REDIRECT_STDIN);
+        }
+        
+        return this.stdin;
+    }
+    
+    /**
+     * 
+     * Returns a channel from the standard output stream of the process, opening its pipe on first
+     * use. The channel reaches end-of-stream when the process closes the stream.
+     * 
+     * @return The standard output channel
+     * @throws JEXEException
+     * 
+     */
+    public synchronized ReadableByteChannel getStdout() throws JEXEException {
+        if (this.stdout == null) {
+            this.stdout = this.openPipe(JEXECore.pipeUrlProcessStdout,
+                    ProcessCreationInfo.REDIRECT_STDOUT);
+        }
+        
+        return this.stdout;
+    }
+    
+    /**
+     * 
+     * Returns a channel from the standard error stream of the process, opening its pipe on first
+     * use. The channel reaches end-of-stream when the process closes the stream.
+     * 
+     * @return The standard error channel
+     * @throws JEXEException
+     * 
+     */
+    public synchronized ReadableByteChannel getStderr() throws JEXEException {
+        if (this.stderr == null) {
+            this.stderr = this.openPipe(JEXECore.pipeUrlProcessStderr,
+                    ProcessCreationInfo.REDIRECT_STDERR);
+        }
+        
+        return this.stderr;
+    }
+    
+    private PipeChannel openPipe(String pipeUrl, byte redirectFlag) throws JEXEException {
+        if ((this.redirectFlags & redirectFlag) == 0) {
+            throw new IllegalStateException("Process was not started with " + pipeUrl
+                    + " redirected");
+        }
+        
+        try {
+            int access = redirectFlag == ProcessCreationInfo.REDIRECT_STDIN ? JEXETransport.WRITE
+                    : JEXETransport.READ;
+            JEXETransport.Pipe pipe = JEXECore.openPipe(this.connectionInfo, pipeUrl + "/"
+                    + this.handle, access, JEXECore.getConnectTimeout());
+            
+            return new PipeChannel(pipe.in, pipe.out);
+        } catch (IOException e) {
+            throw new JEXEException("Unable to open " + pipeUrl + " for process " + this.handle,
+                    e);
+        }
+    }
+    
+    /**
+     * 
+     * Copies the standard output stream of the process to the given channel until the process
+     * closes it.
+     * 
+     * @param target
+     *            The channel to which to write
+     * @param buffer
+     *            The buffer through which to copy; reused across calls by the caller, and
+     *            allocated if null
+     * @return The number of bytes copied
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public long transferStdout(WritableByteChannel target, ByteBuffer buffer) throws IOException,
+            JEXEException {
+        return RemoteProcess.transfer(this.getStdout(), target, buffer);
+    }
+    
+    /**
+     * 
+     * Copies the standard error stream of the process to the given channel until the process
+     * closes it.
+     * 
+     * @param target
+     *            The channel to which to write
+     * @param buffer
+     *            The buffer through which to copy; reused across calls by the caller, and
+     *            allocated if null
+     * @return The number of bytes copied
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public long transferStderr(WritableByteChannel target, ByteBuffer buffer) throws IOException,
+            JEXEException {
+        return RemoteProcess.transfer(this.getStderr(), target, buffer);
+    }
+    
+    /**
+     * 
+     * Copies everything from the given source channel to the given target channel until the source
+     * reaches end-of-stream. Data moves through the given buffer only, which is left cleared; each
+     * read waits until the previous chunk has been fully accepted by the target, so a slow target
+     * slows the source rather than accumulating data in memory.
+     * 
+     * @param source
+     *            The channel from which to read
+     * @param target
+     *            The channel to which to write
+     * @param buffer
+     *            The buffer through which to copy, or null to allocate one
+     * @return The number of bytes copied
+     * @throws IOException
+     * 
+     */
+    public static long transfer(ReadableByteChannel source, WritableByteChannel target,
+            ByteBuffer buffer) throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        
+        long total = 0;
+        
+        buffer.clear();
+        
+        while (source.read(buffer) >= 0) {
+            buffer.flip();
+            
+            while (buffer.hasRemaining()) {
+                total += target.write(buffer);
+            }
+            
+            buffer.clear();
+        }
+        
+        return total;
+    }
+    
+    /**
+     * 
+     * Waits for the process to exit, for at most the given time.
+     * 
+     * @param timeout
+     *            The most time to wait in milliseconds; zero to check without waiting
+     * @return Whether or not the process has exited
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public boolean waitFor(long timeout) throws IOException, JEXEException {
+        return RemoteProcess.waitForAll(Collections.singletonList(this), timeout);
+    }
+    
+    /**
+     * Returns whether or not the process is known to have exited, as of the last wait on it.
+     */
+    public boolean hasExited() {
+        return this.exited;
+    }
+    
+    /**
+     * Returns the exit code of the process, or null if it has not been seen to exit, or JEXESVC
+     * no longer knows its exit code.
+     */
+    public Integer exitCode() {
+        return this.exitCode;
+    }
+    
+    /**
+     * 
+     * Waits for all of the given processes to exit, for at most the given time. Each machine is
+     * sent a single <code>wait</code> for all of its processes, answered as soon as any of them
+     * exits, and then another for those still running; machines are waited on at once, each on a
+     * thread from the asynchronous executor.
+     * 
+     * @param processes
+     *            The processes for which to wait
+     * @param timeout
+     *            The most time to wait in milliseconds; zero to check without waiting
+     * @return Whether or not all of the processes have exited
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static boolean waitForAll(Collection<RemoteProcess> processes, long timeout)
+            throws IOException, JEXEException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        
+        long deadline = System.nanoTime() + timeout * 1000000;
+        List<AsyncCall.Operation<Void>> operations = new ArrayList<AsyncCall.Operation<Void>>();
+        
+        for (List<RemoteProcess> running : RemoteProcess.runningByHost(processes)) {
+            operations.add(() -> {
+                RemoteProcess.waitUntil(running, deadline);
+                return null;
+            });
+        }
+        
+        RemoteProcess.join(operations, false);
+        
+        for (RemoteProcess process : processes) {
+            if (!process.exited) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * 
+     * Waits for any of the given processes to exit, for at most the given time, and returns
+     * those that have. The wait ends as soon as any machine answers; waits still held by the other
+     * machines are aborted, along with their pipes. A job runner with many processes may call this
+     * repeatedly, removing those returned, to take each result as early as possible.
+     * 
+     * @param processes
+     *            The processes for which to wait
+     * @param timeout
+     *            The most time to wait in milliseconds; zero to check without waiting
+     * @return The processes that have exited, in the order given; empty if none exited in time
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static List<RemoteProcess> waitForAny(Collection<RemoteProcess> processes,
+            long timeout) throws IOException, JEXEException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        
+        List<RemoteProcess> exited = RemoteProcess.exited(processes);
+        
+        if (exited.isEmpty()) {
+            List<AsyncCall.Operation<Void>> operations = new ArrayList<AsyncCall.Operation<Void>>();
+            
+            for (List<RemoteProcess> running : RemoteProcess.runningByHost(processes)) {
+                operations.add(() -> {
+                    RemoteProcess.waitOnce(running, timeout);
+                    return null;
+                });
+            }
+            
+            RemoteProcess.join(operations, true);
+            exited = RemoteProcess.exited(processes);
+        }
+        
+        return exited;
+    }
+    
+    /**
+     * Waits on the given processes, all on one machine, until they have all exited or the given
+     * deadline, by {@link System#nanoTime()}, has passed.
+     */
+    private static void waitUntil(List<RemoteProcess> processes, long deadline)
+            throws IOException, JEXEException {
+        while (true) {
+            long remaining = Math.max(0, (deadline - System.nanoTime()) / 1000000);
+            processes = RemoteProcess.waitOnce(processes, remaining);
+            
+            if (processes.isEmpty() || remaining == 0) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Sends a single <code>wait</code> for the given processes, all on one machine, and records
+     * those that have exited. Returns those still running.
+     */
+    private static List<RemoteProcess> waitOnce(List<RemoteProcess> processes, long timeout)
+            throws IOException, JEXEException {
+        Map<String, RemoteProcess> handles = new HashMap<String, RemoteProcess>(
+                processes.size() * 2);
+        StringBuilder command = new StringBuilder("wait ").append(timeout);
+        
+        for (RemoteProcess process : processes) {
+            handles.put(process.handle, process);
+            command.append(' ').append(process.handle);
+        }
+        
+        // Each process is answered with [handle=...,state=running|exited|unknown,exitcode=...]
+        JEXECore.transactRecords(processes.get(0).connectionInfo, command.toString(), record -> {
+            RemoteProcess process = handles.get(record.get("handle"));
+            
+            if (process != null && !record.equalsIgnoreCase("state", "running")) {
+                if (record.indexOf("exitcode") >= 0) {
+                    try {
+                        process.exitCode = record.getInt("exitcode");
+                    } catch (NumberFormatException e) {
+                        throw new CommandException("Protocol: invalid exit code", e);
+                    }
+                }
+                
+                process.exited = true;
+            }
+            
+            return true;
+        }, timeout);
+        
+        List<RemoteProcess> running = new ArrayList<RemoteProcess>();
+        
+        for (RemoteProcess process : processes) {
+            if (!process.exited) {
+                running.add(process);
+            }
+        }
+        
+        return running;
+    }
+    
+    /**
+     * Runs the given operations, one per machine, on the asynchronous executor, and waits for all
+     * of them, or only the first if so asked, cancelling the rest. A single operation is run on
+     * the calling thread.
+     */
+    private static void join(List<AsyncCall.Operation<Void>> operations, boolean any)
+            throws IOException, JEXEException {
+        if (operations.isEmpty()) {
+            return;
+        } else if (operations.size() == 1) {
+            operations.get(0).run();
+            return;
+        }
+        
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[operations.size()];
+        
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = AsyncCall.submit(operations.get(i), 0);
+        }
+        
+        try {
+            if (any) {
+                CompletableFuture.anyOf(futures).get();
+            } else {
+                CompletableFuture.allOf(futures).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for processes");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof JEXEException) {
+                throw (JEXEException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            
+            throw (Error) cause;
+        } finally {
+            for (CompletableFuture<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Returns the given processes not yet known to have exited, grouped by machine.
+     */
+    private static Collection<List<RemoteProcess>> runningByHost(
+            Collection<RemoteProcess> processes) {
+        Map<String, List<RemoteProcess>> hosts = new LinkedHashMap<String, List<RemoteProcess>>();
+        
+        for (RemoteProcess process : processes) {
+            if (!process.exited) {
+                List<RemoteProcess> running = hosts.get(process.connectionInfo.address);
+                
+                if (running == null) {
+                    running = new ArrayList<RemoteProcess>();
+                    hosts.put(process.connectionInfo.address, running);
+                }
+                
+                running.add(process);
+            }
+        }
+        
+        return hosts.values();
+    }
+    
+    private static List<RemoteProcess> exited(Collection<RemoteProcess> processes) {
+        List<RemoteProcess> exited = new ArrayList<RemoteProcess>();
+        
+        for (RemoteProcess process : processes) {
+            if (process.exited) {
+                exited.add(process);
+            }
+        }
+        
+        return exited;
+    }
+    
+    /**
+     * Closes any open stream pipes. The remote process itself is not affected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        
+        for (PipeChannel channel : new PipeChannel[] { this.stdin, this.stdout, this.stderr }) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return this.connectionInfo.address + ":" + this.handle;
+    }
+    
+}
@@ -0,0 +1,192 @@
+package jexe.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileInputStream;
+import jcifs.smb.SmbFileOutputStream;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * The JEXESVC executable, held in memory along with its SHA-256 hash. The binary is uploaded to
+ * the <code>ADMIN$</code> share of a machine with a sidecar file recording its hash; a later
+ * upload compares the remote size and sidecar against the local binary, and is skipped if they
+ * match, so that reinstalling an unchanged binary costs two small reads rather than a full copy.
+ */
+class ServiceBinary {
+    
+    static final String fileName = "jexesvc.exe";
+    static final String hashFileName = fileName + ".sha256";
+    
+    /**
+     * The path at which the binary is registered with the service control manager; the
+     * <code>ADMIN$</code> share is the system root.
+     */
+    static final String remotePath = "%SystemRoot%\\" + fileName;
+    
+    private final byte[] content;
+    private final String hash;
+    
+    ServiceBinary(byte[] content) {
+        this.content = content;
+        this.hash = ServiceBinary.sha256(content);
+    }
+    
+    /**
+     * 
+     * Loads the binary from the given stream, which is closed afterwards.
+     * 
+     * @param in
+     *            The stream from which to read the binary
+     * @return The binary
+     * @throws IOException
+     * 
+     */
+    static ServiceBinary load(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            
+            for (int read; (read = in.read(buffer)) > 0;) {
+                out.write(buffer, 0, read);
+            }
+            
+            return new ServiceBinary(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * 
+     * Uploads the binary to the machine specified by the given {@link ConnectionInfo} object,
+     * replacing any binary already there. The remote binary must not be running.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @throws IOException
+     * 
+     */
+    void upload(ConnectionInfo connectionInfo) throws IOException {
+        SmbFile binary = ServiceBinary.file(connectionInfo, fileName);
+        SmbFile hashFile = ServiceBinary.file(connectionInfo, hashFileName);
+        
+        // Drop the old hash first, so that an interrupted upload is never taken for current
+        if (hashFile.exists()) {
+            hashFile.delete();
+        }
+        
+        try (OutputStream out = new SmbFileOutputStream(binary)) {
+            out.write(this.content);
+        }
+        
+        try (OutputStream out = new SmbFileOutputStream(hashFile)) {
+            out.write(this.hash.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+    
+    /**
+     * 
+     * Checks whether the machine specified by the given {@link ConnectionInfo} object already has
+     * this binary, by its size and recorded hash.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @return Whether or not the remote binary matches
+     * @throws IOException
+     * 
+     */
+    boolean isCurrent(ConnectionInfo connectionInfo) throws IOException {
+        SmbFile binary = ServiceBinary.file(connectionInfo, fileName);
+        
+        if (!binary.exists() || binary.length() != this.content.length) {
+            return false;
+        }
+        
+        SmbFile hashFile = ServiceBinary.file(connectionInfo, hashFileName);
+        
+        if (!hashFile.exists() || hashFile.length() != this.hash.length()) {
+            return false;
+        }
+        
+        byte[] remoteHash = new byte[this.hash.length()];
+        
+        try (InputStream in = new SmbFileInputStream(hashFile)) {
+            for (int offset = 0, read; offset < remoteHash.length; offset += read) {
+                if ((read = in.read(remoteHash, offset, remoteHash.length - offset)) < 0) {
+                    return false;
+                }
+            }
+        }
+        
+        return this.hash.equals(new String(remoteHash, StandardCharsets.US_ASCII));
+    }
+    
+    /**
+     * 
+     * Deletes the binary and its hash from the machine specified by the given
+     * {@link ConnectionInfo} object, if present.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @throws IOException
+     * 
+     */
+    static void delete(ConnectionInfo connectionInfo) throws IOException {
+        for (String name : new String[] { hashFileName, fileName }) {
+            SmbFile file = ServiceBinary.file(connectionInfo, name);
+            
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+    }
+    
+    private static SmbFile file(ConnectionInfo connectionInfo, String name) throws IOException {
+        return new SmbFile("smb://" + connectionInfo.address + "/ADMIN$/" + name,
+                JEXECore.ntlmAuthentication(connectionInfo));
+    }
+    
+    static String sha256(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            
+            for (byte b : digest) {
+                builder.append(Character.forDigit(b >> 4 & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+            
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Returns the binary bundled alongside JEXECore, or throws if there is none.
+     */
+    static ServiceBinary bundled() throws JEXEException {
+        InputStream in = JEXECore.class.getResourceAsStream(fileName);
+        
+        if (in == null) {
+            throw new JEXEException("No JEXESVC binary bundled as " + fileName
+                    + "; set one with JEXECore.setServiceBinary");
+        }
+        
+        try {
+            return ServiceBinary.load(in);
+        } catch (IOException e) {
+            throw new JEXEException("Unable to read bundled JEXESVC binary", e);
+        }
+    }
+    
+}
@@ -0,0 +1,257 @@
+package jexe.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import jcifs.dcerpc.msrpc.svcctl;
+import jcifs.dcerpc.ndr.NdrLong;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * The services on a remote machine, fetched page by page as they are iterated. Each page is one
+ * <code>EnumServicesStatus</code> call continuing from the last through its resume handle; a page
+ * too small for even one entry is retried at the size the service control manager asks for. Only
+ * one page is held at a time, and entries are decoded from it as they are reached.
+ * 
+ * An enumeration holds an SVCCTL binding open until it is exhausted or closed.
+ */
+public class ServiceEnumeration implements Iterator<ServiceEnumeration.ServiceInfo>, Closeable {
+    
+    /**
+     * Specify as the type to list Win32 services, whether in their own process or shared.
+     */
+    public static final int SERVICE_WIN32 = svcctl.SC_TYPE_SERVICE_WIN32_OWN_PROCESS
+            | svcctl.SC_TYPE_SERVICE_WIN32_SHARE_PROCESS;
+    
+    /**
+     * Specify as the state to list services that are running or pending.
+     */
+    public static final int SERVICE_ACTIVE = 0x1;
+    
+    /**
+     * Specify as the state to list services that are stopped.
+     */
+    public static final int SERVICE_INACTIVE = 0x2;
+    
+    /**
+     * Specify as the state to list all services.
+     */
+    public static final int SERVICE_STATE_ALL = 0x3;
+    
+    /**
+     * The page size first requested.
+     */
+    static final int initialPageSize = 0x10000;
+    
+    /**
+     * The largest page the protocol allows.
+     */
+    static final int maxPageSize = 0x40000;
+    
+    /**
+     * The size of an ENUM_SERVICE_STATUSW entry: two string offsets and a SERVICE_STATUS.
+     */
+    static final int entrySize = 36;
+    
+    private final ServiceManager manager;
+    private final int type;
+    private final int state;
+    
+    private final NdrLong resumeHandle = new NdrLong(0);
+    private byte[] page = new byte[initialPageSize];
+    private int pageSize = initialPageSize;
+    private int pageEntries;
+    private int pageIndex;
+    private boolean more = true;
+    private boolean closed;
+    
+    ServiceEnumeration(ServiceManager manager, int type, int state) {
+        this.manager = manager;
+        this.type = type;
+        this.state = state;
+    }
+    
+    /**
+     * 
+     * Starts enumerating the services on the machine specified by the given
+     * {@link ConnectionInfo} object. No page is fetched until the first entry is asked for.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @param type
+     *            The types of service to list, such as {@link #SERVICE_WIN32}
+     * @param state
+     *            The states of service to list, such as {@link #SERVICE_STATE_ALL}
+     * @return The enumeration
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    public static ServiceEnumeration open(ConnectionInfo connectionInfo, int type, int state)
+            throws IOException, JEXEException {
+        return new ServiceEnumeration(ServiceManager.open(connectionInfo), type, state);
+    }
+    
+    /**
+     * Returns whether or not another service remains. A failure to fetch the next page is thrown
+     * as an {@link UncheckedIOException}, with any {@link JEXEException} as its cause's cause.
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            return this.fill();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (JEXEException e) {
+            throw new UncheckedIOException(new IOException(e.getMessage(), e));
+        }
+    }
+    
+    @Override
+    public ServiceInfo next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        return this.decode(this.pageIndex++ * entrySize);
+    }
+    
+    /**
+     * Returns the rest of the enumeration as a sequential stream, which closes the enumeration
+     * when it is closed.
+     */
+    public Stream<ServiceInfo> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(() -> {
+                    try {
+                        this.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+    
+    /**
+     * Makes sure the current page has an entry left, fetching pages as needed, and returns
+     * whether it does.
+     */
+    private boolean fill() throws IOException, JEXEException {
+        while (this.pageIndex >= this.pageEntries) {
+            if (!this.more || this.closed) {
+                this.close();
+                return false;
+            }
+            
+            if (this.page.length < this.pageSize) {
+                this.page = new byte[this.pageSize];
+            }
+            
+            svcctl.EnumServicesStatus message = this.manager.enumServicesStatus(this.type,
+                    this.state, this.page, this.resumeHandle);
+            
+            this.page = message.service;
+            this.pageEntries = message.services_returned;
+            this.pageIndex = 0;
+            this.more = message.retval == ServiceManager.ERROR_MORE_DATA;
+            
+            if (this.more && message.bytes_needed > this.pageSize) {
+                // The next entry would not fit; if not even one did, the page must grow to go on
+                if (this.pageEntries == 0 && this.pageSize == maxPageSize) {
+                    throw new JEXEException("SVCCTL: Service entry exceeds the largest page");
+                }
+                
+                this.pageSize = Math.min(maxPageSize, message.bytes_needed);
+            } else if (this.more && this.pageEntries == 0) {
+                throw new JEXEException("SVCCTL: EnumServicesStatus returned no services");
+            }
+        }
+        
+        return true;
+    }
+    
+    private ServiceInfo decode(int offset) {
+        ServiceInfo info = new ServiceInfo();
+        info.serviceName = this.string(this.int32(offset));
+        info.displayName = this.string(this.int32(offset + 4));
+        info.serviceType = this.int32(offset + 8);
+        info.currentState = this.int32(offset + 12);
+        info.controlsAccepted = this.int32(offset + 16);
+        info.win32ExitCode = this.int32(offset + 20);
+        info.serviceSpecificExitCode = this.int32(offset + 24);
+        info.checkPoint = this.int32(offset + 28);
+        info.waitHint = this.int32(offset + 32);
+        return info;
+    }
+    
+    private int int32(int offset) {
+        byte[] page = this.page;
+        return page[offset] & 0xFF | (page[offset + 1] & 0xFF) << 8
+                | (page[offset + 2] & 0xFF) << 16 | page[offset + 3] << 24;
+    }
+    
+    /**
+     * Decodes the null-terminated UTF-16LE string at the given offset into the page.
+     */
+    private String string(int offset) {
+        if (offset <= 0 || offset >= this.page.length) {
+            return null;
+        }
+        
+        int end = offset;
+        
+        while (end + 1 < this.page.length && (this.page[end] != 0 || this.page[end + 1] != 0)) {
+            end += 2;
+        }
+        
+        return new String(this.page, offset, end - offset, StandardCharsets.UTF_16LE);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.manager.close();
+        }
+    }
+    
+    /**
+     * A service as listed by the service control manager.
+     */
+    public static class ServiceInfo {
+        
+        public String serviceName;
+        public String displayName;
+        
+        /**
+         * The type of the service; see the <code>SC_TYPE_*</code> constants of {@link svcctl}.
+         */
+        public int serviceType;
+        
+        /**
+         * The state of the service; see the <code>SC_STATE_*</code> constants of {@link svcctl}.
+         */
+        public int currentState;
+        
+        public int controlsAccepted;
+        public int win32ExitCode;
+        public int serviceSpecificExitCode;
+        public int checkPoint;
+        public int waitHint;
+        
+        @Override
+        public String toString() {
+            return this.serviceName;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,474 @@
+package jexe.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import jcifs.dcerpc.DcerpcHandle;
+import jcifs.dcerpc.DcerpcMessage;
+import jcifs.dcerpc.msrpc.svcctl;
+import jcifs.dcerpc.ndr.NdrLong;
+import jcifs.dcerpc.rpc;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * A connection to the service control manager of a remote machine, made over the SVCCTL pipe. One
+ * DCERPC binding and one SCM handle serve every call made through the connection.
+ * 
+ * The messages sent over and over, such as status queries while waiting on a service, are kept
+ * and reused for each call rather than allocated afresh; JCIFS already draws the encode and
+ * decode buffers for each call from its shared buffer cache. Calls are therefore serialized.
+ */
+class ServiceManager implements Closeable {
+    
+    static final int ERROR_MORE_DATA = 234;
+    static final int ERROR_SERVICE_DOES_NOT_EXIST = 1060;
+    static final int ERROR_SERVICE_ALREADY_RUNNING = 1056;
+    static final int ERROR_SERVICE_NOT_ACTIVE = 1062;
+    static final int ERROR_SERVICE_MARKED_FOR_DELETE = 1072;
+    static final int ERROR_SERVICE_EXISTS = 1073;
+    
+    static final int SERVICE_ALL_ACCESS = 0xF01FF;
+    
+    private final ConnectionInfo connectionInfo;
+    private final DcerpcHandle handle;
+    private final rpc.policy_handle scmHandle;
+    
+    private final OpenCall openCall = new OpenCall();
+    private final StartCall startCall = new StartCall();
+    private final ControlCall controlCall = new ControlCall();
+    private final QueryCall queryCall = new QueryCall();
+    private final EnumCall enumCall = new EnumCall();
+    private final CloseCall closeCall = new CloseCall();
+    
+    private ServiceManager(ConnectionInfo connectionInfo, DcerpcHandle handle,
+            rpc.policy_handle scmHandle) {
+        this.connectionInfo = connectionInfo;
+        this.handle = handle;
+        this.scmHandle = scmHandle;
+    }
+    
+    /**
+     * 
+     * Binds to the SVCCTL pipe of the machine specified by the given {@link ConnectionInfo}
+     * object, and opens its service control manager with full access.
+     * 
+     * @param connectionInfo
+     *            Information specifying a connection to the target machine
+     * @return The open service manager
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    static ServiceManager open(ConnectionInfo connectionInfo) throws IOException, JEXEException {
+        DcerpcHandle handle = DcerpcHandle.getHandle("ncacn_np:" + connectionInfo.address
+                + "[\\PIPE\\svcctl]", JEXECore.ntlmAuthentication(connectionInfo));
+        
+        try {
+            rpc.policy_handle scmHandle = new rpc.policy_handle();
+            svcctl.OpenSCManager message = new svcctl.OpenSCManager("\\\\"
+                    + connectionInfo.address, null, svcctl.SC_MANAGER_ALL_ACCESS, scmHandle);
+            
+            handle.sendrecv(message);
+            ServiceManager.check(connectionInfo, "OpenSCManager", message.retval);
+            
+            return new ServiceManager(connectionInfo, handle, scmHandle);
+        } catch (IOException | JEXEException | RuntimeException e) {
+            handle.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * 
+     * Opens the given service.
+     * 
+     * @param serviceName
+     *            The name of the service
+     * @return A handle to the service, or null if there is no such service
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized rpc.policy_handle openService(String serviceName) throws IOException,
+            JEXEException {
+        rpc.policy_handle serviceHandle = new rpc.policy_handle();
+        svcctl.OpenService message = this.openCall.prepare(this.scmHandle, serviceName,
+                serviceHandle);
+        
+        this.sendrecv(message);
+        
+        if (message.retval == ERROR_SERVICE_DOES_NOT_EXIST) {
+            return null;
+        }
+        
+        this.check("OpenService", message.retval);
+        return serviceHandle;
+    }
+    
+    /**
+     * 
+     * Registers a service that runs the given binary, starting on demand as LocalSystem.
+     * 
+     * @param serviceName
+     *            The name of the service
+     * @param displayName
+     *            The display name of the service
+     * @param binaryPath
+     *            The path to the service binary on the remote machine
+     * @return A handle to the new service, or null if a service by that name already exists
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized rpc.policy_handle createService(String serviceName, String displayName,
+            String binaryPath) throws IOException, JEXEException {
+        rpc.policy_handle serviceHandle = new rpc.policy_handle();
+        svcctl.CreateServiceW message = new svcctl.CreateServiceW(this.scmHandle, serviceName,
+                displayName, SERVICE_ALL_ACCESS, svcctl.SC_TYPE_SERVICE_WIN32_OWN_PROCESS,
+                svcctl.SC_START_TYPE_SERVICE_DEMAND_START, svcctl.SC_SERVICE_ERROR_NORMAL,
+                binaryPath, null, null, null, 0, null, null, 0, serviceHandle);
+        
+        this.sendrecv(message);
+        
+        if (message.retval == ERROR_SERVICE_EXISTS) {
+            return null;
+        }
+        
+        this.check("CreateService", message.retval);
+        return serviceHandle;
+    }
+    
+    /**
+     * 
+     * Starts the given service. A service that is already running is left alone.
+     * 
+     * @param serviceHandle
+     *            A handle to the service
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized void startService(rpc.policy_handle serviceHandle) throws IOException,
+            JEXEException {
+        svcctl.StartService message = this.startCall.prepare(serviceHandle);
+        
+        this.sendrecv(message);
+        
+        if (message.retval != ERROR_SERVICE_ALREADY_RUNNING) {
+            this.check("StartService", message.retval);
+        }
+    }
+    
+    /**
+     * 
+     * Asks the given service to stop. A service that is not running is left alone.
+     * 
+     * @param serviceHandle
+     *            A handle to the service
+     * @return The status of the service once the request was sent
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized svcctl.service_status stopService(rpc.policy_handle serviceHandle)
+            throws IOException, JEXEException {
+        svcctl.service_status status = new svcctl.service_status();
+        svcctl.ControlService message = this.controlCall.prepare(serviceHandle,
+                svcctl.SERVICE_CONTROL_STOP, status);
+        
+        this.sendrecv(message);
+        
+        if (message.retval == ERROR_SERVICE_NOT_ACTIVE) {
+            status.current_state = svcctl.SC_STATE_SERVICE_STOPPED;
+            return status;
+        }
+        
+        this.check("ControlService", message.retval);
+        return status;
+    }
+    
+    /**
+     * 
+     * Queries the status of the given service.
+     * 
+     * @param serviceHandle
+     *            A handle to the service
+     * @return The status of the service
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    svcctl.service_status queryStatus(rpc.policy_handle serviceHandle) throws IOException,
+            JEXEException {
+        return this.queryStatus(serviceHandle, new svcctl.service_status());
+    }
+    
+    /**
+     * 
+     * Queries the status of the given service into the given status object, so that a caller
+     * polling a service can reuse one.
+     * 
+     * @param serviceHandle
+     *            A handle to the service
+     * @param status
+     *            The object into which to decode the status
+     * @return The given status object
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized svcctl.service_status queryStatus(rpc.policy_handle serviceHandle,
+            svcctl.service_status status) throws IOException, JEXEException {
+        svcctl.QueryServiceStatus message = this.queryCall.prepare(serviceHandle, status);
+        
+        this.sendrecv(message);
+        this.check("QueryServiceStatus", message.retval);
+        
+        return status;
+    }
+    
+    /**
+     * 
+     * Starts waiting for the given service to reach the given state; see
+     * {@link ServiceStateWaiter}. No thread is held while waiting, and the manager must not be
+     * used from elsewhere until the returned future completes. Cancelling the future stops the
+     * polls.
+     * 
+     * @param serviceHandle
+     *            A handle to the service
+     * @param state
+     *            The state for which to wait; one of the <code>SC_STATE_*</code> constants of
+     *            {@link svcctl}
+     * @param timeout
+     *            The time to wait in milliseconds
+     * @return A future for the status in which the service reached the state
+     * 
+     */
+    CompletableFuture<svcctl.service_status> waitForState(rpc.policy_handle serviceHandle,
+            int state, long timeout) {
+        return ServiceStateWaiter.start(this, serviceHandle, state, timeout);
+    }
+    
+    /**
+     * Returns the connection information of the machine whose service control manager this is.
+     */
+    ConnectionInfo connectionInfo() {
+        return this.connectionInfo;
+    }
+    
+    /**
+     * 
+     * Fetches one page of the services known to the service control manager.
+     * 
+     * @param type
+     *            The types of service to list
+     * @param state
+     *            The states of service to list
+     * @param buffer
+     *            The buffer into which to receive the page; its length is the page size requested
+     * @param resumeHandle
+     *            The position from which to continue, updated to the position after this page
+     * @return The message, carrying the number of services returned, the bytes needed for the
+     *         next one, and whether more remain
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized svcctl.EnumServicesStatus enumServicesStatus(int type, int state,
+            byte[] buffer, NdrLong resumeHandle) throws IOException, JEXEException {
+        svcctl.EnumServicesStatus message = this.enumCall.prepare(this.scmHandle, type, state,
+                buffer, resumeHandle);
+        
+        this.sendrecv(message);
+        
+        if (message.retval != ERROR_MORE_DATA) {
+            this.check("EnumServicesStatus", message.retval);
+        }
+        
+        return message;
+    }
+    
+    /**
+     * 
+     * Marks the given service for deletion. The service is removed once every handle to it,
+     * including the given one, is closed.
+     * 
+     * @param serviceHandle
+     *            A handle to the service
+     * @throws IOException
+     * @throws JEXEException
+     * 
+     */
+    synchronized void deleteService(rpc.policy_handle serviceHandle) throws IOException,
+            JEXEException {
+        svcctl.DeleteService message = new svcctl.DeleteService(serviceHandle);
+        
+        this.sendrecv(message);
+        
+        if (message.retval != ERROR_SERVICE_MARKED_FOR_DELETE) {
+            this.check("DeleteService", message.retval);
+        }
+    }
+    
+    /**
+     * Closes the given service handle, ignoring failures; there is nothing to be done about them.
+     */
+    synchronized void closeServiceHandle(rpc.policy_handle serviceHandle) {
+        if (serviceHandle == null) {
+            return;
+        }
+        
+        try {
+            this.sendrecv(this.closeCall.prepare(serviceHandle));
+        } catch (IOException e) {
+        }
+    }
+    
+    private void sendrecv(DcerpcMessage message) throws IOException {
+        this.handle.sendrecv(message);
+    }
+    
+    private void check(String operation, int retval) throws JEXEException {
+        ServiceManager.check(this.connectionInfo, operation, retval);
+    }
+    
+    private static void check(ConnectionInfo connectionInfo, String operation, int retval)
+            throws JEXEException {
+        if (retval != 0) {
+            throw new JEXEException("SVCCTL: " + operation + " failed on "
+                    + connectionInfo.address + " with error " + retval);
+        }
+    }
+    
+    /*
+     * Reusable messages. A message decoded from a response carries the response's packet type and
+     * any fault, so each is reset to a plain request before it is sent again.
+     */
+    
+    private static class OpenCall extends svcctl.OpenService {
+        
+        OpenCall() {
+            super(null, null, SERVICE_ALL_ACCESS, null);
+        }
+        
+        OpenCall prepare(rpc.policy_handle scmHandle, String serviceName,
+                rpc.policy_handle serviceHandle) {
+            this.scmanager_handle = scmHandle;
+            this.service_name = serviceName;
+            this.handle = serviceHandle;
+            this.retval = 0;
+            this.ptype = 0;
+            this.result = 0;
+            return this;
+        }
+        
+    }
+    
+    private static class StartCall extends svcctl.StartService {
+        
+        StartCall() {
+            super(null, 0, null);
+        }
+        
+        StartCall prepare(rpc.policy_handle serviceHandle) {
+            this.handle = serviceHandle;
+            this.retval = 0;
+            this.ptype = 0;
+            this.result = 0;
+            return this;
+        }
+        
+    }
+    
+    private static class ControlCall extends svcctl.ControlService {
+        
+        ControlCall() {
+            super(null, 0, null);
+        }
+        
+        ControlCall prepare(rpc.policy_handle serviceHandle, int control,
+                svcctl.service_status status) {
+            this.service_handle = serviceHandle;
+            this.control = control;
+            this.status = status;
+            this.retval = 0;
+            this.ptype = 0;
+            this.result = 0;
+            return this;
+        }
+        
+    }
+    
+    private static class QueryCall extends svcctl.QueryServiceStatus {
+        
+        QueryCall() {
+            super(null, null);
+        }
+        
+        QueryCall prepare(rpc.policy_handle serviceHandle, svcctl.service_status status) {
+            this.service_handle = serviceHandle;
+            this.status = status;
+            this.retval = 0;
+            this.ptype = 0;
+            this.result = 0;
+            return this;
+        }
+        
+    }
+    
+    private static class EnumCall extends svcctl.EnumServicesStatus {
+        
+        EnumCall() {
+            super(null, 0, 0, 0, null, 0, 0, null);
+        }
+        
+        EnumCall prepare(rpc.policy_handle scmHandle, int type, int state, byte[] buffer,
+                NdrLong resumeHandle) {
+            this.handle = scmHandle;
+            this.type = type;
+            this.state = state;
+            this.buf_size = buffer.length;
+            this.service = buffer;
+            this.bytes_needed = 0;
+            this.services_returned = 0;
+            this.resume_handle = resumeHandle;
+            this.retval = 0;
+            this.ptype = 0;
+            this.result = 0;
+            return this;
+        }
+        
+    }
+    
+    private static class CloseCall extends svcctl.CloseServiceHandle {
+        
+        CloseCall() {
+            super(null);
+        }
+        
+        CloseCall prepare(rpc.policy_handle handle) {
+            this.handle = handle;
+            this.retval = 0;
+            this.ptype = 0;
+            this.result = 0;
+            return this;
+        }
+        
+    }
+    
+    /**
+     * Closes the connection. A call in progress, such as a poll of a wait that has been
+     * cancelled, is let finish first.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            this.closeServiceHandle(this.scmHandle);
+        } finally {
+            this.handle.close();
+        }
+    }
+    
+}
@@ -0,0 +1,133 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import jcifs.dcerpc.msrpc.svcctl;
+import jcifs.dcerpc.rpc;
+import jexe.core.JEXECore.JEXEException;
+
+/**
+ * Waits for a service to reach a state by polling <code>QueryServiceStatus</code>, pacing the
+ * polls by the service's own <code>wait_hint</code> as the service control manager documentation
+ * recommends: one tenth of the hint, within 100 ms and 10 s. A pending service that reports no
+ * progress through <code>check_point</code> for longer than its hint is taken to have stalled.
+ * 
+ * No thread is held between polls; each poll is scheduled through
+ * {@link AsyncCall#schedule(Runnable, long, CompletableFuture)}, so a rollout may wait on many
+ * services at once.
+ */
+class ServiceStateWaiter extends CompletableFuture<svcctl.service_status> implements Runnable {
+    
+    static final long minInterval = 100;
+    static final long maxInterval = 10000;
+    
+    private final ServiceManager manager;
+    private final rpc.policy_handle serviceHandle;
+    private final int state;
+    private final long timeout;
+    private final long deadline;
+    
+    private final svcctl.service_status status = new svcctl.service_status();
+    
+    private int lastState = -1;
+    private int lastCheckPoint = -1;
+    private long lastProgress;
+    
+    private ServiceStateWaiter(ServiceManager manager, rpc.policy_handle serviceHandle, int state,
+            long timeout) {
+        this.manager = manager;
+        this.serviceHandle = serviceHandle;
+        this.state = state;
+        this.timeout = timeout;
+        this.deadline = System.nanoTime() + timeout * 1000000;
+        this.lastProgress = System.nanoTime();
+    }
+    
+    /**
+     * 
+     * Starts waiting for the given service to reach the given state. The first poll is made
+     * immediately.
+     * 
+     * @param manager
+     *            The service manager through which to poll; polls for one wait never overlap, but
+     *            the caller must not use the manager from elsewhere until the wait is done
+     * @param serviceHandle
+     *            A handle to the service
+     * @param state
+     *            The state for which to wait; one of the <code>SC_STATE_*</code> constants of
+     *            {@link svcctl}
+     * @param timeout
+     *            The longest time to wait in milliseconds
+     * @return A future for the status in which the service reached the state
+     * 
+     */
+    static CompletableFuture<svcctl.service_status> start(ServiceManager manager,
+            rpc.policy_handle serviceHandle, int state, long timeout) {
+        ServiceStateWaiter waiter = new ServiceStateWaiter(manager, serviceHandle, state, timeout);
+        AsyncCall.schedule(waiter, 0, waiter);
+        return waiter;
+    }
+    
+    @Override
+    public void run() {
+        if (this.isDone()) {
+            return;
+        }
+        
+        try {
+            long interval = this.poll();
+            
+            if (interval >= 0) {
+                AsyncCall.schedule(this, interval, this);
+            }
+        } catch (IOException | JEXEException | RuntimeException e) {
+            this.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * Polls the service once, and returns the time until the next poll, or -1 if the wait is over.
+     */
+    private long poll() throws IOException, JEXEException {
+        svcctl.service_status status = this.manager.queryStatus(this.serviceHandle, this.status);
+        long now = System.nanoTime();
+        long waitHint = status.wait_hint & 0xFFFFFFFFL;
+        
+        if (status.current_state == this.state) {
+            this.complete(status);
+            return -1;
+        }
+        
+        // A service that stops while it should be starting has failed, and will not recover
+        if (this.state == svcctl.SC_STATE_SERVICE_RUNNING
+                && status.current_state == svcctl.SC_STATE_SERVICE_STOPPED) {
+            throw new JEXEException("SVCCTL: Service stopped while starting on "
+                    + this.address() + ", with exit code " + status.win32_exit_code);
+        }
+        
+        if (status.current_state != this.lastState || status.check_point != this.lastCheckPoint) {
+            this.lastState = status.current_state;
+            this.lastCheckPoint = status.check_point;
+            this.lastProgress = now;
+        } else if (waitHint > 0 && now - this.lastProgress > waitHint * 1000000) {
+            throw new JEXEException("SVCCTL: Service stalled on " + this.address() + " in state "
+                    + status.current_state + " at check point " + status.check_point);
+        }
+        
+        long remaining = (this.deadline - now) / 1000000;
+        
+        if (remaining <= 0) {
+            throw new JEXEException("SVCCTL: Service did not reach state " + this.state + " on "
+                    + this.address() + " within " + this.timeout + " ms");
+        }
+        
+        long interval = Math.max(minInterval, Math.min(maxInterval, waitHint / 10));
+        return Math.min(interval, remaining);
+    }
+    
+    private String address() {
+        return this.manager.connectionInfo().address;
+    }
+    
+}
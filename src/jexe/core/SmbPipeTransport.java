@@ -0,0 +1,37 @@
+package jexe.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jcifs.smb.SmbNamedPipe;
+import jexe.core.JEXECore.ConnectionInfo;
+
+/**
+ * The default {@link JEXETransport}, which opens JEXESVC's pipes as SMB named pipes under the
+ * <code>IPC$</code> share of each machine, authenticated through
+ * {@link JEXECore#getCredentialCache()}.
+ */
+public class SmbPipeTransport implements JEXETransport {
+    
+    @Override
+    public Pipe open(ConnectionInfo connectionInfo, String pipeUrl, int access)
+            throws IOException {
+        int pipeType;
+        
+        if (access == READ) {
+            pipeType = SmbNamedPipe.PIPE_TYPE_RDONLY;
+        } else if (access == WRITE) {
+            pipeType = SmbNamedPipe.PIPE_TYPE_WRONLY;
+        } else {
+            pipeType = SmbNamedPipe.PIPE_TYPE_RDWR;
+        }
+        
+        SmbNamedPipe pipe = JEXECore.namedPipe(connectionInfo, pipeUrl, pipeType);
+        OutputStream out = (access & WRITE) != 0 ? pipe.getNamedPipeOutputStream() : null;
+        InputStream in = (access & READ) != 0 ? pipe.getNamedPipeInputStream() : null;
+        
+        return new Pipe(in, out);
+    }
+    
+}
@@ -0,0 +1,116 @@
+package jexe.core;
+
+import java.util.Arrays;
+
+import jexe.core.JEXEProcess.QueryInfo;
+import jexe.core.JEXEProcess.WindowQueryInfo;
+
+/**
+ * A table of windows, as returned by {@link JEXEProcess#queryWindows(JEXECore.ConnectionInfo,
+ * WindowQueryInfo)}. A process may own many windows, so a PID may appear in many rows. Lookups by
+ * PID or title go through hash indexes; the title index is built on first use.
+ */
+public class WindowTable extends QueryTable {
+    
+    private final String[] titles;
+    
+    private final StringIndex titleIndex;
+    
+    WindowTable(int size, int[] pids, String[] titles) {
+        super(size, pids);
+        
+        this.titles = titles;
+        this.titleIndex = new StringIndex(titles, size);
+    }
+    
+    /**
+     * Returns the window title in the given row.
+     */
+    public String title(int row) {
+        this.check(row);
+        return this.titles[row];
+    }
+    
+    /**
+     * 
+     * Returns the rows of the windows with the given title, ignoring case.
+     * 
+     * @param title
+     *            The title for which to search
+     * @return The matching rows, in table order
+     * 
+     */
+    public int[] rowsByTitle(String title) {
+        return this.titleIndex.rows(title);
+    }
+    
+    @Override
+    public WindowQueryInfo get(int row) {
+        this.check(row);
+        
+        WindowQueryInfo windowInfo = new WindowQueryInfo();
+        windowInfo.pid = this.pids[row];
+        windowInfo.title = this.titles[row];
+        
+        return windowInfo;
+    }
+    
+    @Override
+    public int[] select(QueryInfo queryInfo) {
+        WindowQueryInfo windowQueryInfo = (WindowQueryInfo) queryInfo;
+        int[] candidates;
+        
+        if (windowQueryInfo.pid > 0) {
+            candidates = this.rowsByPid(windowQueryInfo.pid);
+        } else if (windowQueryInfo.title != null) {
+            candidates = this.rowsByTitle(windowQueryInfo.title);
+        } else {
+            candidates = this.allRows();
+        }
+        
+        return filter(candidates, row -> matches(windowQueryInfo.title, this.titles[row]));
+    }
+    
+    @Override
+    public WindowQueryInfo[] toArray() {
+        WindowQueryInfo[] windows = new WindowQueryInfo[this.size];
+        
+        for (int i = 0; i < this.size; i++) {
+            windows[i] = this.get(i);
+        }
+        
+        return windows;
+    }
+    
+    /**
+     * Collects windows into a {@link WindowTable}.
+     */
+    static class Builder {
+        
+        private final StringPool strings = new StringPool();
+        
+        private int size;
+        private int[] pids = new int[256];
+        private String[] titles = new String[256];
+        
+        Builder add(WindowQueryInfo windowInfo) {
+            if (this.size == this.pids.length) {
+                int capacity = this.size * 2;
+                this.pids = Arrays.copyOf(this.pids, capacity);
+                this.titles = Arrays.copyOf(this.titles, capacity);
+            }
+            
+            this.pids[this.size] = windowInfo.pid;
+            this.titles[this.size] = this.strings.intern(windowInfo.title);
+            this.size++;
+            
+            return this;
+        }
+        
+        WindowTable build() {
+            return new WindowTable(this.size, this.pids, this.titles);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,349 @@
+package jexe.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jexe.core.JEXECore;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXETransport;
+
+/**
+ * A {@link JEXETransport} that reaches simulated machines rather than real ones, each running a
+ * simulated JEXESVC which speaks the same protocol over its command pipe: <code>exec</code>,
+ * <code>kill</code> and <code>query processes</code> and <code>windows</code>, with filters. Set
+ * it with {@link JEXECore#setTransport(JEXETransport)}, and any address reaches a machine of its
+ * own, created on first use with a process table of {@link #getProcesses()} entries.
+ * 
+ * Round trips take {@link #getLatency()}, plus up to {@link #getJitter()} more, and opening a
+ * pipe takes {@link #getConnectLatency()}. A share of commands, {@link #getErrorRate()}, is
+ * answered with an error, and another, {@link #getDropRate()}, breaks the pipe instead of being
+ * answered. The standard stream pipes of started processes are empty.
+ * 
+ * Processes started with <code>exec</code> run until killed, or, if {@link #getRunTime()} is set,
+ * exit with code 0 after a random time up to it, as the short tasks of a job runner would.
+ * 
+ * Machines stream process events to pipes that subscribe to them, unless
+ * {@link #isSubscriptions()} is turned off to simulate a JEXESVC that predates subscriptions.
+ */
+public class JEXESimulator implements JEXETransport {
+    
+    private final ConcurrentMap<String, SimulatedHost> hosts =
+            new ConcurrentHashMap<String, SimulatedHost>();
+    
+    private volatile long latency = 1;
+    private volatile long jitter = 0;
+    private volatile long connectLatency = 0;
+    private volatile double errorRate = 0;
+    private volatile double dropRate = 0;
+    private volatile int processes = 100;
+    private volatile int windows = 20;
+    private volatile boolean subscriptions = true;
+    private volatile long runTime = 0;
+    
+    private ScheduledThreadPoolExecutor exits;
+    
+    /**
+     * Returns the round trip time of a command, in milliseconds, before jitter.
+     */
+    public long getLatency() {
+        return this.latency;
+    }
+    
+    /**
+     * 
+     * Sets the round trip time of a command, in milliseconds, before jitter.
+     * 
+     * @param latency
+     *            The round trip time in milliseconds
+     * 
+     */
+    public void setLatency(long latency) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("latency must not be negative");
+        }
+        
+        this.latency = latency;
+    }
+    
+    /**
+     * Returns the most time, in milliseconds, randomly added to each round trip.
+     */
+    public long getJitter() {
+        return this.jitter;
+    }
+    
+    /**
+     * 
+     * Sets the most time, in milliseconds, randomly added to each round trip.
+     * 
+     * @param jitter
+     *            The jitter in milliseconds
+     * 
+     */
+    public void setJitter(long jitter) {
+        if (jitter < 0) {
+            throw new IllegalArgumentException("jitter must not be negative");
+        }
+        
+        this.jitter = jitter;
+    }
+    
+    /**
+     * Returns the time, in milliseconds, taken to open a pipe.
+     */
+    public long getConnectLatency() {
+        return this.connectLatency;
+    }
+    
+    /**
+     * 
+     * Sets the time, in milliseconds, taken to open a pipe.
+     * 
+     * @param connectLatency
+     *            The time in milliseconds
+     * 
+     */
+    public void setConnectLatency(long connectLatency) {
+        if (connectLatency < 0) {
+            throw new IllegalArgumentException("connectLatency must not be negative");
+        }
+        
+        this.connectLatency = connectLatency;
+    }
+    
+    /**
+     * Returns the share of commands answered with an error.
+     */
+    public double getErrorRate() {
+        return this.errorRate;
+    }
+    
+    /**
+     * 
+     * Sets the share of commands answered with an error.
+     * 
+     * @param errorRate
+     *            The share, between 0 and 1
+     * 
+     */
+    public void setErrorRate(double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("errorRate must be between 0 and 1");
+        }
+        
+        this.errorRate = errorRate;
+    }
+    
+    /**
+     * Returns the share of commands that break the pipe instead of being answered.
+     */
+    public double getDropRate() {
+        return this.dropRate;
+    }
+    
+    /**
+     * 
+     * Sets the share of commands that break the pipe instead of being answered.
+     * 
+     * @param dropRate
+     *            The share, between 0 and 1
+     * 
+     */
+    public void setDropRate(double dropRate) {
+        if (dropRate < 0 || dropRate > 1) {
+            throw new IllegalArgumentException("dropRate must be between 0 and 1");
+        }
+        
+        this.dropRate = dropRate;
+    }
+    
+    /**
+     * Returns the number of processes with which each machine starts.
+     */
+    public int getProcesses() {
+        return this.processes;
+    }
+    
+    /**
+     * 
+     * Sets the number of processes with which each machine starts. Machines already created keep
+     * their processes.
+     * 
+     * @param processes
+     *            The number of processes
+     * 
+     */
+    public void setProcesses(int processes) {
+        if (processes < 0) {
+            throw new IllegalArgumentException("processes must not be negative");
+        }
+        
+        this.processes = processes;
+    }
+    
+    /**
+     * Returns the number of windows with which each machine starts.
+     */
+    public int getWindows() {
+        return this.windows;
+    }
+    
+    /**
+     * 
+     * Sets the number of windows with which each machine starts. Machines already created keep
+     * their windows.
+     * 
+     * @param windows
+     *            The number of windows
+     * 
+     */
+    public void setWindows(int windows) {
+        if (windows < 0) {
+            throw new IllegalArgumentException("windows must not be negative");
+        }
+        
+        this.windows = windows;
+    }
+    
+    /**
+     * Returns whether or not machines accept subscriptions to process events.
+     */
+    public boolean isSubscriptions() {
+        return this.subscriptions;
+    }
+    
+    /**
+     * 
+     * Sets whether or not machines accept subscriptions to process events. Subscriptions already
+     * made are kept.
+     * 
+     * @param subscriptions
+     *            Whether or not subscriptions are accepted
+     * 
+     */
+    public void setSubscriptions(boolean subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+    
+    /**
+     * Returns the most time, in milliseconds, for which a started process runs before it exits by
+     * itself, or zero if processes run until killed.
+     */
+    public long getRunTime() {
+        return this.runTime;
+    }
+    
+    /**
+     * 
+     * Sets the most time, in milliseconds, for which a started process runs before it exits by
+     * itself. Processes already started are not affected.
+     * 
+     * @param runTime
+     *            The time in milliseconds, or zero for processes to run until killed
+     * 
+     */
+    public void setRunTime(long runTime) {
+        if (runTime < 0) {
+            throw new IllegalArgumentException("runTime must not be negative");
+        }
+        
+        this.runTime = runTime;
+    }
+    
+    /**
+     * Runs the given task after the given delay, in milliseconds, on a thread shared by all
+     * machines, started on first use.
+     */
+    synchronized void schedule(Runnable task, long delay) {
+        if (this.exits == null) {
+            this.exits = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "jexe-sim-exits");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        
+        this.exits.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 
+     * Returns the simulated machine at the given address, creating it if need be.
+     * 
+     * @param address
+     *            The address of the machine
+     * @return The machine
+     * 
+     */
+    public SimulatedHost host(String address) {
+        SimulatedHost host = this.hosts.get(address);
+        
+        if (host == null) {
+            host = new SimulatedHost(this, address, this.processes, this.windows);
+            SimulatedHost existing = this.hosts.putIfAbsent(address, host);
+            
+            if (existing != null) {
+                host = existing;
+            }
+        }
+        
+        return host;
+    }
+    
+    /**
+     * Forgets all simulated machines; each is created afresh when next reached.
+     */
+    public void clear() {
+        this.hosts.clear();
+    }
+    
+    @Override
+    public Pipe open(ConnectionInfo connectionInfo, String pipeUrl, int access)
+            throws IOException {
+        long connectLatency = this.connectLatency;
+        
+        if (connectLatency > 0) {
+            try {
+                Thread.sleep(connectLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        
+        SimulatedHost host = this.host(connectionInfo.address);
+        
+        if (!host.isReachable()) {
+            throw new IOException("Failed to connect: " + connectionInfo.address);
+        }
+        
+        if (pipeUrl.endsWith("/cmd")) {
+            SimulatedPipe pipe = new SimulatedPipe(this, host);
+            return new Pipe((access & READ) != 0 ? pipe.in : null,
+                    (access & WRITE) != 0 ? pipe.out : null);
+        }
+        
+        // Processes print nothing and read nothing
+        return new Pipe((access & READ) != 0 ? new InputStream() {
+            
+            @Override
+            public int read() {
+                return -1;
+            }
+            
+        } : null, (access & WRITE) != 0 ? new OutputStream() {
+            
+            @Override
+            public void write(int b) {
+            }
+            
+        } : null);
+    }
+    
+}
@@ -0,0 +1,495 @@
+package jexe.sim;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jexe.core.JEXECore;
+import jexe.core.JEXECore.Authentication;
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXECore.JEXEException;
+import jexe.core.JEXEProcess;
+import jexe.core.JEXEProcess.ProcessCreationInfo;
+import jexe.core.JEXEProcess.ProcessQueryInfo;
+import jexe.core.JEXETransport;
+import jexe.core.NioTcpTransport;
+
+/**
+ * Drives a fleet of simulated machines through {@link JEXEProcess}, as a client would drive real
+ * ones, and reports the throughput and latency seen by the client. Each worker thread picks a
+ * random machine and a random operation: a process query, filtered by name or not, an
+ * <code>exec</code>, or a <code>kill</code> of a random running process. Every layer of JEXE is
+ * exercised as configured, from the session pool to the snapshot cache; only the transport is
+ * replaced, for the duration of {@link #run()}, by the simulator itself or, with
+ * {@link #setTransport(JEXETransport)}, by another transport reaching it, such as
+ * {@link NioTcpTransport} through a {@link SimulatorServer}.
+ * 
+ * From the command line, options are given as <code>name=value</code>, for example
+ * <code>hosts=5000 threads=64 duration=30 latency=5 jitter=20 errorRate=0.01</code>; with
+ * <code>transport=tcp</code>, the simulator is reached over loopback TCP.
+ */
+public class LoadGenerator {
+    
+    private final JEXESimulator simulator;
+    
+    private volatile JEXETransport transport;
+    private volatile int hosts = 1000;
+    private volatile int threads = 16;
+    private volatile long duration = 10000;
+    private volatile double execShare = 0.1;
+    private volatile double killShare = 0.1;
+    
+    public LoadGenerator(JEXESimulator simulator) {
+        this.simulator = simulator;
+        this.transport = simulator;
+    }
+    
+    public JEXESimulator getSimulator() {
+        return this.simulator;
+    }
+    
+    /**
+     * Returns the transport over which the simulated machines are reached.
+     */
+    public JEXETransport getTransport() {
+        return this.transport;
+    }
+    
+    /**
+     * 
+     * Sets the transport over which the simulated machines are reached. It must reach the
+     * machines of this generator's simulator, since <code>kill</code> picks its PIDs from them.
+     * 
+     * @param transport
+     *            The transport, or null to use the simulator directly
+     * 
+     */
+    public void setTransport(JEXETransport transport) {
+        this.transport = transport != null ? transport : this.simulator;
+    }
+    
+    /**
+     * Returns the number of simulated machines over which load is spread.
+     */
+    public int getHosts() {
+        return this.hosts;
+    }
+    
+    /**
+     * 
+     * Sets the number of simulated machines over which load is spread.
+     * 
+     * @param hosts
+     *            The number of machines
+     * 
+     */
+    public void setHosts(int hosts) {
+        if (hosts < 1) {
+            throw new IllegalArgumentException("hosts must be at least 1");
+        }
+        
+        this.hosts = hosts;
+    }
+    
+    /**
+     * Returns the number of threads issuing operations.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+    
+    /**
+     * 
+     * Sets the number of threads issuing operations; each waits for one operation to finish
+     * before it starts the next.
+     * 
+     * @param threads
+     *            The number of threads
+     * 
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        
+        this.threads = threads;
+    }
+    
+    /**
+     * Returns the length of a run in milliseconds.
+     */
+    public long getDuration() {
+        return this.duration;
+    }
+    
+    /**
+     * 
+     * Sets the length of a run in milliseconds.
+     * 
+     * @param duration
+     *            The length in milliseconds
+     * 
+     */
+    public void setDuration(long duration) {
+        if (duration < 1) {
+            throw new IllegalArgumentException("duration must be at least 1");
+        }
+        
+        this.duration = duration;
+    }
+    
+    /**
+     * Returns the share of operations that start a process.
+     */
+    public double getExecShare() {
+        return this.execShare;
+    }
+    
+    /**
+     * 
+     * Sets the share of operations that start a process.
+     * 
+     * @param execShare
+     *            The share, between 0 and 1
+     * 
+     */
+    public void setExecShare(double execShare) {
+        if (execShare < 0 || execShare + this.killShare > 1) {
+            throw new IllegalArgumentException("execShare and killShare must total at most 1");
+        }
+        
+        this.execShare = execShare;
+    }
+    
+    /**
+     * Returns the share of operations that kill a process.
+     */
+    public double getKillShare() {
+        return this.killShare;
+    }
+    
+    /**
+     * 
+     * Sets the share of operations that kill a process. Operations that neither start nor kill a
+     * process query processes.
+     * 
+     * @param killShare
+     *            The share, between 0 and 1
+     * 
+     */
+    public void setKillShare(double killShare) {
+        if (killShare < 0 || this.execShare + killShare > 1) {
+            throw new IllegalArgumentException("execShare and killShare must total at most 1");
+        }
+        
+        this.killShare = killShare;
+    }
+    
+    /**
+     * 
+     * Runs load against the simulated machines for {@link #getDuration()}, with
+     * {@link #getTransport()} set as the transport of {@link JEXECore}, and restores the previous
+     * transport afterward.
+     * 
+     * @return The latencies and failures seen
+     * @throws InterruptedException
+     * 
+     */
+    public Report run() throws InterruptedException {
+        ConnectionInfo[] connections = new ConnectionInfo[this.hosts];
+        
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new ConnectionInfo();
+            connections[i].address = "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "."
+                    + (i & 0xFF);
+            connections[i].authentication = new Authentication();
+            connections[i].authentication.domain = "CORP";
+            connections[i].authentication.username = "Administrator";
+            connections[i].authentication.password = "password";
+        }
+        
+        JEXETransport transport = JEXECore.getTransport();
+        JEXECore.setTransport(this.transport);
+        
+        try {
+            long deadline = System.nanoTime() + this.duration * 1000000;
+            List<Worker> workers = new ArrayList<Worker>();
+            
+            for (int i = 0; i < this.threads; i++) {
+                Worker worker = new Worker(connections, deadline);
+                worker.setName("JEXE load " + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+            
+            long start = System.nanoTime();
+            
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            
+            return new Report(workers, System.nanoTime() - start);
+        } finally {
+            JEXECore.setTransport(transport);
+        }
+    }
+    
+    /**
+     * Runs the load generator with the options given as <code>name=value</code>.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        JEXESimulator simulator = new JEXESimulator();
+        LoadGenerator generator = new LoadGenerator(simulator);
+        SimulatorServer server = null;
+        
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            
+            if (equals < 0) {
+                throw new IllegalArgumentException("Option must be name=value: " + arg);
+            }
+            
+            String name = arg.substring(0, equals);
+            String value = arg.substring(equals + 1);
+            
+            switch (name) {
+            case "hosts":
+                generator.setHosts(Integer.parseInt(value));
+                break;
+            case "threads":
+                generator.setThreads(Integer.parseInt(value));
+                break;
+            case "duration":
+                generator.setDuration(Long.parseLong(value) * 1000);
+                break;
+            case "execShare":
+                generator.setExecShare(Double.parseDouble(value));
+                break;
+            case "killShare":
+                generator.setKillShare(Double.parseDouble(value));
+                break;
+            case "latency":
+                simulator.setLatency(Long.parseLong(value));
+                break;
+            case "jitter":
+                simulator.setJitter(Long.parseLong(value));
+                break;
+            case "connectLatency":
+                simulator.setConnectLatency(Long.parseLong(value));
+                break;
+            case "errorRate":
+                simulator.setErrorRate(Double.parseDouble(value));
+                break;
+            case "dropRate":
+                simulator.setDropRate(Double.parseDouble(value));
+                break;
+            case "processes":
+                simulator.setProcesses(Integer.parseInt(value));
+                break;
+            case "windows":
+                simulator.setWindows(Integer.parseInt(value));
+                break;
+            case "transport":
+                if (value.equals("tcp")) {
+                    if (server == null) {
+                        server = new SimulatorServer(simulator);
+                    }
+                    
+                    NioTcpTransport transport = new NioTcpTransport();
+                    transport.setRelay(server.getAddress());
+                    generator.setTransport(transport);
+                } else if (value.equals("memory")) {
+                    generator.setTransport(null);
+                } else {
+                    throw new IllegalArgumentException("Unknown transport: " + value);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        
+        try {
+            generator.run().print(System.out);
+        } finally {
+            if (generator.getTransport() instanceof NioTcpTransport) {
+                ((NioTcpTransport) generator.getTransport()).close();
+            }
+            
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+    
+    private class Worker extends Thread {
+        
+        private final ConnectionInfo[] connections;
+        private final long deadline;
+        
+        long[] latencies = new long[4096];
+        int operations;
+        int failures;
+        
+        Worker(ConnectionInfo[] connections, long deadline) {
+            this.connections = connections;
+            this.deadline = deadline;
+        }
+        
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            
+            while (System.nanoTime() - this.deadline < 0) {
+                ConnectionInfo connectionInfo =
+                        this.connections[random.nextInt(this.connections.length)];
+                double operation = random.nextDouble();
+                long start = System.nanoTime();
+                
+                try {
+                    if (operation < LoadGenerator.this.execShare) {
+                        this.exec(connectionInfo);
+                    } else if (operation < LoadGenerator.this.execShare
+                            + LoadGenerator.this.killShare) {
+                        this.kill(connectionInfo);
+                    } else {
+                        this.query(connectionInfo, random);
+                    }
+                } catch (IOException | JEXEException e) {
+                    this.failures++;
+                }
+                
+                if (this.operations == this.latencies.length) {
+                    this.latencies = Arrays.copyOf(this.latencies, this.operations * 2);
+                }
+                
+                this.latencies[this.operations++] = System.nanoTime() - start;
+            }
+        }
+        
+        private void exec(ConnectionInfo connectionInfo) throws IOException, JEXEException {
+            ProcessCreationInfo processCreationInfo = new ProcessCreationInfo();
+            processCreationInfo.startingDirectory = "C:\\Windows\\Temp";
+            processCreationInfo.command = "C:\\Windows\\System32\\notepad.exe";
+            
+            JEXEProcess.execute(connectionInfo, processCreationInfo);
+        }
+        
+        private void kill(ConnectionInfo connectionInfo) throws IOException, JEXEException {
+            int pid = LoadGenerator.this.simulator.host(connectionInfo.address).randomPid();
+            
+            if (pid != 0) {
+                JEXEProcess.kill(connectionInfo, pid, 1);
+            }
+        }
+        
+        private void query(ConnectionInfo connectionInfo, ThreadLocalRandom random)
+                throws IOException, JEXEException {
+            ProcessQueryInfo processQueryInfo = new ProcessQueryInfo();
+            
+            if (random.nextBoolean()) {
+                processQueryInfo.name = "notepad.exe";
+            }
+            
+            JEXEProcess.queryProcesses(connectionInfo, processQueryInfo);
+        }
+        
+    }
+    
+    /**
+     * The outcome of a run of the load generator. Latencies are in milliseconds, and include
+     * operations that failed.
+     */
+    public static class Report {
+        
+        /**
+         * The number of operations completed.
+         */
+        public final int operations;
+        
+        /**
+         * The number of operations that failed.
+         */
+        public final int failures;
+        
+        /**
+         * The length of the run in milliseconds.
+         */
+        public final double elapsed;
+        
+        private final long[] latencies;
+        
+        Report(List<? extends Worker> workers, long elapsed) {
+            int operations = 0;
+            int failures = 0;
+            
+            for (Worker worker : workers) {
+                operations += worker.operations;
+                failures += worker.failures;
+            }
+            
+            this.latencies = new long[operations];
+            this.operations = operations;
+            this.failures = failures;
+            this.elapsed = elapsed / 1e6;
+            
+            int offset = 0;
+            
+            for (Worker worker : workers) {
+                System.arraycopy(worker.latencies, 0, this.latencies, offset, worker.operations);
+                offset += worker.operations;
+            }
+            
+            Arrays.sort(this.latencies);
+        }
+        
+        /**
+         * Returns the number of operations completed per second.
+         */
+        public double getThroughput() {
+            return this.operations / this.elapsed * 1000;
+        }
+        
+        /**
+         * 
+         * Returns a latency percentile.
+         * 
+         * @param quantile
+         *            The quantile, between 0 and 1
+         * @return The latency in milliseconds, or zero if no operations completed
+         * 
+         */
+        public double getLatency(double quantile) {
+            if (this.latencies.length == 0) {
+                return 0;
+            }
+            
+            int index = (int) Math.ceil(quantile * this.latencies.length) - 1;
+            return this.latencies[Math.max(0, index)] / 1e6;
+        }
+        
+        /**
+         * 
+         * Prints the report, one figure per line.
+         * 
+         * @param out
+         *            The stream to which to print
+         * 
+         */
+        public void print(PrintStream out) {
+            out.printf("operations: %d (%d failed)%n", this.operations, this.failures);
+            out.printf("throughput: %.1f/s%n", this.getThroughput());
+            out.printf("latency p50: %.3f ms%n", this.getLatency(0.5));
+            out.printf("latency p90: %.3f ms%n", this.getLatency(0.9));
+            out.printf("latency p99: %.3f ms%n", this.getLatency(0.99));
+            out.printf("latency p99.9: %.3f ms%n", this.getLatency(0.999));
+            out.printf("latency max: %.3f ms%n", this.getLatency(1));
+        }
+        
+    }
+    
+}
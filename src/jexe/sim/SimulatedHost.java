@@ -0,0 +1,411 @@
+package jexe.sim;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jexe.core.JEXECore;
+import jexe.core.JEXERecord;
+import jexe.core.JEXEProcess.ProcessQueryInfo;
+import jexe.core.JEXEProcess.WindowQueryInfo;
+
+/**
+ * A simulated machine running JEXESVC: a process table and a window table, and the commands that
+ * act on them. Tables are generated from the machine's address, so a machine starts the same in
+ * every run. Processes started and killed by commands are published to the pipes subscribed to
+ * them, as they happen, and wake the pipes waiting on them.
+ */
+public class SimulatedHost {
+    
+    private static final String[] names = { "svchost.exe", "chrome.exe", "explorer.exe",
+            "java.exe", "conhost.exe", "RuntimeBroker.exe", "notepad.exe", "lsass.exe" };
+    
+    private static final String[][] users = { { "NT AUTHORITY", "SYSTEM" },
+            { "NT AUTHORITY", "LOCAL SERVICE" }, { "NT AUTHORITY", "NETWORK SERVICE" },
+            { "CORP", "jsmith" }, { "CORP", "Administrator" } };
+    
+    private final JEXESimulator simulator;
+    private final String address;
+    private final Map<Integer, ProcessQueryInfo> processes =
+            new LinkedHashMap<Integer, ProcessQueryInfo>();
+    private final List<WindowQueryInfo> windows = new ArrayList<WindowQueryInfo>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final List<SimulatedPipe> waiters = new CopyOnWriteArrayList<SimulatedPipe>();
+    
+    /**
+     * The exit codes of processes that have exited, by PID. These are read without the lock of
+     * the machine, so that a pipe may check on a <code>wait</code> while holding its own.
+     */
+    private final Map<Integer, Integer> exitCodes = new ConcurrentHashMap<Integer, Integer>();
+    private final Random random;
+    
+    private volatile int nextPid = 4;
+    private volatile boolean reachable = true;
+    
+    SimulatedHost(JEXESimulator simulator, String address, int processes, int windows) {
+        this.simulator = simulator;
+        this.address = address;
+        this.random = new Random(address.hashCode());
+        
+        for (int i = 0; i < processes; i++) {
+            String name = names[this.random.nextInt(names.length)];
+            this.add(name, "C:\\Windows\\System32\\" + name);
+        }
+        
+        List<Integer> pids = new ArrayList<Integer>(this.processes.keySet());
+        
+        for (int i = 0; i < windows && !pids.isEmpty(); i++) {
+            WindowQueryInfo windowInfo = new WindowQueryInfo();
+            windowInfo.pid = pids.get(this.random.nextInt(pids.size()));
+            windowInfo.title = this.processes.get(windowInfo.pid).name + " - Window " + i;
+            this.windows.add(windowInfo);
+        }
+    }
+    
+    public String getAddress() {
+        return this.address;
+    }
+    
+    /**
+     * Returns whether or not pipes to this machine may be opened.
+     */
+    public boolean isReachable() {
+        return this.reachable;
+    }
+    
+    /**
+     * 
+     * Sets whether or not pipes to this machine may be opened; an unreachable machine fails every
+     * pipe open, as one that is down or blocked would.
+     * 
+     * @param reachable
+     *            Whether or not the machine is reachable
+     * 
+     */
+    public void setReachable(boolean reachable) {
+        this.reachable = reachable;
+    }
+    
+    /**
+     * Returns the number of processes running.
+     */
+    public synchronized int getProcessCount() {
+        return this.processes.size();
+    }
+    
+    /**
+     * Returns the PID of a random running process, or 0 if there are none.
+     */
+    public synchronized int randomPid() {
+        if (this.processes.isEmpty()) {
+            return 0;
+        }
+        
+        int skip = this.random.nextInt(this.processes.size());
+        Iterator<Integer> iterator = this.processes.keySet().iterator();
+        
+        while (skip-- > 0) {
+            iterator.next();
+        }
+        
+        return iterator.next();
+    }
+    
+    /**
+     * 
+     * Answers a single command, as JEXESVC would.
+     * 
+     * @param command
+     *            The command, without the <code>COMMAND</code> keyword
+     * @return The complete answer, from the <code>RESPONSE</code> or <code>ERROR</code> line on
+     * 
+     */
+    synchronized String answer(String command) {
+        if (command.startsWith("exec ")) {
+            return this.exec(command);
+        } else if (command.startsWith("kill ")) {
+            return this.kill(command);
+        } else if (command.equals("query processes") || command.startsWith("query processes ")) {
+            return this.queryProcesses(SimulatedHost.filter(command, "query processes"));
+        } else if (command.equals("query windows") || command.startsWith("query windows ")) {
+            return this.queryWindows(SimulatedHost.filter(command, "query windows"));
+        }
+        
+        return "ERROR 1\n";
+    }
+    
+    /**
+     * 
+     * Answers a <code>subscribe processes</code> command, after which the given pipe is sent
+     * events for the matching processes started and killed.
+     * 
+     * @param pipe
+     *            The pipe on which the command was written
+     * @param command
+     *            The command, without the <code>COMMAND</code> keyword
+     * @return The complete answer
+     * 
+     */
+    String subscribe(SimulatedPipe pipe, String command) {
+        if (!command.equals("subscribe processes")
+                && !command.startsWith("subscribe processes ")) {
+            return "ERROR 1\n";
+        }
+        
+        this.subscribers.add(new Subscriber(pipe,
+                SimulatedHost.filter(command, "subscribe processes")));
+        return "RESPONSE 0\n";
+    }
+    
+    void unsubscribe(SimulatedPipe pipe) {
+        this.subscribers.removeIf(subscriber -> subscriber.pipe == pipe);
+    }
+    
+    /**
+     * 
+     * Answers a <code>wait</code> command if any of its processes has exited, or if the wait has
+     * expired. Each process is answered with its state and, once it has exited, its exit code.
+     * 
+     * @param arguments
+     *            The arguments of the command: the timeout, then the process handles
+     * @param expired
+     *            Whether or not the timeout has passed
+     * @return The complete answer, or null if the wait goes on
+     * 
+     */
+    String waited(String[] arguments, boolean expired) {
+        StringBuilder lines = new StringBuilder();
+        boolean done = expired;
+        
+        for (int i = 1; i < arguments.length; i++) {
+            JEXERecord.Writer writer = new JEXERecord.Writer(lines).put("handle", arguments[i]);
+            int pid;
+            
+            try {
+                pid = Integer.parseInt(arguments[i]);
+            } catch (NumberFormatException e) {
+                pid = -1;
+            }
+            
+            Integer exitCode = this.exitCodes.get(pid);
+            
+            if (exitCode != null) {
+                writer.put("state", "exited").put("exitcode", exitCode.toString());
+                done = true;
+            } else if (pid > 0 && pid % 4 == 0 && pid < this.nextPid) {
+                writer.put("state", "running");
+            } else {
+                writer.put("state", "unknown");
+                done = true;
+            }
+            
+            writer.end().append('\n');
+        }
+        
+        return done ? "RESPONSE " + (arguments.length - 1) + "\n" + lines : null;
+    }
+    
+    void addWaiter(SimulatedPipe pipe) {
+        this.waiters.add(pipe);
+    }
+    
+    void removeWaiter(SimulatedPipe pipe) {
+        this.waiters.remove(pipe);
+    }
+    
+    /**
+     * Starts the quoted command at the end of an <code>exec</code>, answering with its PID.
+     */
+    private String exec(String command) {
+        int end = command.lastIndexOf('"');
+        int start = end > 0 ? command.lastIndexOf('"', end - 1) : -1;
+        
+        if (start < 0) {
+            return "RESPONSE 1\nFAIL\n";
+        }
+        
+        String path = command.substring(start + 1, end).trim();
+        int space = path.indexOf(' ');
+        
+        if (space >= 0) {
+            path = path.substring(0, space);
+        }
+        
+        String name = path.substring(path.lastIndexOf('\\') + 1);
+        int pid = this.add(name, path).pid;
+        long runTime = this.simulator.getRunTime();
+        
+        if (runTime > 0) {
+            this.simulator.schedule(() -> this.exit(pid),
+                    ThreadLocalRandom.current().nextLong(runTime) + 1);
+        }
+        
+        return "RESPONSE 1\n" + pid + "\n";
+    }
+    
+    private String kill(String command) {
+        String[] arguments = command.split(" ");
+        
+        try {
+            if (arguments.length == 3 && this.remove(Integer.parseInt(arguments[2]),
+                    Integer.parseInt(arguments[1])) != null) {
+                return "RESPONSE 1\nOK\n";
+            }
+        } catch (NumberFormatException e) {
+        }
+        
+        return "RESPONSE 1\nFAIL\n";
+    }
+    
+    private String queryProcesses(Map<String, String> filter) {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        
+        for (ProcessQueryInfo processInfo : this.processes.values()) {
+            if (SimulatedHost.matches(filter, processInfo)) {
+                new JEXERecord.Writer(lines).put("pid", Integer.toString(processInfo.pid))
+                        .put("name", processInfo.name).put("path", processInfo.path)
+                        .put("domain", processInfo.domain).put("user", processInfo.user).end()
+                        .append('\n');
+                count++;
+            }
+        }
+        
+        return "RESPONSE " + count + "\n" + lines;
+    }
+    
+    private String queryWindows(Map<String, String> filter) {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        
+        for (WindowQueryInfo windowInfo : this.windows) {
+            if (this.processes.containsKey(windowInfo.pid)
+                    && SimulatedHost.matches(filter, "pid", Integer.toString(windowInfo.pid))
+                    && SimulatedHost.matches(filter, "title", windowInfo.title)) {
+                new JEXERecord.Writer(lines).put("pid", Integer.toString(windowInfo.pid))
+                        .put("title", windowInfo.title).end().append('\n');
+                count++;
+            }
+        }
+        
+        return "RESPONSE " + count + "\n" + lines;
+    }
+    
+    private ProcessQueryInfo add(String name, String path) {
+        String[] user = users[this.random.nextInt(users.length)];
+        
+        ProcessQueryInfo processInfo = new ProcessQueryInfo();
+        processInfo.pid = this.nextPid;
+        processInfo.name = name;
+        processInfo.path = path;
+        processInfo.domain = user[0];
+        processInfo.user = user[1];
+        
+        this.nextPid += 4;
+        this.processes.put(processInfo.pid, processInfo);
+        this.publish("start", processInfo, null);
+        
+        return processInfo;
+    }
+    
+    private synchronized void exit(int pid) {
+        this.remove(pid, 0);
+    }
+    
+    ProcessQueryInfo remove(int pid, int exitCode) {
+        ProcessQueryInfo processInfo = this.processes.remove(pid);
+        
+        if (processInfo != null) {
+            this.exitCodes.put(pid, exitCode);
+            this.publish("exit", processInfo, exitCode);
+            
+            for (SimulatedPipe waiter : this.waiters) {
+                waiter.wake();
+            }
+        }
+        
+        return processInfo;
+    }
+    
+    /**
+     * Sends an event to the matching subscribers. This is done under the lock of the machine, so
+     * that each subscriber sees events in the order in which they happened; a pipe never takes
+     * that lock while holding its own.
+     */
+    private void publish(String event, ProcessQueryInfo processInfo, Integer exitCode) {
+        if (this.subscribers.isEmpty()) {
+            return;
+        }
+        
+        String line = null;
+        
+        for (Subscriber subscriber : this.subscribers) {
+            if (!SimulatedHost.matches(subscriber.filter, processInfo)) {
+                continue;
+            }
+            
+            if (line == null) {
+                JEXERecord.Writer writer = new JEXERecord.Writer(new StringBuilder())
+                        .put("event", event).put("pid", Integer.toString(processInfo.pid))
+                        .put("name", processInfo.name).put("domain", processInfo.domain)
+                        .put("user", processInfo.user);
+                
+                if (exitCode != null) {
+                    writer.put("exitcode", exitCode.toString());
+                }
+                
+                line = writer.put("time", Long.toString(System.currentTimeMillis())).end()
+                        .toString();
+            }
+            
+            subscriber.pipe.event(line);
+        }
+    }
+    
+    /**
+     * Returns the predicates of a query command, as JEXESVC map, or null if there are none.
+     */
+    private static Map<String, String> filter(String command, String keyword) {
+        if (command.length() <= keyword.length() + 1) {
+            return null;
+        }
+        
+        return JEXECore.stringToMap(command.substring(keyword.length() + 1));
+    }
+    
+    private static boolean matches(Map<String, String> filter, ProcessQueryInfo processInfo) {
+        return SimulatedHost.matches(filter, "pid", Integer.toString(processInfo.pid))
+                && SimulatedHost.matches(filter, "name", processInfo.name)
+                && SimulatedHost.matches(filter, "path", processInfo.path)
+                && SimulatedHost.matches(filter, "domain", processInfo.domain)
+                && SimulatedHost.matches(filter, "user", processInfo.user);
+    }
+    
+    private static boolean matches(Map<String, String> filter, String key, String value) {
+        if (filter == null) {
+            return true;
+        }
+        
+        String expected = filter.get(key);
+        return expected == null || expected.equalsIgnoreCase(value);
+    }
+    
+    private static class Subscriber {
+        
+        final SimulatedPipe pipe;
+        final Map<String, String> filter;
+        
+        Subscriber(SimulatedPipe pipe, Map<String, String> filter) {
+            this.pipe = pipe;
+            this.filter = filter;
+        }
+        
+    }
+    
+}
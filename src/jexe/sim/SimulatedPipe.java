@@ -0,0 +1,389 @@
+package jexe.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jexe.core.JEXERecord;
+
+/**
+ * A command pipe to a {@link SimulatedHost}. Commands are answered as soon as their line is
+ * written, but each answer is held back from the reader until the simulated round trip has
+ * passed; answers to pipelined commands arrive in order, each no sooner than the one before. No
+ * thread serves the pipe, so thousands may be open at once.
+ * 
+ * A pipe subscribed to process events holds them until the reader has granted credit for them,
+ * and sends those raised within one round trip of each other as a single batch. Events beyond
+ * {@link #eventCapacity} are counted and reported as lost at the head of the next batch.
+ * 
+ * A <code>wait</code> is held at the head of the pipe, and the answers behind it with it, until
+ * one of its processes exits or its timeout passes; the machine wakes the pipe when a process
+ * exits.
+ */
+class SimulatedPipe {
+    
+    /**
+     * The character set in which JEXE writes commands and reads answers.
+     */
+    private static final Charset charset = Charset.defaultCharset();
+    
+    /**
+     * The most events held for a subscriber that has run out of credit.
+     */
+    private static final int eventCapacity = 4096;
+    
+    private final JEXESimulator simulator;
+    private final SimulatedHost host;
+    
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final ArrayDeque<String> events = new ArrayDeque<String>();
+    
+    /**
+     * Held while commands are answered, in place of the lock of the pipe, which the machine takes
+     * to publish events.
+     */
+    private final Object writeLock = new Object();
+    
+    private long lastReady;
+    private volatile boolean closed;
+    
+    private int credit;
+    private int lost;
+    private long firstEventAt;
+    
+    final InputStream in = new InputStream() {
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SimulatedPipe.this.read(b, off, len);
+        }
+        
+        @Override
+        public int available() {
+            return SimulatedPipe.this.available();
+        }
+        
+        @Override
+        public void close() {
+            SimulatedPipe.this.close();
+        }
+        
+    };
+    
+    final OutputStream out = new OutputStream() {
+        
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            SimulatedPipe.this.write(b, off, len);
+        }
+        
+        @Override
+        public void close() {
+            SimulatedPipe.this.close();
+        }
+        
+    };
+    
+    SimulatedPipe(JEXESimulator simulator, SimulatedHost host) {
+        this.simulator = simulator;
+        this.host = host;
+    }
+    
+    private void write(byte[] b, int off, int len) throws IOException {
+        synchronized (this.writeLock) {
+            if (this.closed) {
+                throw new IOException("Pipe is closed");
+            }
+            
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    this.command(new String(this.line.toByteArray(), charset));
+                    this.line.reset();
+                } else if (b[i] != '\r') {
+                    this.line.write(b[i]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Answers one line written to the pipe, and queues the answer to be read once the simulated
+     * round trip has passed.
+     */
+    private void command(String line) {
+        // Credit is not answered
+        if (line.startsWith("COMMAND credit ")) {
+            this.credit(line.substring(15).trim());
+            return;
+        }
+        
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        
+        long delay = this.simulator.getLatency();
+        long jitter = this.simulator.getJitter();
+        
+        if (jitter > 0) {
+            delay += random.nextLong(jitter + 1);
+        }
+        
+        String answer = null;
+        String[] wait = null;
+        long hold = 0;
+        
+        if (random.nextDouble() < this.simulator.getDropRate()) {
+            answer = null;
+        } else if (!line.startsWith("COMMAND ")) {
+            answer = "ERROR 0\n";
+        } else if (random.nextDouble() < this.simulator.getErrorRate()) {
+            answer = "ERROR 5\n";
+        } else if (line.startsWith("COMMAND subscribe ") && this.simulator.isSubscriptions()) {
+            answer = this.host.subscribe(this, line.substring(8));
+        } else if (line.startsWith("COMMAND wait ")) {
+            wait = line.substring(13).trim().split(" +");
+            
+            try {
+                hold = Long.parseLong(wait[0]);
+            } catch (NumberFormatException e) {
+                hold = -1;
+            }
+            
+            if (hold < 0 || wait.length < 2) {
+                answer = "ERROR 1\n";
+                wait = null;
+            }
+        } else {
+            answer = this.host.answer(line.substring(8));
+        }
+        
+        synchronized (this) {
+            long readyAt = Math.max(System.nanoTime(), this.lastReady) + delay * 1000000;
+            this.lastReady = readyAt;
+            
+            Chunk chunk = new Chunk(answer, readyAt);
+            
+            if (wait != null) {
+                chunk.wait = wait;
+                chunk.waitUntil = readyAt + hold * 1000000;
+            }
+            
+            this.chunks.add(chunk);
+            this.notifyAll();
+        }
+    }
+    
+    /**
+     * Called by the machine when a process exits, to check on a <code>wait</code> held by the
+     * pipe.
+     */
+    synchronized void wake() {
+        this.notifyAll();
+    }
+    
+    /**
+     * Answers the <code>wait</code> held in the given chunk if it is done, and returns whether it
+     * was.
+     */
+    private boolean resolve(Chunk chunk, long now) {
+        // Registered before checking, so that an exit in between still wakes the pipe
+        if (!chunk.waiting) {
+            this.host.addWaiter(this);
+            chunk.waiting = true;
+        }
+        
+        String answer = this.host.waited(chunk.wait, now - chunk.waitUntil >= 0);
+        
+        if (answer == null) {
+            return false;
+        }
+        
+        this.host.removeWaiter(this);
+        chunk.wait = null;
+        chunk.bytes = answer.getBytes(charset);
+        
+        return true;
+    }
+    
+    private synchronized void credit(String credit) {
+        try {
+            this.credit += Integer.parseInt(credit);
+            this.notifyAll();
+        } catch (NumberFormatException e) {
+        }
+    }
+    
+    /**
+     * Holds an event for the subscriber, to be sent in the next batch.
+     */
+    synchronized void event(String line) {
+        if (this.closed) {
+            return;
+        }
+        
+        if (this.events.isEmpty() && this.lost == 0) {
+            this.firstEventAt = System.nanoTime();
+        }
+        
+        if (this.events.size() < eventCapacity) {
+            this.events.add(line);
+        } else {
+            this.lost++;
+        }
+        
+        this.notifyAll();
+    }
+    
+    /**
+     * Takes as many held events as there is credit for, as a single batch.
+     */
+    private Chunk batch(long readyAt) {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        
+        if (this.lost > 0) {
+            new JEXERecord.Writer(lines).put("event", "lost")
+                    .put("count", Integer.toString(this.lost)).end().append('\n');
+            this.lost = 0;
+            count++;
+        }
+        
+        while (count < this.credit && !this.events.isEmpty()) {
+            lines.append(this.events.poll()).append('\n');
+            count++;
+        }
+        
+        this.credit -= count;
+        this.firstEventAt = System.nanoTime();
+        
+        return new Chunk("EVENTS " + count + "\n" + lines, readyAt);
+    }
+    
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        
+        while (true) {
+            if (this.closed) {
+                return -1;
+            }
+            
+            Chunk chunk = this.chunks.peek();
+            long now = System.nanoTime();
+            
+            // Events are batched once the first of them has made the round trip
+            boolean batching = chunk == null && this.credit > 0
+                    && (!this.events.isEmpty() || this.lost > 0);
+            long batchAt = this.firstEventAt + this.simulator.getLatency() * 1000000;
+            
+            if (batching && now - batchAt >= 0) {
+                chunk = this.batch(now);
+                this.chunks.add(chunk);
+            }
+            
+            boolean held = chunk != null && now - chunk.readyAt >= 0 && chunk.wait != null
+                    && !this.resolve(chunk, now);
+            
+            if (chunk != null && now - chunk.readyAt >= 0 && !held) {
+                if (chunk.bytes == null) {
+                    this.close();
+                    throw new IOException("Pipe broken");
+                }
+                
+                int count = Math.min(len, chunk.bytes.length - chunk.position);
+                System.arraycopy(chunk.bytes, chunk.position, b, off, count);
+                chunk.position += count;
+                
+                if (chunk.position == chunk.bytes.length) {
+                    this.chunks.poll();
+                }
+                
+                return count;
+            }
+            
+            try {
+                if (held) {
+                    this.wait(Math.max(1, (chunk.waitUntil - now) / 1000000));
+                } else if (batching) {
+                    this.wait(Math.max(1, (batchAt - now) / 1000000));
+                } else if (chunk == null) {
+                    this.wait();
+                } else {
+                    long wait = (chunk.readyAt - now) / 1000000;
+                    this.wait(Math.max(1, wait));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+    
+    private synchronized int available() {
+        int available = 0;
+        long now = System.nanoTime();
+        
+        for (Chunk chunk : this.chunks) {
+            if (now - chunk.readyAt < 0 || chunk.bytes == null) {
+                break;
+            }
+            
+            available += chunk.bytes.length - chunk.position;
+        }
+        
+        return available;
+    }
+    
+    private void close() {
+        synchronized (this) {
+            this.closed = true;
+            this.chunks.clear();
+            this.events.clear();
+            this.notifyAll();
+        }
+        
+        this.host.unsubscribe(this);
+        this.host.removeWaiter(this);
+    }
+    
+    private static class Chunk {
+        
+        /**
+         * The answer, or null if the pipe breaks in its place or a wait is still held.
+         */
+        byte[] bytes;
+        final long readyAt;
+        
+        int position;
+        
+        /**
+         * The arguments of a <code>wait</code> not yet answered, and the time at which it expires.
+         */
+        String[] wait;
+        long waitUntil;
+        boolean waiting;
+        
+        Chunk(String answer, long readyAt) {
+            this.bytes = answer == null ? null : answer.getBytes(charset);
+            this.readyAt = readyAt;
+        }
+        
+    }
+    
+}
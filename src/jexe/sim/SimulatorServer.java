@@ -0,0 +1,166 @@
+package jexe.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import jexe.core.JEXECore.ConnectionInfo;
+import jexe.core.JEXETransport.Pipe;
+import jexe.core.NioTcpTransport;
+
+/**
+ * Serves the machines of a {@link JEXESimulator} over TCP, as a relay in front of them would, so
+ * that {@link NioTcpTransport} may be run against them with {@link NioTcpTransport#setRelay}. Each
+ * connection names its machine and pipe in the header described by {@link NioTcpTransport}.
+ * 
+ * The server is meant for tests, and spends two threads on each connection; the number of
+ * connections it can hold is bounded by the threads the JVM can start, not by the client.
+ */
+public class SimulatorServer {
+    
+    private static final Charset charset = Charset.defaultCharset();
+    
+    private final JEXESimulator simulator;
+    private final ServerSocket serverSocket;
+    
+    /**
+     * 
+     * Starts serving the given simulator on a free port of the loopback interface.
+     * 
+     * @param simulator
+     *            The simulator to serve
+     * @throws IOException
+     * 
+     */
+    public SimulatorServer(JEXESimulator simulator) throws IOException {
+        this.simulator = simulator;
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        
+        Thread thread = new Thread(this::accept, "jexe-sim-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Returns the address on which the server listens, to be given to
+     * {@link NioTcpTransport#setRelay(InetSocketAddress)}.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+    }
+    
+    /**
+     * Stops accepting connections. Connections already made are left to finish.
+     */
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+    
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            Socket socket;
+            
+            try {
+                socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                continue;
+            }
+            
+            Thread thread = new Thread(() -> this.serve(socket), "jexe-sim-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Opens the pipe named in the header of a connection, then copies bytes between the two until
+     * either side closes.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream socketIn = socket.getInputStream();
+            OutputStream socketOut = socket.getOutputStream();
+            String[] header = SimulatorServer.readLine(socketIn).split(" ");
+            
+            if (header.length != 4 || !header[0].equals("OPEN")) {
+                throw new IOException("Invalid header");
+            }
+            
+            ConnectionInfo connectionInfo = new ConnectionInfo();
+            connectionInfo.address = header[1];
+            
+            Pipe pipe = this.simulator.open(connectionInfo, header[2],
+                    Integer.parseInt(header[3]));
+            
+            if (pipe.in == null) {
+                SimulatorServer.copy(socketIn, pipe.out);
+                SimulatorServer.close(pipe.out);
+                return;
+            }
+            
+            if (pipe.out != null) {
+                Thread thread = new Thread(() -> {
+                    SimulatorServer.copy(socketIn, pipe.out);
+                    SimulatorServer.close(pipe.out);
+                }, "jexe-sim-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            
+            SimulatorServer.copy(pipe.in, socketOut);
+        } catch (IOException | RuntimeException e) {
+            // The connection is dropped, as a pipe that cannot be opened would be
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+    
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed before header");
+            }
+            
+            line.write(b);
+        }
+        
+        return new String(line.toByteArray(), charset);
+    }
+    
+    private static void copy(InputStream in, OutputStream out) {
+        byte[] buffer = new byte[8192];
+        int read;
+        
+        try {
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException e) {
+        }
+    }
+    
+    private static void close(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+        }
+    }
+    
+}